@@ -0,0 +1,173 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.bson.types.ObjectId;
+import org.graylog2.plugin.GraylogServer;
+import org.graylog2.plugin.alarms.AlarmReceiver;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+import org.graylog2.plugin.outputs.OutputStreamConfiguration;
+import org.graylog2.plugin.streams.Stream;
+import org.graylog2.plugin.streams.StreamRule;
+
+/**
+ * Synthetic messages and configuration shared by the benchmarks.
+ */
+public class BenchmarkData {
+
+    private BenchmarkData() {}
+
+    public static String text(int length, boolean escaped) {
+        String clean = "The quick brown fox jumps over the lazy dog while processing request 12345. ";
+        String dirty = "at <init>(Foo.java:42) & \"quoted\" 'text'\n\tat com.example.Bar.baz(Bar.java:7)\n";
+        String unit = escaped ? dirty : clean;
+
+        StringBuilder sb = new StringBuilder(length + unit.length());
+        while (sb.length() < length) {
+            sb.append(unit);
+        }
+        sb.setLength(length);
+        return sb.toString();
+    }
+
+    public static LogMessage message(int fieldCount, int messageSize) {
+        LogMessage message = new LogMessage();
+        message.setHost("web-01.example.com");
+        message.setFacility("application");
+        message.setLevel(3);
+        message.setCreatedAt(System.currentTimeMillis() / 1000.0);
+        message.setShortMessage("NullPointerException in RequestHandler");
+        message.setFullMessage(text(messageSize, true));
+        for (int i = 0; i < fieldCount; i++) {
+            message.addAdditionalData("_field" + i, (i % 2 == 0) ? (Object) ("value <" + i + ">") : (Object) i);
+        }
+        return message;
+    }
+
+    /**
+     * @return messages routed to the stream
+     */
+    public static List<LogMessage> messages(Stream stream, int count, int fieldCount, int messageSize) {
+        List<LogMessage> messages = new ArrayList<LogMessage>(count);
+        for (int i = 0; i < count; i++) {
+            LogMessage message = message(fieldCount, messageSize);
+            message.setStreams(Collections.singletonList(stream));
+            messages.add(message);
+        }
+        return messages;
+    }
+
+    public static Stream stream() {
+        return new BenchmarkStream(new ObjectId());
+    }
+
+    /**
+     * @return the output configuration of a single stream with a single email output
+     */
+    public static OutputStreamConfiguration outputStreamConfiguration(Stream stream, Map<String, String> config) {
+        final Map<ObjectId, Set<Map<String, String>>> outputs = new HashMap<ObjectId, Set<Map<String, String>>>();
+        outputs.put(stream.getId(), Collections.singleton(config));
+        return new OutputStreamConfiguration() {
+            public void add(ObjectId streamId, Set<Map<String, String>> configuration) {
+                outputs.put(streamId, configuration);
+            }
+            public Set<Map<String, String>> get(ObjectId streamId) {
+                return outputs.get(streamId);
+            }
+        };
+    }
+
+    public static Map<String, String> streamConfiguration() {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("receiver", "oncall@example.com");
+        config.put("subject", "Errors");
+        config.put("fields", "_field.*");
+        return config;
+    }
+
+    public static CompiledStreamConfig compiledStreamConfiguration() throws AddressException, MessageOutputConfigurationException {
+        return new CompiledStreamConfig(
+                streamConfiguration(),
+                InternetAddress.parse("oncall@example.com"),
+                new InternetAddress[0],
+                new InternetAddress[0],
+                "[graylog2]");
+    }
+
+    public static Map<String, String> pluginConfiguration() {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("from_email", "graylog2@example.com");
+        config.put("from_name", "Graylog2");
+        config.put("hostname", "localhost");
+        config.put("port", "25");
+        config.put("use_tls", "false");
+        config.put("use_auth", "false");
+        config.put("protocol", NullTransport.PROTOCOL);
+        config.put("web_interface_url", "http://graylog2.example.com");
+        return config;
+    }
+
+    private static class BenchmarkStream implements Stream {
+        private final ObjectId id;
+
+        private BenchmarkStream(ObjectId id) {
+            this.id = id;
+        }
+
+        public List<StreamRule> getStreamRules() {
+            return Collections.emptyList();
+        }
+
+        public ObjectId getId() {
+            return id;
+        }
+
+        public String getTitle() {
+            return "benchmark";
+        }
+
+        public int getAlarmTimespan() {
+            return 0;
+        }
+
+        public int getAlarmMessageLimit() {
+            return 0;
+        }
+
+        public int getAlarmPeriod() {
+            return 0;
+        }
+
+        public Set<AlarmReceiver> getAlarmReceivers(GraylogServer server) {
+            return Collections.emptySet();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.OutputStreamConfiguration;
+import org.graylog2.plugin.streams.Stream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end write() benchmark: stream routing, rendering, MIME encoding and
+ * sending through the in-process {@link NullTransport}. Score is batches per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailOutputBenchmark {
+
+    @Param({"1", "100"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean digest;
+
+    private EmailOutput output;
+    private List<LogMessage> messages;
+    private OutputStreamConfiguration streamConfiguration;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        output = new EmailOutput();
+        output.initialize(BenchmarkData.pluginConfiguration());
+
+        Stream stream = BenchmarkData.stream();
+        messages = BenchmarkData.messages(stream, batchSize, 10, 2000);
+
+        Map<String, String> config = BenchmarkData.streamConfiguration();
+        config.put("digest", String.valueOf(digest));
+        streamConfiguration = BenchmarkData.outputStreamConfiguration(stream, config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.shutdown();
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        output.write(messages, streamConfiguration, null);
+    }
+}
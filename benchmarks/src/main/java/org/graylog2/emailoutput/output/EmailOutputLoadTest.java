@@ -0,0 +1,297 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.LogManager;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.OutputStreamConfiguration;
+import org.graylog2.plugin.streams.Stream;
+
+/**
+ * Load test of {@link EmailOutput#write} against an {@link SmtpSink}, for each scenario
+ * of SMTP latency and failures, over the standard smtp and the smtp-nio transport.
+ * Reports emails delivered per second, write() latency percentiles, failures as counted
+ * by {@link EmailMetrics}, and heap usage.
+ * <p>
+ * Arguments are key=value pairs: seconds (measured per run, default 10), warmup (seconds,
+ * default 2), threads calling write() (default 1), batch (messages per write(), default 10),
+ * protocols (default smtp,smtp-nio) and scenarios (default all). Any other key overrides a
+ * plugin configuration option, e.g. pool_max_size=8.
+ */
+public class EmailOutputLoadTest {
+
+    private static final Map<String, Scenario> SCENARIOS = new LinkedHashMap<String, Scenario>();
+    static {
+        SCENARIOS.put("baseline", new Scenario() {
+            public void apply(SmtpSink sink) {
+            }
+        });
+        SCENARIOS.put("latency", new Scenario() {
+            public void apply(SmtpSink sink) {
+                // A relay across a WAN link
+                sink.setLatency(20);
+            }
+        });
+        SCENARIOS.put("slow_data", new Scenario() {
+            public void apply(SmtpSink sink) {
+                // A relay that scans content before accepting it
+                sink.setLatency(".", 200);
+                sink.setLatency("BDAT", 200);
+            }
+        });
+        SCENARIOS.put("transient_failures", new Scenario() {
+            public void apply(SmtpSink sink) {
+                sink.setRejectRate(0.1, "451 4.3.0 Temporary failure, try again later");
+            }
+        });
+        SCENARIOS.put("permanent_failures", new Scenario() {
+            public void apply(SmtpSink sink) {
+                sink.setRejectRate(0.05, "550 5.7.1 Sender rejected");
+            }
+        });
+        SCENARIOS.put("dropped_connections", new Scenario() {
+            public void apply(SmtpSink sink) {
+                sink.setDropRate(0.05);
+            }
+        });
+    }
+
+    private interface Scenario {
+        void apply(SmtpSink sink);
+    }
+
+    private final Map<String, String> options;
+    private final long measureMillis;
+    private final long warmupMillis;
+    private final int threads;
+    private final int batchSize;
+
+    private EmailOutputLoadTest(Map<String, String> options) {
+        this.options = options;
+        this.measureMillis = parseInt(options.remove("seconds"), 10) * 1000L;
+        this.warmupMillis = parseInt(options.remove("warmup"), 2) * 1000L;
+        this.threads = parseInt(options.remove("threads"), 1);
+        this.batchSize = parseInt(options.remove("batch"), 10);
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Failures are expected; keep the report readable
+        LogManager.getLogManager().reset();
+
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 1) {
+                System.err.println("Expected key=value, got: " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        List<String> protocols = split(options.remove("protocols"), "smtp,smtp-nio");
+        List<String> scenarios = split(options.remove("scenarios"), null);
+        if (scenarios.isEmpty()) {
+            scenarios = new ArrayList<String>(SCENARIOS.keySet());
+        }
+
+        EmailOutputLoadTest test = new EmailOutputLoadTest(options);
+        System.out.println(String.format(Locale.ENGLISH, "%-20s %-9s %10s %9s %9s %9s %9s %9s %9s %8s %8s",
+                "scenario", "protocol", "emails/s", "p50 ms", "p99 ms", "max ms",
+                "errors", "transient", "permanent", "heap MB", "peak MB"));
+        for (String scenario : scenarios) {
+            if (!SCENARIOS.containsKey(scenario)) {
+                System.err.println("Unknown scenario: " + scenario + "; expected one of " + SCENARIOS.keySet());
+                System.exit(1);
+            }
+            for (String protocol : protocols) {
+                System.out.println(test.run(scenario, protocol));
+            }
+        }
+    }
+
+    private String run(String scenario, String protocol) throws Exception {
+        SmtpSink sink = new SmtpSink();
+        SCENARIOS.get(scenario).apply(sink);
+
+        Map<String, String> pluginConfiguration = BenchmarkData.pluginConfiguration();
+        pluginConfiguration.put("hostname", "127.0.0.1");
+        pluginConfiguration.put("port", String.valueOf(sink.getPort()));
+        pluginConfiguration.put("protocol", protocol);
+        pluginConfiguration.put("metrics_log_interval", "0");
+        pluginConfiguration.putAll(options);
+
+        EmailOutput output = new EmailOutput();
+        try {
+            output.initialize(pluginConfiguration);
+            Stream stream = BenchmarkData.stream();
+            List<LogMessage> messages = BenchmarkData.messages(stream, batchSize, 10, 2000);
+            OutputStreamConfiguration streamConfiguration
+                    = BenchmarkData.outputStreamConfiguration(stream, BenchmarkData.streamConfiguration());
+
+            drive(output, messages, streamConfiguration, warmupMillis, null);
+
+            EmailMetrics metrics = EmailMetrics.INSTANCE;
+            long transientBefore = metrics.getTransientFailures();
+            long permanentBefore = metrics.getPermanentFailures();
+            long emailsBefore = sink.getMessages();
+            System.gc();
+            Result result = new Result();
+            long start = System.nanoTime();
+            drive(output, messages, streamConfiguration, measureMillis, result);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long emails = sink.getMessages() - emailsBefore;
+
+            System.gc();
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            long[] latencies = result.getLatencies();
+            return String.format(Locale.ENGLISH, "%-20s %-9s %10.1f %9.2f %9.2f %9.2f %9d %9d %9d %8d %8d",
+                    scenario, protocol,
+                    emails / seconds,
+                    percentile(latencies, 0.50) / 1e6,
+                    percentile(latencies, 0.99) / 1e6,
+                    percentile(latencies, 1.0) / 1e6,
+                    result.errors.get(),
+                    metrics.getTransientFailures() - transientBefore,
+                    metrics.getPermanentFailures() - permanentBefore,
+                    memory.getHeapMemoryUsage().getUsed() >> 20,
+                    result.peakHeap.get() >> 20);
+        } finally {
+            output.shutdown();
+            sink.close();
+        }
+    }
+
+    /**
+     * Calls write() from each thread until the time is up.
+     */
+    private void drive(final EmailOutput output, final List<LogMessage> messages,
+            final OutputStreamConfiguration streamConfiguration, long millis, final Result result) throws InterruptedException {
+        final long deadline = System.nanoTime() + millis * 1000000L;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread thread = new Thread("load-test-" + i) {
+                @Override
+                public void run() {
+                    Runtime runtime = Runtime.getRuntime();
+                    long[] latencies = new long[1024];
+                    int count = 0;
+                    long now;
+                    while ((now = System.nanoTime()) < deadline) {
+                        try {
+                            output.write(messages, streamConfiguration, null);
+                        } catch (Exception e) {
+                            if (null != result) {
+                                result.errors.incrementAndGet();
+                            }
+                        }
+                        if (null != result) {
+                            if (count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, count * 2);
+                            }
+                            latencies[count++] = System.nanoTime() - now;
+                            if (0 == count % 64) {
+                                result.recordHeap(runtime.totalMemory() - runtime.freeMemory());
+                            }
+                        }
+                    }
+                    if (null != result) {
+                        result.recordHeap(runtime.totalMemory() - runtime.freeMemory());
+                        result.addLatencies(Arrays.copyOf(latencies, count));
+                    }
+                    done.countDown();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (0 == sorted.length) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return (null == value) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static List<String> split(String value, String defaultValue) {
+        String string = (null == value) ? defaultValue : value;
+        List<String> values = new ArrayList<String>();
+        if (null != string) {
+            for (String part : string.split(",")) {
+                if (!part.trim().isEmpty()) {
+                    values.add(part.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    private static class Result {
+        private final List<long[]> latencies = new ArrayList<long[]>();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong peakHeap = new AtomicLong();
+
+        synchronized void addLatencies(long[] values) {
+            latencies.add(values);
+        }
+
+        void recordHeap(long used) {
+            long peak;
+            while (used > (peak = peakHeap.get()) && !peakHeap.compareAndSet(peak, used)) {
+                // Retry
+            }
+        }
+
+        /**
+         * @return every write() latency in nanoseconds, sorted
+         */
+        synchronized long[] getLatencies() {
+            int size = 0;
+            for (long[] values : latencies) {
+                size += values.length;
+            }
+            long[] all = new long[size];
+            int offset = 0;
+            for (long[] values : latencies) {
+                System.arraycopy(values, 0, all, offset, values.length);
+                offset += values.length;
+            }
+            Arrays.sort(all);
+            return all;
+        }
+    }
+}
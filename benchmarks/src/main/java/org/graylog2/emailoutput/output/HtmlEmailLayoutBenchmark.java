@@ -0,0 +1,76 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.emailoutput.output.html.HtmlEmailLayout;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlEmailLayoutBenchmark {
+
+    @Param({"0", "10", "50"})
+    public int fieldCount;
+
+    @Param({"200", "20000", "1000000"})
+    public int messageSize;
+
+    private HtmlEmailLayout layout;
+    private HtmlEmailLayout multipartLayout;
+    private LogMessage message;
+    private CompiledStreamConfig streamConfiguration;
+
+    @Setup
+    public void setUp() throws Exception {
+        layout = new HtmlEmailLayout();
+        layout.initialize(BenchmarkData.pluginConfiguration());
+        multipartLayout = new HtmlEmailLayout(true);
+        multipartLayout.initialize(BenchmarkData.pluginConfiguration());
+        message = BenchmarkData.message(fieldCount, messageSize);
+        streamConfiguration = BenchmarkData.compiledStreamConfiguration();
+    }
+
+    @Benchmark
+    public EmailBody formatMessageBody() {
+        return layout.formatMessageBody(message, streamConfiguration, 0);
+    }
+
+    @Benchmark
+    public EmailBody formatMultipartBody() {
+        return multipartLayout.formatMessageBody(message, streamConfiguration, 0);
+    }
+}
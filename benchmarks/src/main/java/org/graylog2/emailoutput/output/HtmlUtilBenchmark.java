@@ -0,0 +1,69 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.concurrent.TimeUnit;
+
+import org.graylog2.emailoutput.output.html.HtmlUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HtmlUtilBenchmark {
+
+    @Param({"100", "10000"})
+    public int length;
+
+    @Param({"false", "true"})
+    public boolean escaped;
+
+    private String text;
+    private final StringBuilder out = new StringBuilder();
+
+    @Setup
+    public void setUp() {
+        text = BenchmarkData.text(length, escaped);
+    }
+
+    @Benchmark
+    public CharSequence encode() {
+        return HtmlUtil.encode(text);
+    }
+
+    @Benchmark
+    public StringBuilder appendEncoded() {
+        out.setLength(0);
+        return HtmlUtil.appendEncoded(out, text);
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MimeUtilBenchmark {
+
+    private static final String[] IGNORED_HEADERS = { "Bcc" };
+
+    @Param({"ascii", "latin", "cjk"})
+    public String charset;
+
+    @Param({"2000", "200000"})
+    public int length;
+
+    private Session session;
+    private InternetAddress from;
+    private InternetAddress[] to;
+    private String text;
+
+    @Setup
+    public void setUp() throws Exception {
+        session = Session.getInstance(new Properties());
+        from = new InternetAddress("graylog2@example.com");
+        to = InternetAddress.parse("oncall@example.com");
+
+        String base = BenchmarkData.text(length, true);
+        if ("latin".equals(charset)) {
+            text = base.replace('o', 'ö');
+        } else if ("cjk".equals(charset)) {
+            text = base.replace('o', '日').replace('e', '本').replace(' ', '語');
+        } else {
+            text = base;
+        }
+    }
+
+    @Benchmark
+    public String selectMimeEncoding() {
+        return MimeUtil.selectMimeEncoding(text);
+    }
+
+    @Benchmark
+    public void buildAndEncode(Blackhole blackhole) throws MessagingException, IOException {
+        MimeMessage message = MimeUtil.buildMessage(session, from, to, new InternetAddress[0], new InternetAddress[0],
+                "Errors", EmailBody.html(text));
+        message.writeTo(new BlackholeOutputStream(blackhole), IGNORED_HEADERS);
+    }
+
+    @Benchmark
+    public void buildAndEncodeMultipart(Blackhole blackhole) throws MessagingException, IOException {
+        MimeMessage message = MimeUtil.buildMessage(session, from, to, new InternetAddress[0], new InternetAddress[0],
+                "Errors", EmailBody.alternative(text, text));
+        message.writeTo(new BlackholeOutputStream(blackhole), IGNORED_HEADERS);
+    }
+
+    private static class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        private BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            blackhole.consume(b);
+        }
+    }
+}
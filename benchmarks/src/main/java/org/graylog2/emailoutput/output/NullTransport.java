@@ -0,0 +1,94 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Transport that accepts any connection and writes each message, fully encoded,
+ * to a stream that discards it. Registered as protocol "nullsmtp" in
+ * META-INF/javamail.providers.
+ */
+public class NullTransport extends Transport {
+
+    public static final String PROTOCOL = "nullsmtp";
+
+    private static final AtomicLong MESSAGES = new AtomicLong();
+    private static final AtomicLong BYTES = new AtomicLong();
+
+    private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+
+    public NullTransport(Session session, URLName urlname) {
+        super(session, urlname);
+    }
+
+    @Override
+    protected boolean protocolConnect(String host, int port, String user, String password) {
+        return true;
+    }
+
+    @Override
+    public void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        CountingOutputStream out = new CountingOutputStream();
+        try {
+            if (message instanceof MimeMessage) {
+                ((MimeMessage) message).writeTo(out, IGNORED_HEADERS);
+            } else {
+                message.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new MessagingException("Could not write message", e);
+        }
+        MESSAGES.incrementAndGet();
+        BYTES.addAndGet(out.count);
+    }
+
+    public static long getMessages() {
+        return MESSAGES.get();
+    }
+
+    public static long getBytes() {
+        return BYTES.get();
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded queues of {@link PendingEmail}s drained by a fixed set of worker threads,
+ * so that rendering and SMTP I/O happen off the caller's thread.
+ * <p>
+ * Each {@link EmailPriority} has its own queue, bounded by the capacity on its own, so a
+ * backlog of bulk email neither delays nor crowds out urgent email; all queues together hold
+ * up to four times the capacity. Critical emails are always taken first, and some workers
+ * send nothing else, so they are never stuck behind a slow bulk send. The other queues
+ * take turns in order of priority, each sending up to its weight in emails while lower
+ * priority emails are waiting.
+ */
+public class AsyncSender {
+
+    private static final Logger LOG = Logger.getLogger(AsyncSender.class.getName());
+
+    public static final int[] DEFAULT_WEIGHTS = { 4, 2, 1 };
+
+    public enum Backpressure {
+        BLOCK, DROP_OLDEST, DROP_NEWEST;
+
+        public static Backpressure parse(String value) {
+            if (null == value || value.isEmpty()) {
+                return BLOCK;
+            }
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public interface Handler {
+        void send(PendingEmail email) throws Exception;
+    }
+
+    private final int capacity;
+    private final List<Deque<PendingEmail>> lanes;
+    private final int[] weights;
+    private final int[] credits;
+    private final Backpressure backpressure;
+    private final Handler handler;
+    private final List<Thread> workers;
+    private boolean running = true;
+
+    private final AtomicLong enqueued = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public AsyncSender(int capacity, Backpressure backpressure, int workerCount, Handler handler) {
+        this(capacity, backpressure, workerCount, 0, DEFAULT_WEIGHTS, handler);
+    }
+
+    /**
+     * @param capacity the emails each priority's queue holds, rather than all of them together
+     * @param criticalWorkerCount additional workers that only send critical emails
+     * @param laneWeights the turns of the high, normal and bulk queues
+     */
+    public AsyncSender(int capacity, Backpressure backpressure, int workerCount, int criticalWorkerCount,
+            int[] laneWeights, Handler handler) {
+        EmailPriority[] priorities = EmailPriority.values();
+        if (laneWeights.length != priorities.length - 1) {
+            throw new IllegalArgumentException("Expected " + (priorities.length - 1) + " weights");
+        }
+        this.capacity = Math.max(1, capacity);
+        this.backpressure = backpressure;
+        this.handler = handler;
+
+        this.lanes = new ArrayList<Deque<PendingEmail>>(priorities.length);
+        this.weights = new int[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            lanes.add(new ArrayDeque<PendingEmail>());
+            weights[i] = (i == 0) ? 0 : Math.max(1, laneWeights[i - 1]);
+        }
+        this.credits = this.weights.clone();
+
+        this.workers = new ArrayList<Thread>(workerCount + criticalWorkerCount);
+        for (int i = 0; i < workerCount; i++) {
+            startWorker("email-output-sender-" + i, false);
+        }
+        for (int i = 0; i < criticalWorkerCount; i++) {
+            startWorker("email-output-sender-critical-" + i, true);
+        }
+    }
+
+    private void startWorker(String name, final boolean criticalOnly) {
+        Thread worker = new Thread(new Runnable() {
+            public void run() {
+                work(criticalOnly);
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+        workers.add(worker);
+    }
+
+    /**
+     * @return false if the sender has been shut down, and the caller must send the email itself
+     */
+    public boolean enqueue(PendingEmail email) throws InterruptedException {
+        Deque<PendingEmail> lane = lanes.get(email.getPriority().ordinal());
+        PendingEmail dropping = null;
+        synchronized (this) {
+            // The workers may have drained the queues and stopped; nothing would send it
+            if (!running) {
+                return false;
+            }
+            if (lane.size() >= capacity) {
+                switch (backpressure) {
+                    case BLOCK:
+                        while (running && lane.size() >= capacity) {
+                            wait();
+                        }
+                        if (!running) {
+                            return false;
+                        }
+                        break;
+                    case DROP_NEWEST:
+                        dropping = email;
+                        break;
+                    case DROP_OLDEST:
+                        dropping = lane.pollFirst();
+                        break;
+                }
+            }
+            if (dropping != email) {
+                lane.addLast(email);
+                notifyAll();
+            }
+        }
+        if (null != dropping) {
+            drop(dropping);
+        }
+        if (dropping != email) {
+            enqueued.incrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting new work, waits for the workers to drain the queues, then returns.
+     * Callers blocked on a full queue are turned away, as {@link #enqueue} is afterwards.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        LOG.info("Email sender stopped: " + this);
+    }
+
+    public long getEnqueued() {
+        return enqueued.get();
+    }
+
+    public long getSent() {
+        return sent.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public synchronized int getQueueSize() {
+        int size = 0;
+        for (Deque<PendingEmail> lane : lanes) {
+            size += lane.size();
+        }
+        return size;
+    }
+
+    public synchronized int getQueueSize(EmailPriority priority) {
+        return lanes.get(priority.ordinal()).size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder queued = new StringBuilder();
+        for (EmailPriority priority : EmailPriority.values()) {
+            queued.append((queued.length() == 0) ? " (" : ", ")
+                    .append(priority.name().toLowerCase()).append('=').append(getQueueSize(priority));
+        }
+        return "enqueued=" + getEnqueued()
+                + ", sent=" + getSent()
+                + ", dropped=" + getDropped()
+                + ", failed=" + getFailed()
+                + ", queued=" + getQueueSize() + queued + ")";
+    }
+
+    private void drop(PendingEmail email) {
+        if (dropped.getAndIncrement() == 0) {
+            LOG.warning("Email queue is full; dropping emails (" + backpressure + ")");
+        }
+    }
+
+    private void work(boolean criticalOnly) {
+        while (true) {
+            PendingEmail email;
+            try {
+                email = take(criticalOnly);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (null == email) {
+                return;
+            }
+
+            try {
+                handler.send(email);
+                sent.incrementAndGet();
+            } catch (Throwable e) {
+                // Errors too, such as a StackOverflowError from rendering; a dead worker would stop draining the queue
+                failed.incrementAndGet();
+                LOG.log(Level.SEVERE, "Could not send " + email, e);
+            }
+        }
+    }
+
+    /**
+     * @return the next email to send, waiting for one; or null once stopped and drained
+     */
+    private synchronized PendingEmail take(boolean criticalOnly) throws InterruptedException {
+        while (true) {
+            PendingEmail email = criticalOnly ? lanes.get(0).pollFirst() : next();
+            if (null != email) {
+                // Wake callers blocked on a full queue
+                notifyAll();
+                return email;
+            }
+            if (!running) {
+                return null;
+            }
+            wait();
+        }
+    }
+
+    private PendingEmail next() {
+        PendingEmail email = lanes.get(0).pollFirst();
+        if (null != email) {
+            return email;
+        }
+        for (int round = 0; round < 2; round++) {
+            for (int i = 1; i < lanes.size(); i++) {
+                if (credits[i] > 0 && !lanes.get(i).isEmpty()) {
+                    credits[i]--;
+                    return lanes.get(i).pollFirst();
+                }
+            }
+            // Every queue with emails waiting has used its turn
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+        return null;
+    }
+}
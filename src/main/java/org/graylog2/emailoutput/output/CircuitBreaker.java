@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+
+/**
+ * Stops sending to an SMTP relay after a run of consecutive failures. While open,
+ * sends fail immediately; after the open interval a single trial send is let
+ * through, which closes the breaker if it succeeds or reopens it if it fails.
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOG = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * Thrown instead of sending while the breaker is open.
+     */
+    public static class OpenException extends MessagingException {
+        private static final long serialVersionUID = 1L;
+
+        private final long remainingMillis;
+
+        public OpenException(long remainingMillis) {
+            super("SMTP relay unavailable; not sending for " + remainingMillis + " ms");
+            this.remainingMillis = remainingMillis;
+        }
+
+        public long getRemainingMillis() {
+            return remainingMillis;
+        }
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold consecutive failures that open the breaker, or 0 to never open
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @throws OpenException if sends are currently short-circuited
+     */
+    public synchronized void check(long now) throws OpenException {
+        switch (state) {
+            case CLOSED:
+                return;
+            case OPEN:
+                long remaining = openedAt + openMillis - now;
+                if (remaining > 0) {
+                    throw new OpenException(remaining);
+                }
+                // Let this send through as the trial
+                state = State.HALF_OPEN;
+                return;
+            case HALF_OPEN:
+                // Only one trial at a time
+                throw new OpenException(openMillis);
+        }
+    }
+
+    public synchronized void recordSuccess() {
+        if (State.CLOSED != state) {
+            LOG.info("SMTP relay available again; resuming sending");
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    public synchronized void recordFailure(long now) {
+        failures++;
+        if (State.HALF_OPEN == state || (failureThreshold > 0 && State.CLOSED == state && failures >= failureThreshold)) {
+            if (State.CLOSED == state) {
+                LOG.warning("SMTP relay failed " + failures + " times in a row; not sending for " + openMillis + " ms");
+            }
+            state = State.OPEN;
+            openedAt = now;
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return State.CLOSED != state;
+    }
+}
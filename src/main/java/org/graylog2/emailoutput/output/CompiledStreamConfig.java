@@ -0,0 +1,292 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import javax.mail.internet.InternetAddress;
+
+import org.graylog2.emailoutput.output.cluster.ClusterCoordinator;
+import org.graylog2.emailoutput.output.template.SubjectTemplate;
+import org.graylog2.emailoutput.output.template.Template;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * A stream output configuration, validated and parsed once so that sending a
+ * message needs no further address parsing or regex compilation.
+ */
+public class CompiledStreamConfig {
+
+    // Field names are few in practice; stop remembering matches if they turn out not to be
+    private static final int MAX_FIELD_MATCHES = 1024;
+
+    private static final int DEFAULT_DEDUP_MAX_ENTRIES = 10000;
+
+    private final Map<String, String> values;
+    private final InternetAddress[] to;
+    private final InternetAddress[] cc;
+    private final InternetAddress[] bcc;
+    private final Pattern fieldPattern;
+    private final ConcurrentMap<String, Boolean> fieldMatches = new ConcurrentHashMap<String, Boolean>();
+    private final String subject;
+    private final SubjectTemplate subjectTemplate;
+    private final boolean digest;
+    private final long digestWindowMillis;
+    private final int digestMaxMessages;
+    private final int digestMaxBytes;
+    private final List<String> digestKey;
+    private final List<String> aggregationKey;
+    private final List<String> renderKey;
+    private final MessageFilter filter;
+    private final EmailPriority priority;
+    private final MessageFingerprint fingerprint;
+    private final DuplicateFilter duplicateFilter;
+    private final long threadSeed;
+    private volatile Template messageTemplate;
+
+    public CompiledStreamConfig(
+            Map<String, String> streamConfiguration,
+            InternetAddress[] to,
+            InternetAddress[] cc,
+            InternetAddress[] bcc,
+            String subjectPrefix) throws MessageOutputConfigurationException {
+        this(streamConfiguration, to, cc, bcc, subjectPrefix, null);
+    }
+
+    /**
+     * @param cluster shares suppression of repeated messages with other nodes, or null
+     */
+    public CompiledStreamConfig(
+            Map<String, String> streamConfiguration,
+            InternetAddress[] to,
+            InternetAddress[] cc,
+            InternetAddress[] bcc,
+            String subjectPrefix,
+            ClusterCoordinator cluster) throws MessageOutputConfigurationException {
+
+        this.values = Collections.unmodifiableMap(new HashMap<String, String>(streamConfiguration));
+        this.to = to;
+        this.cc = cc;
+        this.bcc = bcc;
+        this.fieldPattern = compilePattern(values.get("fields"));
+
+        String configuredSubject = values.get("subject");
+        String prefix = (subjectPrefix != null && !subjectPrefix.isEmpty()) ? subjectPrefix + " " : "";
+        this.subject = prefix + configuredSubject;
+        this.subjectTemplate = SubjectTemplate.compile(prefix, configuredSubject);
+
+        this.digest = Boolean.parseBoolean(values.get("digest"));
+        this.digestWindowMillis = ConfigUtil.parseInt(values, "digest_window", 0) * 1000L;
+        this.digestMaxMessages = ConfigUtil.parseInt(values, "digest_max_messages", MessageAggregator.DEFAULT_MAX_MESSAGES);
+        this.digestMaxBytes = ConfigUtil.parseInt(values, "digest_max_bytes", MessageAggregator.DEFAULT_MAX_BYTES);
+        this.renderKey = Arrays.asList(configuredSubject, values.get("fields"), values.get("template"));
+        this.digestKey = Arrays.asList(values.get("receiver"), configuredSubject, values.get("fields"), values.get("template"),
+                values.get("priority"));
+        this.aggregationKey = Arrays.asList(values.get("receiver"), configuredSubject, values.get("fields"), values.get("template"),
+                values.get("priority"), String.valueOf(digestWindowMillis), String.valueOf(digestMaxMessages), String.valueOf(digestMaxBytes));
+
+        this.filter = MessageFilter.compile(values);
+        try {
+            this.priority = EmailPriority.parse(values.get("priority"));
+        } catch (IllegalArgumentException e) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: priority; " + e.getMessage());
+        }
+        this.fingerprint = new MessageFingerprint(values.get("dedup_fields"));
+        this.threadSeed = MessageFingerprint.hash(MessageFingerprint.hash(MessageFingerprint.SEED, values.get("receiver")), configuredSubject);
+        int dedupWindow = ConfigUtil.parseInt(values, "dedup_window", 0);
+        this.duplicateFilter = (dedupWindow > 0)
+                ? new DuplicateFilter(
+                        dedupWindow * 1000L,
+                        ConfigUtil.parseInt(values, "dedup_max_entries", DEFAULT_DEDUP_MAX_ENTRIES),
+                        fingerprint,
+                        MessageFingerprint.hash(threadSeed, values.get("dedup_fields")),
+                        cluster)
+                : null;
+    }
+
+    private static Pattern compilePattern(String string) throws MessageOutputConfigurationException {
+        if (null == string || string.isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(string);
+        } catch (PatternSyntaxException e) {
+            throw new MessageOutputConfigurationException("Could not compile fields pattern: " + string + "; " + e.getMessage());
+        }
+    }
+
+    public String get(String key) {
+        return values.get(key);
+    }
+
+    public Map<String, String> getValues() {
+        return values;
+    }
+
+    public InternetAddress[] getTo() {
+        return to;
+    }
+
+    public InternetAddress[] getCc() {
+        return cc;
+    }
+
+    public InternetAddress[] getBcc() {
+        return bcc;
+    }
+
+    /**
+     * @return the pattern selecting additional fields to include, or null to include none
+     */
+    public Pattern getFieldPattern() {
+        return fieldPattern;
+    }
+
+    /**
+     * @return whether the additional field should be included, remembering the answer
+     *          for each field name so the pattern is rarely evaluated
+     */
+    public boolean includesField(String field) {
+        if (null == fieldPattern) {
+            return false;
+        }
+        Boolean matches = fieldMatches.get(field);
+        if (null == matches) {
+            matches = fieldPattern.matcher(field).matches();
+            if (fieldMatches.size() < MAX_FIELD_MATCHES) {
+                fieldMatches.put(field, matches);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @return the configured subject, with the plugin's subject prefix applied
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @return the subject for an email about the message, rendering the subject template if there is one
+     */
+    public String getSubject(LogMessage message) {
+        return (null == subjectTemplate) ? subject : subjectTemplate.render(message, this);
+    }
+
+    public boolean isDigest() {
+        return digest;
+    }
+
+    public boolean isAggregated() {
+        return digest && digestWindowMillis > 0;
+    }
+
+    public long getDigestWindowMillis() {
+        return digestWindowMillis;
+    }
+
+    public int getDigestMaxMessages() {
+        return digestMaxMessages;
+    }
+
+    public int getDigestMaxBytes() {
+        return digestMaxBytes;
+    }
+
+    /**
+     * @return the receiver, subject and the settings a digest is rendered and sent with; configurations
+     *          with equal keys contribute to the same digest
+     */
+    public List<String> getDigestKey() {
+        return digestKey;
+    }
+
+    /**
+     * @return the digest key and the limits a digest is aggregated with, so a digest is never held
+     *          or flushed by the limits of another configuration
+     */
+    public List<String> getAggregationKey() {
+        return aggregationKey;
+    }
+
+    /**
+     * @return the settings that affect how a message is rendered; configurations with equal
+     *          keys produce identical emails for the same message, differing only in recipients
+     */
+    public List<String> getRenderKey() {
+        return renderKey;
+    }
+
+    /**
+     * @return the stream's own message template, compiled by the template layout, or null to use the plugin's
+     */
+    public Template getMessageTemplate() {
+        return messageTemplate;
+    }
+
+    public void setMessageTemplate(Template messageTemplate) {
+        this.messageTemplate = messageTemplate;
+    }
+
+    /**
+     * @return whether the message meets this output's conditions and should be sent
+     */
+    public boolean accepts(LogMessage message) {
+        return null == filter || filter.accepts(message);
+    }
+
+    /**
+     * @return the priority of all emails from this output, or null if it follows each message's level
+     */
+    public EmailPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the filter suppressing repeated messages, or null if duplicates are sent
+     */
+    public DuplicateFilter getDuplicateFilter() {
+        return duplicateFilter;
+    }
+
+    /**
+     * @return an identifier shared by all emails for this receiver and subject, such as digests
+     */
+    public long getThreadId() {
+        return threadSeed;
+    }
+
+    /**
+     * @return an identifier shared by emails for this receiver and subject about repeats of the message
+     */
+    public long getThreadId(LogMessage message) {
+        return fingerprint.of(message, threadSeed);
+    }
+}
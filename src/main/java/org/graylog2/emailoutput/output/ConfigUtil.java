@@ -0,0 +1,46 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Map;
+
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+public class ConfigUtil {
+
+    private ConfigUtil() {}
+
+    /**
+     * @return the option's value, or the default if it is not set
+     * @throws MessageOutputConfigurationException if the option is set but not a number
+     */
+    public static int parseInt(Map<String, String> configuration, String key, int defaultValue)
+            throws MessageOutputConfigurationException {
+        String value = configuration.get(key);
+        if (null == value || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: " + key + "; " + e.getMessage());
+        }
+    }
+}
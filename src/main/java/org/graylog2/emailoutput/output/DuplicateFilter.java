@@ -0,0 +1,120 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.graylog2.emailoutput.output.cluster.ClusterCoordinator;
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * Suppresses repeats of a message within a time window. Messages are identified by
+ * their {@link MessageFingerprint}, and at most a fixed number of recent
+ * fingerprints are remembered (least recently seen are forgotten first), so memory
+ * stays bounded no matter how many distinct messages arrive.
+ * <p>
+ * With a {@link ClusterCoordinator}, messages let through are published to the other
+ * nodes, and a message another node sent within the window is suppressed here too.
+ */
+public class DuplicateFilter {
+
+    /** Returned by {@link #check} for a message that should not be sent. */
+    public static final int DUPLICATE = -1;
+
+    private static class Occurrence {
+        private long windowStart;
+        private int suppressed;
+    }
+
+    private final long windowMillis;
+    private final MessageFingerprint fingerprint;
+    private final long seed;
+    private final ClusterCoordinator cluster;
+    private final LinkedHashMap<Long, Occurrence> recent;
+
+    public DuplicateFilter(long windowMillis, int maxEntries, MessageFingerprint fingerprint) {
+        this(windowMillis, maxEntries, fingerprint, MessageFingerprint.SEED, null);
+    }
+
+    /**
+     * @param seed distinguishes this filter's fingerprints from those of other stream outputs in the cluster
+     * @param cluster shares sent messages with other nodes, or null to filter on this node only
+     */
+    public DuplicateFilter(long windowMillis, final int maxEntries, MessageFingerprint fingerprint, long seed, ClusterCoordinator cluster) {
+        this.windowMillis = windowMillis;
+        this.fingerprint = fingerprint;
+        this.seed = seed;
+        this.cluster = cluster;
+        this.recent = new LinkedHashMap<Long, Occurrence>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Occurrence> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return {@link #DUPLICATE} if the message repeats one seen within the window, otherwise
+     *          the number of repeats suppressed since the last time it was let through
+     */
+    public int check(LogMessage message, long now) {
+        long key = fingerprint.of(message, seed);
+        Long remoteSendTime = (null == cluster) ? null : cluster.getRemoteSendTime(key);
+        synchronized (recent) {
+            Occurrence occurrence = recent.get(key);
+            if (null == occurrence) {
+                occurrence = new Occurrence();
+                recent.put(key, occurrence);
+                if (null != remoteSendTime && now - remoteSendTime < windowMillis) {
+                    occurrence.windowStart = remoteSendTime;
+                    occurrence.suppressed = 1;
+                    return DUPLICATE;
+                }
+                occurrence.windowStart = now;
+                publish(key, now);
+                return 0;
+            }
+            if (now - occurrence.windowStart < windowMillis) {
+                occurrence.suppressed++;
+                return DUPLICATE;
+            }
+            if (null != remoteSendTime && now - remoteSendTime < windowMillis) {
+                // Another node sent it since this window ended; its repeats are still due from there
+                occurrence.windowStart = remoteSendTime;
+                occurrence.suppressed++;
+                return DUPLICATE;
+            }
+            int suppressed = occurrence.suppressed;
+            occurrence.windowStart = now;
+            occurrence.suppressed = 0;
+            publish(key, now);
+            return suppressed;
+        }
+    }
+
+    private void publish(long key, long now) {
+        if (null != cluster) {
+            cluster.recordFingerprint(key, now);
+        }
+    }
+}
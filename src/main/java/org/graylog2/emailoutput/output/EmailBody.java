@@ -0,0 +1,82 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+/**
+ * A rendered email body: plain text, HTML, or both as alternatives.
+ */
+public class EmailBody {
+
+    private static final String TEXT_PLAIN = "text/plain";
+
+    private final String text;
+    private final String textContentType;
+    private final String html;
+
+    private EmailBody(String text, String textContentType, String html) {
+        this.text = text;
+        this.textContentType = textContentType;
+        this.html = html;
+    }
+
+    public static EmailBody text(String text) {
+        return new EmailBody(text, TEXT_PLAIN, null);
+    }
+
+    /**
+     * @param contentType a non-HTML text type, such as text/plain
+     */
+    public static EmailBody text(String text, String contentType) {
+        return new EmailBody(text, contentType, null);
+    }
+
+    public static EmailBody html(String html) {
+        return new EmailBody(null, null, html);
+    }
+
+    public static EmailBody alternative(String text, String html) {
+        return new EmailBody(text, TEXT_PLAIN, html);
+    }
+
+    /**
+     * @return the plain text body, or null if there is none
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the content type of the text body, without charset
+     */
+    public String getTextContentType() {
+        return textContentType;
+    }
+
+    /**
+     * @return the HTML body, or null if there is none
+     */
+    public String getHtml() {
+        return html;
+    }
+
+    public boolean isAlternative() {
+        return null != text && null != html;
+    }
+}
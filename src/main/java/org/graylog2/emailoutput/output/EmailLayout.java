@@ -19,15 +19,21 @@
  */
 package org.graylog2.emailoutput.output;
 
+import java.util.List;
 import java.util.Map;
 
 import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
 
 public interface EmailLayout {
 
-    void initialize(Map<String, String> pluginConfiguration);
-    String getContentType();
-    String formatMessageBody(LogMessage message, Map<String, String> streamConfiguration);
-    String getSubject(LogMessage message, Map<String, String> streamConfiguration);
+    void initialize(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException;
+    void checkStreamConfiguration(CompiledStreamConfig streamConfiguration) throws MessageOutputConfigurationException;
+    EmailBody formatMessageBody(LogMessage message, CompiledStreamConfig streamConfiguration, int duplicates);
+    String getSubject(LogMessage message, CompiledStreamConfig streamConfiguration);
+    EmailBody formatDigestBody(List<LogMessage> messages, CompiledStreamConfig streamConfiguration, Map<LogMessage, Integer> duplicates);
+    String getDigestSubject(List<LogMessage> messages, CompiledStreamConfig streamConfiguration);
+    EmailBody formatSuppressedBody(Map<String, Long> suppressedBySubject, long intervalSeconds);
+    String getSuppressedSubject(CompiledStreamConfig streamConfiguration, long suppressed);
 
 }
@@ -0,0 +1,273 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and latency histograms for the email output, published as
+ * JMX MBeans under {@value #JMX_DOMAIN} and optionally logged periodically.
+ * Recording never takes a lock.
+ */
+public class EmailMetrics implements EmailMetricsMBean {
+
+    private static final Logger LOG = Logger.getLogger(EmailMetrics.class.getName());
+
+    public static final String JMX_DOMAIN = "org.graylog2.emailoutput";
+
+    public static final EmailMetrics INSTANCE = new EmailMetrics();
+
+    /**
+     * Supplies the backlog of one output.
+     */
+    public interface Backlog {
+        int getQueued();
+        int getRetrying();
+        int getSpooled();
+    }
+
+    private final StripedCounter messagesIn = new StripedCounter();
+    private final StripedCounter emailsSent = new StripedCounter();
+    private final StripedCounter bytesSent = new StripedCounter();
+    private final StripedCounter transientFailures = new StripedCounter();
+    private final StripedCounter permanentFailures = new StripedCounter();
+    private final StripedCounter shortCircuitedSends = new StripedCounter();
+    private final StripedCounter filtered = new StripedCounter();
+    private final StripedCounter duplicatesSuppressed = new StripedCounter();
+    private final StripedCounter rateLimited = new StripedCounter();
+
+    private final LatencyHistogram render = new LatencyHistogram();
+    private final LatencyHistogram encode = new LatencyHistogram();
+    private final LatencyHistogram connect = new LatencyHistogram();
+    private final LatencyHistogram send = new LatencyHistogram();
+
+    private final CopyOnWriteArrayList<Backlog> backlogs = new CopyOnWriteArrayList<Backlog>();
+
+    private boolean registered;
+    private ScheduledExecutorService logger;
+    private ScheduledFuture<?> logTask;
+
+    private EmailMetrics() {}
+
+    public void recordMessagesIn(int count) {
+        messagesIn.add(count);
+    }
+
+    public void recordFiltered() {
+        filtered.increment();
+    }
+
+    public void recordDuplicateSuppressed() {
+        duplicatesSuppressed.increment();
+    }
+
+    public void recordRateLimited() {
+        rateLimited.increment();
+    }
+
+    public void recordRender(long nanos) {
+        render.record(nanos);
+    }
+
+    public void recordEncode(long nanos) {
+        encode.record(nanos);
+    }
+
+    public void recordConnect(long nanos) {
+        connect.record(nanos);
+    }
+
+    public void recordSend(long nanos, long bytes) {
+        send.record(nanos);
+        emailsSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    public void recordFailure(MessagingException e) {
+        if (e instanceof CircuitBreaker.OpenException) {
+            shortCircuitedSends.increment();
+        } else if (MimeUtil.isPermanentFailure(e)) {
+            permanentFailures.increment();
+        } else {
+            transientFailures.increment();
+        }
+    }
+
+    public void addBacklog(Backlog backlog) {
+        backlogs.addIfAbsent(backlog);
+    }
+
+    /**
+     * Registers the MBeans with the platform MBean server, once.
+     */
+    public synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(JMX_DOMAIN + ":type=EmailMetrics"));
+            registerLatency(server, "render", render);
+            registerLatency(server, "encode", encode);
+            registerLatency(server, "connect", connect);
+            registerLatency(server, "send", send);
+        } catch (JMException e) {
+            LOG.log(Level.WARNING, "Could not register email output MBeans", e);
+        }
+    }
+
+    /**
+     * Logs a summary every interval, replacing any previous schedule.
+     *
+     * @param intervalSeconds the interval, or 0 to stop logging
+     */
+    public synchronized void logEvery(long intervalSeconds) {
+        if (null != logTask) {
+            logTask.cancel(false);
+            logTask = null;
+        }
+        if (intervalSeconds <= 0) {
+            return;
+        }
+        if (null == logger) {
+            logger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "email-output-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        logTask = logger.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                LOG.info(EmailMetrics.this.toString());
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    public long getEmailsSent() {
+        return emailsSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    public long getTransientFailures() {
+        return transientFailures.get();
+    }
+
+    public long getPermanentFailures() {
+        return permanentFailures.get();
+    }
+
+    public long getShortCircuitedSends() {
+        return shortCircuitedSends.get();
+    }
+
+    public long getFiltered() {
+        return filtered.get();
+    }
+
+    public long getDuplicatesSuppressed() {
+        return duplicatesSuppressed.get();
+    }
+
+    public long getRateLimited() {
+        return rateLimited.get();
+    }
+
+    public int getQueued() {
+        int queued = 0;
+        for (Backlog backlog : backlogs) {
+            queued += backlog.getQueued();
+        }
+        return queued;
+    }
+
+    public int getRetrying() {
+        int retrying = 0;
+        for (Backlog backlog : backlogs) {
+            retrying += backlog.getRetrying();
+        }
+        return retrying;
+    }
+
+    public int getSpooled() {
+        int spooled = 0;
+        for (Backlog backlog : backlogs) {
+            spooled += backlog.getSpooled();
+        }
+        return spooled;
+    }
+
+    public int getOpenConnections() {
+        return TransportPool.getOpenConnections();
+    }
+
+    public int getBusyConnections() {
+        return TransportPool.getBusyConnections();
+    }
+
+    public int getMaxConnections() {
+        return TransportPool.getMaxConnections();
+    }
+
+    @Override
+    public String toString() {
+        return "Email output: " + getMessagesIn() + " messages in, "
+                + getEmailsSent() + " emails sent (" + getBytesSent() + " bytes); failures: "
+                + getTransientFailures() + " transient, "
+                + getPermanentFailures() + " permanent, "
+                + getShortCircuitedSends() + " short-circuited; suppressed: "
+                + getFiltered() + " filtered, "
+                + getDuplicatesSuppressed() + " duplicates, "
+                + getRateLimited() + " rate limited; latency (mean/p99/max): render "
+                + render + ", encode " + encode + ", connect " + connect + ", send " + send + "; backlog: "
+                + getQueued() + " queued, "
+                + getRetrying() + " retrying, "
+                + getSpooled() + " spooled; connections: "
+                + getBusyConnections() + " busy, "
+                + getOpenConnections() + " open of "
+                + getMaxConnections();
+    }
+
+    private static void registerLatency(MBeanServer server, String name, LatencyHistogram histogram) throws JMException {
+        server.registerMBean(histogram, new ObjectName(JMX_DOMAIN + ":type=Latency,name=" + name));
+    }
+}
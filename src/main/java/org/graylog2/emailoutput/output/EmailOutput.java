@@ -20,24 +20,40 @@
 
 package org.graylog2.emailoutput.output;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.mail.MessagingException;
-import javax.mail.NoSuchProviderException;
 import javax.mail.Session;
-import javax.mail.Transport;
 import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
 
+import org.graylog2.emailoutput.output.cluster.ClusterCoordinator;
+import org.graylog2.emailoutput.output.cluster.ClusterStore;
+import org.graylog2.emailoutput.output.cluster.FileClusterStore;
+import org.graylog2.emailoutput.output.cluster.MongoClusterStore;
 import org.graylog2.emailoutput.output.html.HtmlEmailLayout;
+import org.graylog2.emailoutput.output.smtp.PipeliningSmtpTransport;
+import org.graylog2.emailoutput.output.template.TemplateEmailLayout;
+import org.graylog2.emailoutput.output.text.TextEmailLayout;
 import org.graylog2.plugin.GraylogServer;
 import org.graylog2.plugin.logmessage.LogMessage;
 import org.graylog2.plugin.outputs.MessageOutput;
@@ -51,6 +67,8 @@ import org.graylog2.plugin.streams.Stream;
  */
 public class EmailOutput implements MessageOutput {
     
+    private static final Logger LOG = Logger.getLogger(EmailOutput.class.getName());
+    
     private static final String PLUGIN_NAME = "Email output";
 
     private static final Map<String, String> FIELDS_PLUGIN_CONFIG;
@@ -58,29 +76,104 @@ public class EmailOutput implements MessageOutput {
         Map<String, String> config = new LinkedHashMap<String, String>();
         config.put("from_email", "Email address of sender");
         config.put("from_name", "Name of sender");
+        config.put("delivery", "Deliver emails by smtp (default) or by writing them to a pickup directory for a local MTA");
         config.put("hostname", "SMTP Hostname");
         config.put("port", "SMTP Port");
+        config.put("protocol", "SMTP protocol: smtp (default), smtps or smtp-nio (non-blocking, pipelined, without TLS)");
         config.put("use_tls", "Use TLS? (true/false)");
         config.put("use_auth", "Use authentication? (true/false)");
         config.put("username", "SMTP username");
         config.put("password", "SMTP password");
         config.put("web_interface_url", "Web Interface URL (for links)");
+        config.put("subject_prefix", "Email subject prefix");
+        config.put("thread_emails", "Add headers so mail clients thread repeats of a message together? (true/false)");
+        config.put("layout", "Email layout: html, text, multipart (HTML with a plain text alternative) or template");
+        config.put("template", "Template for each message (template layout)");
+        config.put("template_file", "Template file for each message (template layout)");
+        config.put("template_email", "Template wrapping a single message (template layout)");
+        config.put("template_email_file", "Template file wrapping a single message (template layout)");
+        config.put("template_digest", "Template wrapping the messages of a digest (template layout)");
+        config.put("template_digest_file", "Template file wrapping the messages of a digest (template layout)");
+        config.put("template_content_type", "Content type of rendered templates (default: text/html)");
+        config.put("template_reload_interval", "Check template files for changes every N seconds (0 to never)");
+        config.put("max_message_length", "Truncate message text in emails after N characters (0 for no limit)");
+        config.put("attach_full_message", "Attach the full text of truncated messages, gzipped? (true/false)");
+        config.put("async", "Send emails in the background? (true/false)");
+        config.put("async_queue_capacity", "Background send queue capacity of each of the four priorities");
+        config.put("async_backpressure", "When a priority's queue is full: block, drop_oldest or drop_newest");
+        config.put("async_workers", "Background send threads");
+        config.put("async_critical_workers", "Background send threads kept for critical emails (Emergency to Critical)");
+        config.put("async_lane_weights", "Turns of high, normal and bulk emails when all are waiting (default: 4,2,1); critical emails always go first");
+        config.put("send_connections", "Send over N SMTP connections in parallel (when not async)");
+        config.put("rate_limit_receiver", "Maximum emails per minute per receiver (0 for no limit)");
+        config.put("rate_limit_global", "Maximum emails per minute in total (0 for no limit)");
+        config.put("rate_limit_burst", "Emails allowed at once before rate limits apply");
+        config.put("rate_limit_summary_interval", "Send suppressed message summaries every N seconds");
+        config.put("pool_min_size", "Minimum open SMTP connections");
+        config.put("pool_max_size", "Maximum open SMTP connections");
+        config.put("pool_reserved_connections", "SMTP connections kept for critical emails (default: 1 if async, else 0)");
+        config.put("pool_idle_timeout", "Close idle SMTP connections after N seconds");
+        config.put("pool_max_messages", "Reconnect after N emails per SMTP connection");
+        config.put("pool_reconnect_interval", "Wait N milliseconds before reconnecting after a failure");
+        config.put("retry_max_attempts", "Attempts to send an email before giving up (0 to fail the batch instead)");
+        config.put("retry_initial_interval", "Wait N seconds before resending a failed email, doubling each time");
+        config.put("retry_max_interval", "Wait at most N seconds between attempts to send an email");
+        config.put("retry_max_pending", "Maximum emails waiting to be resent");
+        config.put("circuit_failure_threshold", "Stop sending after N consecutive failures (0 to never stop)");
+        config.put("circuit_open_interval", "Once stopped, try sending again after N seconds");
+        config.put("cluster_backend", "Share rate limits and duplicate suppression with other nodes: none, file or mongodb");
+        config.put("cluster_dir", "Directory shared by the nodes (file backend)");
+        config.put("cluster_mongodb_uri", "MongoDB URI, e.g. mongodb://localhost/graylog2 (mongodb backend)");
+        config.put("cluster_mongodb_collection", "MongoDB collection (default: email_output_cluster)");
+        config.put("cluster_sync_interval", "Synchronize with other nodes every N milliseconds");
+        config.put("cluster_retention", "Remember messages other nodes sent for N seconds (at least the longest dedup_window)");
+        config.put("metrics_log_interval", "Log email output metrics every N seconds (0 to disable)");
+        config.put("pickup_dir", "Directory to write emails to (pickup delivery)");
+        config.put("pickup_format", "eml (for sendmail -t -i), envelope (IIS/Exchange pickup) or maildir");
+        config.put("pickup_fsync", "Sync written emails to disk: always, interval or never");
+        config.put("pickup_fsync_interval", "Sync written emails every N milliseconds (for interval)");
+        config.put("spool_dir", "Store emails in this directory until sent (empty to disable)");
+        config.put("spool_segment_mb", "Start a new spool file every N megabytes");
+        config.put("spool_max_mb", "Send without spooling once the spool holds N megabytes");
+        config.put("spool_fsync", "Sync spooled emails to disk: always, interval or never");
+        config.put("spool_fsync_interval", "Sync spooled emails every N milliseconds (for interval)");
+        config.put("spool_retry_interval", "Resend spooled emails every N seconds");
         FIELDS_PLUGIN_CONFIG = Collections.unmodifiableMap(config);
     }
     private static final Collection<String> FIELDS_PLUGIN_REQUIRED = Collections.unmodifiableCollection(Arrays.asList( 
             "from_email",
             "from_name",
-            "hostname",
-            "port",
             "use_tls",
             "use_auth"));
+    private static final Collection<String> FIELDS_SMTP_REQUIRED = Collections.unmodifiableCollection(Arrays.asList( 
+            "hostname",
+            "port"));
     
     private static final Map<String, String> FIELDS_STREAM_CONFIG;
     static {
         Map<String, String> config = new LinkedHashMap<String, String>();
-        config.put("receiver", "Receiver email address");
-        config.put("subject", "Email subject");
+        config.put("receiver", "Receiver email addresses (comma separated)");
+        config.put("cc", "CC email addresses (comma separated)");
+        config.put("bcc", "BCC email addresses (comma separated)");
+        config.put("subject", "Email subject; may use template values, such as {{level_name}} on {{host}}");
         config.put("fields", "Include fields (regex)");
+        config.put("min_level", "Only send messages at least this severe, e.g. 3 or Error");
+        config.put("hosts", "Only send messages from these hosts (comma separated)");
+        config.put("exclude_hosts", "Never send messages from these hosts (comma separated)");
+        config.put("facilities", "Only send messages from these facilities (comma separated)");
+        config.put("exclude_facilities", "Never send messages from these facilities (comma separated)");
+        config.put("message_pattern", "Only send messages whose short message contains a match (regex)");
+        config.put("exclude_message_pattern", "Never send messages whose short message contains a match (regex)");
+        config.put("require_fields", "Only send messages with these fields: _name, !_name or _name=value (comma separated)");
+        config.put("template", "Template for each message, overriding the plugin's (template layout)");
+        config.put("digest", "Send one digest email per batch? (true/false)");
+        config.put("digest_window", "Aggregate digests across batches for up to N seconds");
+        config.put("digest_max_messages", "Send aggregated digest after N messages");
+        config.put("digest_max_bytes", "Send aggregated digest after N bytes of message text");
+        config.put("dedup_window", "Suppress repeats of a message for N seconds (0 to disable)");
+        config.put("dedup_fields", "Fields identifying repeated messages, to suppress and thread them (default: " + MessageFingerprint.DEFAULT_FIELDS + ")");
+        config.put("dedup_max_entries", "Remember at most N distinct messages for suppressing repeats");
+        config.put("priority", "Send as critical, high, normal or bulk (default: by level; Error is high, Warning and Notice normal, less severe bulk)");
         FIELDS_STREAM_CONFIG = Collections.unmodifiableMap(config);
     }
     private static final Collection<String> FIELDS_STREAM_REQUIRED = Collections.unmodifiableCollection(Arrays.asList( 
@@ -91,7 +184,41 @@ public class EmailOutput implements MessageOutput {
     private Map<String, String> configuration;
     private Session session;
     private InternetAddress from;
+    private TransportPool transportPool;
+    private final StreamConfigCache streamConfigs = new StreamConfigCache();
     private EmailLayout layout = new HtmlEmailLayout();
+    private MessageTextLimit textLimit = MessageTextLimit.UNLIMITED;
+    private boolean threadEmails;
+    private MessageAggregator aggregator;
+    private AsyncSender asyncSender;
+    private ParallelSender parallelSender;
+    private RateLimiter rateLimiter;
+    private ClusterCoordinator cluster;
+    private MailSpool spool;
+    private PickupDirectory pickupDirectory;
+    private RetryScheduler retryScheduler;
+    private CircuitBreaker circuitBreaker = new CircuitBreaker(0, 0);
+    private boolean shutdownHookRegistered;
+    
+    private final EmailMetrics.Backlog backlog = new EmailMetrics.Backlog() {
+        public int getQueued() {
+            synchronized (EmailOutput.this) {
+                return (null == asyncSender) ? 0 : asyncSender.getQueueSize();
+            }
+        }
+        
+        public int getRetrying() {
+            synchronized (EmailOutput.this) {
+                return (null == retryScheduler) ? 0 : retryScheduler.getPending();
+            }
+        }
+        
+        public int getSpooled() {
+            synchronized (EmailOutput.this) {
+                return (null == spool) ? 0 : spool.getPending();
+            }
+        }
+    };
     
     
     public String getName() {
@@ -102,11 +229,28 @@ public class EmailOutput implements MessageOutput {
     }
     private void checkPluginConfiguration(Map<String, String> configuration) throws MessageOutputConfigurationException {
         checkRequiredFields(configuration, FIELDS_PLUGIN_REQUIRED);
+        if (isPickupDelivery(configuration)) {
+            if (!configSet(configuration, "pickup_dir")) { throw new MessageOutputConfigurationException("Missing configuration option: pickup_dir"); }
+        } else {
+            checkRequiredFields(configuration, FIELDS_SMTP_REQUIRED);
+        }
         
         if (configuration.get("use_auth").equals("true")) {
             if (!configSet(configuration, "username")) { throw new MessageOutputConfigurationException("Missing configuration option: username"); }
             if (!configSet(configuration, "password")) { throw new MessageOutputConfigurationException("Missing configuration option: password"); }
         }
+        if (PipeliningSmtpTransport.PROTOCOL.equals(configuration.get("protocol")) && configuration.get("use_tls").equals("true")) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: use_tls; not supported with protocol " + PipeliningSmtpTransport.PROTOCOL);
+        }
+    }
+    private static boolean isPickupDelivery(Map<String, String> configuration) throws MessageOutputConfigurationException {
+        String delivery = configuration.get("delivery");
+        if (null == delivery || delivery.trim().isEmpty() || "smtp".equalsIgnoreCase(delivery.trim())) {
+            return false;
+        } else if ("pickup".equalsIgnoreCase(delivery.trim())) {
+            return true;
+        }
+        throw new MessageOutputConfigurationException("Invalid configuration option: delivery; unknown delivery " + delivery);
     }
     public Map<String, String> getRequestedStreamConfiguration() {
         return FIELDS_STREAM_CONFIG;
@@ -140,56 +284,851 @@ public class EmailOutput implements MessageOutput {
         
         this.from = toAddress(pluginConfiguration.get("from_email"), pluginConfiguration.get("from_name"));
         
-        this.layout.initialize(pluginConfiguration);
+        startPickupDirectory(pluginConfiguration);
+        startTransportPool(pluginConfiguration);
+        startCluster(pluginConfiguration);
+        
+        this.circuitBreaker = new CircuitBreaker(
+                parseInt(pluginConfiguration, "circuit_failure_threshold", 5),
+                parseInt(pluginConfiguration, "circuit_open_interval", 30) * 1000L);
+        startRetryScheduler(pluginConfiguration);
+        startSpool(pluginConfiguration);
+        
+        EmailLayout configuredLayout = createLayout(pluginConfiguration.get("layout"));
+        configuredLayout.initialize(pluginConfiguration);
+        this.layout = configuredLayout;
+        // Compiled stream configurations hold on to the cluster coordinator and templates compiled
+        // by the layout; recompile them with the new ones
+        this.streamConfigs.clear();
+        this.textLimit = MessageTextLimit.fromConfiguration(pluginConfiguration);
+        this.threadEmails = Boolean.parseBoolean(pluginConfiguration.get("thread_emails"));
+        
+        EmailMetrics.INSTANCE.register();
+        EmailMetrics.INSTANCE.addBacklog(backlog);
+        EmailMetrics.INSTANCE.logEvery(parseInt(pluginConfiguration, "metrics_log_interval", 300));
+        
+        startRateLimiter(pluginConfiguration);
+        
+        if (Boolean.parseBoolean(pluginConfiguration.get("async"))) {
+            stopParallelSender();
+            startAsyncSender(pluginConfiguration);
+        } else {
+            stopAsyncSender();
+            if (parseInt(pluginConfiguration, "send_connections", 1) > 1) {
+                startParallelSender(pluginConfiguration);
+            } else {
+                stopParallelSender();
+            }
+        }
     }
-
-    public void write(List<LogMessage> messages, OutputStreamConfiguration streamConfiguration, GraylogServer server) throws Exception {
+    
+    private static EmailLayout createLayout(String name) throws MessageOutputConfigurationException {
+        if (null == name || name.trim().isEmpty() || "html".equalsIgnoreCase(name.trim())) {
+            return new HtmlEmailLayout();
+        } else if ("text".equalsIgnoreCase(name.trim())) {
+            return new TextEmailLayout();
+        } else if ("multipart".equalsIgnoreCase(name.trim())) {
+            return new HtmlEmailLayout(true);
+        } else if ("template".equalsIgnoreCase(name.trim())) {
+            return new TemplateEmailLayout();
+        }
+        throw new MessageOutputConfigurationException("Invalid configuration option: layout; unknown layout " + name);
+    }
+    
+    private void startRateLimiter(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        int perReceiver = parseInt(pluginConfiguration, "rate_limit_receiver", 0);
+        int global = parseInt(pluginConfiguration, "rate_limit_global", 0);
+        
+        RateLimiter limiter = null;
+        if (perReceiver > 0 || global > 0) {
+            limiter = new RateLimiter(
+                    perReceiver,
+                    global,
+                    parseInt(pluginConfiguration, "rate_limit_burst", 10),
+                    parseInt(pluginConfiguration, "rate_limit_summary_interval", 300),
+                    new RateLimiter.SummaryHandler() {
+                        public void sendSummary(CompiledStreamConfig streamConfiguration, InternetAddress[] to, long suppressed,
+                                Map<String, Long> suppressedBySubject, long intervalSeconds) throws Exception {
+                            MimeMessage message = MimeUtil.buildMessage(
+                                    session,
+                                    from,
+                                    to,
+                                    new InternetAddress[0],
+                                    new InternetAddress[0],
+                                    layout.getSuppressedSubject(streamConfiguration, suppressed),
+                                    layout.formatSuppressedBody(suppressedBySubject, intervalSeconds));
+                            if (threadEmails) {
+                                MimeUtil.setThreadHeaders(message, streamConfiguration.getThreadId(), from);
+                            }
+                            deliver(message);
+                        }
+                    },
+                    getCluster());
+        }
+        
+        RateLimiter previous;
+        synchronized (this) {
+            previous = rateLimiter;
+            rateLimiter = limiter;
+            if (null != limiter) {
+                registerShutdownHook();
+            }
+        }
+        if (null != previous) {
+            previous.shutdown();
+        }
+    }
+    
+    private void startCluster(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        String backend = pluginConfiguration.get("cluster_backend");
+        long retentionMillis = parseInt(pluginConfiguration, "cluster_retention", 3600) * 1000L;
+        // Each initialization is a node of its own, even within one JVM
+        String nodeId = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+        
+        ClusterStore store;
+        if (null == backend || backend.trim().isEmpty() || "none".equalsIgnoreCase(backend.trim())) {
+            store = null;
+        } else if ("file".equalsIgnoreCase(backend.trim())) {
+            if (!configSet(pluginConfiguration, "cluster_dir")) {
+                throw new MessageOutputConfigurationException("Missing configuration option: cluster_dir");
+            }
+            try {
+                store = new FileClusterStore(new File(pluginConfiguration.get("cluster_dir")), nodeId, retentionMillis);
+            } catch (IOException e) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: cluster_dir; " + e.getMessage());
+            }
+        } else if ("mongodb".equalsIgnoreCase(backend.trim())) {
+            if (!configSet(pluginConfiguration, "cluster_mongodb_uri")) {
+                throw new MessageOutputConfigurationException("Missing configuration option: cluster_mongodb_uri");
+            }
+            String collection = configSet(pluginConfiguration, "cluster_mongodb_collection")
+                    ? pluginConfiguration.get("cluster_mongodb_collection")
+                    : "email_output_cluster";
+            try {
+                store = new MongoClusterStore(pluginConfiguration.get("cluster_mongodb_uri"), collection, nodeId, retentionMillis);
+            } catch (IOException e) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: cluster_mongodb_uri; " + e.getMessage());
+            }
+        } else {
+            throw new MessageOutputConfigurationException("Invalid configuration option: cluster_backend; unknown backend " + backend);
+        }
+        
+        ClusterCoordinator coordinator = (null == store) ? null : new ClusterCoordinator(
+                store,
+                parseInt(pluginConfiguration, "cluster_sync_interval", 1000),
+                retentionMillis,
+                ClusterCoordinator.DEFAULT_MAX_FINGERPRINTS);
+        
+        ClusterCoordinator previous;
+        synchronized (this) {
+            previous = cluster;
+            cluster = coordinator;
+        }
+        if (null != previous) {
+            previous.close();
+        }
+    }
+    
+    private synchronized ClusterCoordinator getCluster() {
+        return cluster;
+    }
+    
+    private void startRetryScheduler(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        int maxAttempts = parseInt(pluginConfiguration, "retry_max_attempts", 5);
+        
+        RetryScheduler retrier = null;
+        if (maxAttempts > 0) {
+            retrier = new RetryScheduler(
+                    maxAttempts,
+                    parseInt(pluginConfiguration, "retry_initial_interval", 5) * 1000L,
+                    parseInt(pluginConfiguration, "retry_max_interval", 300) * 1000L,
+                    parseInt(pluginConfiguration, "retry_max_pending", 10000),
+                    new RetryScheduler.Handler() {
+                        public void send(MimeMessage message) throws MessagingException, InterruptedException {
+                            sendNow(message);
+                        }
+                    });
+        }
+        
+        RetryScheduler previous;
+        synchronized (this) {
+            previous = retryScheduler;
+            retryScheduler = retrier;
+            if (null != retrier) {
+                registerShutdownHook();
+            }
+        }
+        if (null != previous) {
+            previous.shutdown();
+        }
+    }
+    
+    private void startSpool(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        // A spool directory can only be open once, so close the previous spool first
+        MailSpool previous;
+        synchronized (this) {
+            previous = spool;
+            spool = null;
+        }
+        if (null != previous) {
+            previous.close();
+        }
+        
+        if (!configSet(pluginConfiguration, "spool_dir")) {
+            return;
+        }
+        
+        MailSpool.FsyncPolicy fsyncPolicy;
+        try {
+            fsyncPolicy = MailSpool.FsyncPolicy.parse(pluginConfiguration.get("spool_fsync"));
+        } catch (IllegalArgumentException e) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: spool_fsync; " + e.getMessage());
+        }
+        
+        MailSpool opened;
+        try {
+            opened = new MailSpool(
+                    new File(pluginConfiguration.get("spool_dir")),
+                    session,
+                    parseInt(pluginConfiguration, "spool_segment_mb", 16) * 1024L * 1024L,
+                    parseInt(pluginConfiguration, "spool_max_mb", 1024) * 1024L * 1024L,
+                    fsyncPolicy,
+                    parseInt(pluginConfiguration, "spool_fsync_interval", 1000),
+                    parseInt(pluginConfiguration, "spool_retry_interval", 30) * 1000L,
+                    new MailSpool.Handler() {
+                        public void send(MimeMessage message) throws Exception {
+                            try {
+                                sendNow(message);
+                            } catch (MessagingException e) {
+                                if (!MimeUtil.isPermanentFailure(e)) {
+                                    throw e;
+                                }
+                                LOG.log(Level.SEVERE, "Could not send " + MimeUtil.describe(message) + "; not retrying", e);
+                            }
+                        }
+                    });
+        } catch (IOException e) {
+            throw new MessageOutputConfigurationException("Could not open spool directory: "
+                    + pluginConfiguration.get("spool_dir") + "; " + e.getMessage());
+        }
+        
+        synchronized (this) {
+            spool = opened;
+            registerShutdownHook();
+        }
+    }
+    
+    private void startPickupDirectory(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        // Move the emails the previous directory has waiting for a sync into place before the new one
+        // starts, so they are never mistaken for a crash's leftovers
+        PickupDirectory previous;
+        synchronized (this) {
+            previous = pickupDirectory;
+            pickupDirectory = null;
+        }
+        if (null != previous) {
+            previous.close();
+        }
+        
+        PickupDirectory opened = null;
+        if (isPickupDelivery(pluginConfiguration)) {
+            PickupDirectory.Format format;
+            try {
+                format = PickupDirectory.Format.parse(pluginConfiguration.get("pickup_format"));
+            } catch (IllegalArgumentException e) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: pickup_format; " + e.getMessage());
+            }
+            MailSpool.FsyncPolicy fsyncPolicy;
+            try {
+                fsyncPolicy = MailSpool.FsyncPolicy.parse(pluginConfiguration.get("pickup_fsync"));
+            } catch (IllegalArgumentException e) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: pickup_fsync; " + e.getMessage());
+            }
+            try {
+                opened = new PickupDirectory(
+                        new File(pluginConfiguration.get("pickup_dir")),
+                        format,
+                        fsyncPolicy,
+                        parseInt(pluginConfiguration, "pickup_fsync_interval", 1000));
+            } catch (IOException e) {
+                throw new MessageOutputConfigurationException("Could not open pickup directory: "
+                        + pluginConfiguration.get("pickup_dir") + "; " + e.getMessage());
+            }
+        }
+        
+        if (null != opened) {
+            synchronized (this) {
+                pickupDirectory = opened;
+                registerShutdownHook();
+            }
+        }
+    }
+    
+    private void startTransportPool(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        TransportPool pool = isPickupDelivery(pluginConfiguration) ? null : TransportPool.get(session, pluginConfiguration);
+        
+        TransportPool previous;
+        synchronized (this) {
+            previous = transportPool;
+            transportPool = pool;
+        }
+        // Closes the previous pool only if no other output shares it
+        if (null != previous) {
+            previous.close();
+        }
+    }
+    
+    private synchronized TransportPool getTransportPool() {
+        return transportPool;
+    }
+    
+    private void startParallelSender(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        ParallelSender sender = new ParallelSender(
+                parseInt(pluginConfiguration, "send_connections", 1),
+                new ParallelSender.Handler() {
+                    public void send(MimeMessage message) throws Exception {
+                        deliver(message);
+                    }
+                });
         
-        Transport transport = null;
+        ParallelSender previous;
+        synchronized (this) {
+            previous = parallelSender;
+            parallelSender = sender;
+            registerShutdownHook();
+        }
+        if (null != previous) {
+            previous.shutdown();
+        }
+    }
+    
+    private void startAsyncSender(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        AsyncSender.Backpressure backpressure;
         try {
-            for (LogMessage msg : messages) {
-                for (Stream stream : msg.getStreams()) {
-                    Set<Map<String, String>> configuredOutputs = streamConfiguration.get(stream.getId());
+            backpressure = AsyncSender.Backpressure.parse(pluginConfiguration.get("async_backpressure"));
+        } catch (IllegalArgumentException e) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: async_backpressure; " + e.getMessage());
+        }
+        
+        AsyncSender sender = new AsyncSender(
+                parseInt(pluginConfiguration, "async_queue_capacity", 10000),
+                backpressure,
+                parseInt(pluginConfiguration, "async_workers", 1),
+                parseInt(pluginConfiguration, "async_critical_workers", 1),
+                parseWeights(pluginConfiguration, "async_lane_weights", AsyncSender.DEFAULT_WEIGHTS),
+                new AsyncSender.Handler() {
+                    public void send(PendingEmail email) throws Exception {
+                        EmailOutput.this.send(email);
+                    }
+                });
+        
+        AsyncSender previous;
+        synchronized (this) {
+            previous = asyncSender;
+            asyncSender = sender;
+            registerShutdownHook();
+        }
+        if (null != previous) {
+            previous.shutdown();
+        }
+    }
     
-                    if (configuredOutputs != null && !configuredOutputs.isEmpty()) {
+    /**
+     * Drains the background send queue, if there is one; emails are sent from the caller's thread afterwards.
+     */
+    private void stopAsyncSender() {
+        AsyncSender previous;
+        synchronized (this) {
+            previous = asyncSender;
+            asyncSender = null;
+        }
+        if (null != previous) {
+            previous.shutdown();
+        }
+    }
+    
+    /**
+     * Waits for the parallel sender's lanes to finish, if there are any; batches are sent one email at a time afterwards.
+     */
+    private void stopParallelSender() {
+        ParallelSender previous;
+        synchronized (this) {
+            previous = parallelSender;
+            parallelSender = null;
+        }
+        if (null != previous) {
+            previous.shutdown();
+        }
+    }
+    
+    /**
+     * Sends any digests still held by the aggregator, then drains the background send
+     * queue. Registered as a JVM shutdown hook when either is first used.
+     */
+    public void shutdown() {
+        MessageAggregator currentAggregator;
+        synchronized (this) {
+            currentAggregator = aggregator;
+            aggregator = null;
+        }
+        if (null != currentAggregator) {
+            currentAggregator.shutdown();
+        }
+        
+        stopAsyncSender();
+        stopParallelSender();
+        
+        RateLimiter currentRateLimiter;
+        synchronized (this) {
+            currentRateLimiter = rateLimiter;
+            rateLimiter = null;
+        }
+        if (null != currentRateLimiter) {
+            currentRateLimiter.shutdown();
+        }
+        
+        ClusterCoordinator currentCluster;
+        synchronized (this) {
+            currentCluster = cluster;
+            cluster = null;
+        }
+        if (null != currentCluster) {
+            currentCluster.close();
+        }
+        
+        RetryScheduler currentRetryScheduler;
+        synchronized (this) {
+            currentRetryScheduler = retryScheduler;
+            retryScheduler = null;
+        }
+        if (null != currentRetryScheduler) {
+            currentRetryScheduler.shutdown();
+        }
+        
+        MailSpool currentSpool;
+        synchronized (this) {
+            currentSpool = spool;
+            spool = null;
+        }
+        if (null != currentSpool) {
+            currentSpool.close();
+        }
+        
+        PickupDirectory currentPickupDirectory;
+        synchronized (this) {
+            currentPickupDirectory = pickupDirectory;
+            pickupDirectory = null;
+        }
+        if (null != currentPickupDirectory) {
+            currentPickupDirectory.close();
+        }
+        
+        TransportPool currentPool = getTransportPool();
+        if (null != currentPool) {
+            currentPool.closeIdle();
+        }
+    }
+
+    public void write(List<LogMessage> messages, OutputStreamConfiguration streamConfiguration, GraylogServer server) throws Exception {
+        EmailMetrics.INSTANCE.recordMessagesIn(messages.size());
+        
+        List<PendingEmail> emails = new ArrayList<PendingEmail>();
+        Map<List<String>, PendingEmail> digests = new LinkedHashMap<List<String>, PendingEmail>();
+        // The same configuration maps are seen for every message in the batch; look each up only once
+        Map<Map<String, String>, CompiledStreamConfig> compiledConfigs = new IdentityHashMap<Map<String, String>, CompiledStreamConfig>();
+        Map<Object, PendingEmail> messageEmails = new HashMap<Object, PendingEmail>();
+        // Digests the message is already in, so a message routed through several streams is listed once
+        Set<List<String>> messageDigests = new HashSet<List<String>>();
+        for (LogMessage msg : messages) {
+            messageEmails.clear();
+            messageDigests.clear();
+            for (Stream stream : msg.getStreams()) {
+                Set<Map<String, String>> configuredOutputs = streamConfiguration.get(stream.getId());
+
+                if (configuredOutputs != null && !configuredOutputs.isEmpty()) {
+                    
+                    for (Map<String, String> rawConfig : configuredOutputs) {
+                        
+                        CompiledStreamConfig config = compiledConfigs.get(rawConfig);
+                        if (null == config) {
+                            config = compileStreamConfiguration(rawConfig);
+                            compiledConfigs.put(rawConfig, config);
+                        }
+                        
+                        if (!config.accepts(msg)) {
+                            EmailMetrics.INSTANCE.recordFiltered();
+                            continue;
+                        }
+                        
+                        int duplicates = 0;
+                        if (null != config.getDuplicateFilter()) {
+                            duplicates = config.getDuplicateFilter().check(msg, System.currentTimeMillis());
+                            if (DuplicateFilter.DUPLICATE == duplicates) {
+                                EmailMetrics.INSTANCE.recordDuplicateSuppressed();
+                                continue;
+                            }
+                        }
                         
-                        for (Map<String, String> config : configuredOutputs) {
-                            
-                            transport = sendMessage(transport, msg, config);
+                        if (config.isAggregated()) {
+                            if (messageDigests.add(config.getAggregationKey())) {
+                                getAggregator().add(msg, duplicates, config);
+                            } else {
+                                getAggregator().addRecipients(config);
+                            }
+                        } else if (config.isDigest()) {
+                            addToDigest(digests, msg, duplicates, config, !messageDigests.add(config.getDigestKey()));
+                        } else {
+                            // Outputs that would render this message identically share one email
+                            Object renderKey = (0 == duplicates)
+                                    ? config.getRenderKey()
+                                    : Arrays.asList(config.getRenderKey(), duplicates);
+                            PendingEmail email = messageEmails.get(renderKey);
+                            if (null == email) {
+                                email = new PendingEmail(msg, duplicates, config);
+                                messageEmails.put(renderKey, email);
+                                emails.add(email);
+                            } else {
+                                email.addRecipients(config);
+                            }
                         }
                     }
                 }
             }
-        } finally {
-            if(null != transport) {
-                transport.close();
+        }
+        emails.addAll(digests.values());
+        
+        dispatch(emails);
+    }
+    
+    private void dispatch(List<PendingEmail> emails) throws Exception {
+        AsyncSender sender;
+        ParallelSender lanes;
+        RateLimiter limiter;
+        synchronized (this) {
+            sender = asyncSender;
+            lanes = parallelSender;
+            limiter = rateLimiter;
+        }
+        if (null != limiter) {
+            emails = applyRateLimit(limiter, emails);
+        }
+        if (emails.size() > 1) {
+            emails = byPriority(emails);
+        }
+        if (null != sender) {
+            for (PendingEmail email : emails) {
+                if (!sender.enqueue(email)) {
+                    // Shut down by a re-initialize or the shutdown hook in the meantime
+                    send(email);
+                }
+            }
+        } else if (null != lanes && emails.size() > 1) {
+            List<MimeMessage> rendered = new ArrayList<MimeMessage>(emails.size());
+            for (PendingEmail email : emails) {
+                rendered.add(render(email));
+            }
+            lanes.sendAll(rendered);
+        } else {
+            for (PendingEmail email : emails) {
+                send(email);
             }
         }
     }
-    public Transport sendMessage(Transport transport, LogMessage message, Map<String, String> streamConfig)
-            throws MessageOutputConfigurationException, NoSuchProviderException, MessagingException, IOException {
-    	
-        checkStreamConfiguration(streamConfig);
-        
-        if(null == transport) {
-            transport = JavaMailUtil.buildTransport(
-                    session,
-                    configuration.get("hostname"),
-                    Integer.parseInt(configuration.get("port")),
-                    Boolean.parseBoolean(configuration.get("use_auth")),
-                    configuration.get("username"),
-                    configuration.get("password"));
+    
+    /**
+     * @return the emails, most urgent first and otherwise in their original order
+     */
+    private static List<PendingEmail> byPriority(List<PendingEmail> emails) {
+        List<PendingEmail> sorted = new ArrayList<PendingEmail>(emails.size());
+        for (EmailPriority priority : EmailPriority.values()) {
+            for (PendingEmail email : emails) {
+                if (email.getPriority() == priority) {
+                    sorted.add(email);
+                }
+            }
         }
+        return sorted;
+    }
+    
+    private List<PendingEmail> applyRateLimit(RateLimiter limiter, List<PendingEmail> emails) {
+        List<PendingEmail> allowed = new ArrayList<PendingEmail>(emails.size());
+        for (PendingEmail email : emails) {
+            if (limiter.tryAcquire(email, getSubject(email))) {
+                allowed.add(email);
+            } else {
+                EmailMetrics.INSTANCE.recordRateLimited();
+            }
+        }
+        return allowed;
+    }
+    
+    private String getSubject(PendingEmail email) {
+        // Remembered, so a subject template is rendered once for the rate limit and the email
+        String subject = email.getSubject();
+        if (null == subject) {
+            subject = email.isDigest()
+                    ? layout.getDigestSubject(email.getMessages(), email.getStreamConfiguration())
+                    : layout.getSubject(email.getMessages().get(0), email.getStreamConfiguration());
+            email.setSubject(subject);
+        }
+        return subject;
+    }
+    
+    public void send(PendingEmail email)
+            throws MessageOutputConfigurationException, MessagingException, IOException, InterruptedException {
+        
+        deliver(render(email), email.getPriority());
+    }
+    
+    private MimeMessage render(PendingEmail email) throws MessageOutputConfigurationException, MessagingException, IOException {
+        CompiledStreamConfig streamConfig = email.getStreamConfiguration();
         
-        MimeUtil.sendMessage(
+        String subject = getSubject(email);
+        EmailBody body = email.isDigest()
+                ? layout.formatDigestBody(email.getMessages(), streamConfig, email.getDuplicates())
+                : layout.formatMessageBody(email.getMessages().get(0), streamConfig, email.getDuplicates(email.getMessages().get(0)));
+        
+        MimeMessage message = MimeUtil.buildMessage(
                 session,
-                transport,
                 from,
-                toAddress(streamConfig.get("receiver")),
-                layout.getSubject(message, streamConfig),
-                layout.formatMessageBody(message, streamConfig),
-                layout.getContentType());
-        return transport;
+                email.getTo(),
+                email.getCc(),
+                email.getBcc(),
+                subject,
+                body,
+                getAttachments(email));
+        if (threadEmails) {
+            MimeUtil.setThreadHeaders(message, email.getThreadId(), from);
+        }
+        return message;
+    }
+    
+    /**
+     * @return the full text of each message that was truncated in the body, if those are to be attached
+     */
+    private List<MimeBodyPart> getAttachments(PendingEmail email) throws MessagingException {
+        if (!textLimit.isAttach()) {
+            return Collections.emptyList();
+        }
+        List<MimeBodyPart> attachments = null;
+        for (LogMessage msg : email.getMessages()) {
+            String text = MessageTextLimit.getText(msg);
+            if (textLimit.isTruncated(text)) {
+                if (null == attachments) {
+                    attachments = new ArrayList<MimeBodyPart>();
+                }
+                attachments.add(MimeUtil.buildGzipAttachment(MessageTextLimit.getAttachmentName(msg), text));
+            }
+        }
+        return (null == attachments) ? Collections.<MimeBodyPart>emptyList() : attachments;
+    }
+    
+    /**
+     * Sends the message, first writing it to the spool if there is one. A transient failure
+     * is left to the spool or the retry scheduler to resend rather than failing the caller,
+     * so the batch is not retried and emails already sent are not sent again.
+     */
+    private void deliver(MimeMessage message) throws MessagingException, InterruptedException {
+        deliver(message, EmailPriority.NORMAL);
+    }
+    
+    private void deliver(MimeMessage message, EmailPriority priority) throws MessagingException, InterruptedException {
+        MailSpool currentSpool;
+        synchronized (this) {
+            currentSpool = spool;
+        }
+        long id = (null != currentSpool) ? currentSpool.append(message) : MailSpool.NOT_SPOOLED;
+        if (MailSpool.NOT_SPOOLED == id) {
+            try {
+                sendNow(message, priority);
+            } catch (MessagingException e) {
+                retryLater(message, e);
+            }
+            return;
+        }
+        
+        try {
+            sendNow(message, priority);
+        } catch (MessagingException e) {
+            if (MimeUtil.isPermanentFailure(e)) {
+                currentSpool.acknowledge(id);
+                LOG.log(Level.SEVERE, "Could not send " + MimeUtil.describe(message) + "; not retrying", e);
+            } else {
+                currentSpool.release(id);
+                Level level = (e instanceof CircuitBreaker.OpenException) ? Level.FINE : Level.WARNING;
+                LOG.log(level, "Could not send " + MimeUtil.describe(message) + "; it will be resent from the spool", e);
+            }
+            return;
+        } catch (InterruptedException e) {
+            currentSpool.release(id);
+            throw e;
+        } catch (RuntimeException e) {
+            currentSpool.release(id);
+            throw e;
+        }
+        currentSpool.acknowledge(id);
+    }
+    
+    private void retryLater(MimeMessage message, MessagingException failure) throws MessagingException {
+        RetryScheduler retrier;
+        synchronized (this) {
+            retrier = retryScheduler;
+        }
+        if (null == retrier) {
+            throw failure;
+        }
+        if (MimeUtil.isPermanentFailure(failure)) {
+            LOG.log(Level.SEVERE, "Could not send " + MimeUtil.describe(message) + "; not retrying", failure);
+            return;
+        }
+        retrier.retry(message, failure);
+    }
+    
+    private void sendNow(MimeMessage message) throws MessagingException, InterruptedException {
+        sendNow(message, EmailPriority.NORMAL);
+    }
+    
+    private void sendNow(MimeMessage message, EmailPriority priority) throws MessagingException, InterruptedException {
+        PickupDirectory pickup;
+        synchronized (this) {
+            pickup = pickupDirectory;
+        }
+        if (null != pickup) {
+            // The local MTA takes care of the relay; there is nothing for the circuit breaker to watch
+            pickup.deliver(message);
+            return;
+        }
+        
+        // Connections go back to the pool they came from, even if it was replaced meanwhile
+        TransportPool pool = getTransportPool();
+        if (null == pool) {
+            // Switching between the pickup directory and SMTP; checked before the circuit breaker,
+            // which would otherwise count a trial that never reached the relay
+            throw new MessagingException("No SMTP connection pool open while the output is reconfigured");
+        }
+        
+        CircuitBreaker breaker = circuitBreaker;
+        try {
+            breaker.check(System.currentTimeMillis());
+        } catch (CircuitBreaker.OpenException e) {
+            EmailMetrics.INSTANCE.recordFailure(e);
+            throw e;
+        }
+        
+        // A permanent failure is the relay answering, so only other failures count against it
+        boolean relayAvailable = false;
+        try {
+            TransportPool.PooledTransport transport = pool.borrow(EmailPriority.CRITICAL == priority);
+            boolean sent = false;
+            try {
+                MimeUtil.sendMessage(transport.getTransport(), message);
+                transport.recordSend();
+                sent = true;
+            } finally {
+                if (sent) {
+                    pool.release(transport);
+                } else {
+                    pool.invalidate(transport);
+                }
+            }
+            relayAvailable = true;
+        } catch (MessagingException e) {
+            EmailMetrics.INSTANCE.recordFailure(e);
+            relayAvailable = MimeUtil.isPermanentFailure(e);
+            throw e;
+        } finally {
+            if (relayAvailable) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure(System.currentTimeMillis());
+            }
+        }
+    }
+    
+    private synchronized MessageAggregator getAggregator() {
+        if (null == aggregator) {
+            aggregator = new MessageAggregator(new MessageAggregator.FlushHandler() {
+                public void flush(PendingEmail digest) throws Exception {
+                    dispatch(Collections.singletonList(digest));
+                }
+            });
+            registerShutdownHook();
+        }
+        return aggregator;
+    }
+    
+    private synchronized void registerShutdownHook() {
+        if (!shutdownHookRegistered) {
+            Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                public void run() {
+                    shutdown();
+                }
+            }, "email-output-shutdown"));
+            shutdownHookRegistered = true;
+        }
+    }
+    
+    private CompiledStreamConfig compileStreamConfiguration(Map<String, String> streamConfig) throws MessageOutputConfigurationException {
+        CompiledStreamConfig compiled = streamConfigs.get(streamConfig);
+        if (null == compiled) {
+            checkStreamConfiguration(streamConfig);
+            compiled = new CompiledStreamConfig(
+                    streamConfig,
+                    toAddresses("receiver", streamConfig.get("receiver")),
+                    toAddresses("cc", streamConfig.get("cc")),
+                    toAddresses("bcc", streamConfig.get("bcc")),
+                    configuration.get("subject_prefix"),
+                    getCluster());
+            layout.checkStreamConfiguration(compiled);
+            streamConfigs.put(compiled);
+        }
+        return compiled;
+    }
+    
+    /**
+     * @param listed whether the message is already in this digest, and only the recipients are added
+     */
+    private void addToDigest(Map<List<String>, PendingEmail> digests, LogMessage message, int duplicates, CompiledStreamConfig streamConfig, boolean listed) {
+        // Group by receiver, subject and the settings the digest is rendered and sent with
+        List<String> key = streamConfig.getDigestKey();
+        PendingEmail digest = digests.get(key);
+        if (null == digest) {
+            digest = new PendingEmail(new ArrayList<LogMessage>(), streamConfig, true);
+            digests.put(key, digest);
+        } else {
+            // The key leaves out cc and bcc; another output may add recipients of its own
+            digest.addRecipients(streamConfig);
+        }
+        if (!listed) {
+            digest.addMessage(message, duplicates);
+        }
+    }
+    
+    private int parseInt(Map<String, String> configuration, String key, int defaultValue) throws MessageOutputConfigurationException {
+        return ConfigUtil.parseInt(configuration, key, defaultValue);
+    }
+
+    private int[] parseWeights(Map<String, String> configuration, String key, int[] defaultValue) throws MessageOutputConfigurationException {
+        if (!configSet(configuration, key)) {
+            return defaultValue;
+        }
+        String[] values = configuration.get(key).split(",");
+        if (values.length != defaultValue.length) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: " + key + "; expected "
+                    + defaultValue.length + " comma separated weights");
+        }
+        int[] weights = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                weights[i] = Integer.parseInt(values[i].trim());
+            } catch (NumberFormatException e) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: " + key + "; " + e.getMessage());
+            }
+            if (weights[i] < 1) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: " + key + "; weights must be at least 1");
+            }
+        }
+        return weights;
     }
 
 
@@ -203,6 +1142,17 @@ public class EmailOutput implements MessageOutput {
         }
     }
     
+    private InternetAddress[] toAddresses(String field, String emails) throws MessageOutputConfigurationException {
+        if (null == emails || emails.trim().isEmpty()) {
+            return new InternetAddress[0];
+        }
+        try {
+            return InternetAddress.parse(emails, true);
+        } catch(AddressException e) {
+            throw new MessageOutputConfigurationException("Could not parse " + field + " email addresses: " + emails + "; " + e.getMessage());
+        }
+    }
+    
     private InternetAddress toAddress(String email) throws MessageOutputConfigurationException {
         try {
             return new InternetAddress(email);
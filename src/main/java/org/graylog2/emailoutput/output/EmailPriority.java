@@ -0,0 +1,46 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+/**
+ * How urgently an email is sent. Sending in the background keeps a queue per priority,
+ * and dispatching always starts with the most urgent emails of a batch.
+ */
+public enum EmailPriority {
+    CRITICAL, HIGH, NORMAL, BULK;
+
+    /**
+     * @return the priority named, or null if none is
+     */
+    public static EmailPriority parse(String value) {
+        if (null == value || value.trim().isEmpty()) {
+            return null;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+
+    /**
+     * @return the priority of a message at the level: Emergency, Alert and Critical are critical,
+     *          Error is high, Warning and Notice are normal, Informational and Debug are bulk
+     */
+    public static EmailPriority of(int level) {
+        return LogMessageUtil.getPriority(level);
+    }
+}
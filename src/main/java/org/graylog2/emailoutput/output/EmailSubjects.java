@@ -0,0 +1,47 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.List;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * Subjects shared by all layouts.
+ */
+public class EmailSubjects {
+
+    private EmailSubjects() {}
+
+    public static String getSubject(LogMessage message, CompiledStreamConfig streamConfiguration) {
+        return streamConfiguration.getSubject(message);
+    }
+
+    public static String getDigestSubject(List<LogMessage> messages, CompiledStreamConfig streamConfiguration) {
+        String subject = getSubject(messages.get(0), streamConfiguration);
+        return (messages.size() > 1)
+                ? subject + " (" + messages.size() + " messages)"
+                : subject;
+    }
+
+    public static String getSuppressedSubject(CompiledStreamConfig streamConfiguration, long suppressed) {
+        return streamConfiguration.getSubject() + " (" + suppressed + " messages suppressed)";
+    }
+}
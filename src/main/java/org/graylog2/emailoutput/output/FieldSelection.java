@@ -0,0 +1,80 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The additional fields of a message that a stream configuration includes, sorted
+ * by name. Instances are meant to be reused for many messages by one thread, so
+ * selecting fields does not allocate once the name buffer is large enough.
+ */
+public class FieldSelection {
+
+    private String[] names = new String[16];
+    private int size;
+    private Map<String, Object> additionalData;
+
+    /**
+     * Replaces the selection with the fields of the given message.
+     *
+     * @return this selection
+     */
+    public FieldSelection select(Map<String, Object> additionalData, CompiledStreamConfig streamConfiguration) {
+        clear();
+        this.additionalData = additionalData;
+        if (null == streamConfiguration.getFieldPattern() || additionalData.isEmpty()) {
+            return this;
+        }
+
+        if (names.length < additionalData.size()) {
+            names = new String[Math.max(additionalData.size(), names.length * 2)];
+        }
+        for (String field : additionalData.keySet()) {
+            if (streamConfiguration.includesField(field)) {
+                names[size++] = field;
+            }
+        }
+        Arrays.sort(names, 0, size);
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getName(int index) {
+        return names[index];
+    }
+
+    public Object getValue(int index) {
+        return additionalData.get(names[index]);
+    }
+
+    /**
+     * Forgets the selected fields, so the message they came from can be collected.
+     */
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        size = 0;
+        additionalData = null;
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+import javax.activation.DataHandler;
+
+/**
+ * DataHandler for a gzip attachment of text, compressing the text as UTF-8 straight into
+ * the (transfer-encoding) stream it is given, so neither the encoded nor the compressed
+ * text is ever held in memory.
+ */
+public class GzipDataHandler extends DataHandler {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE = "application/gzip";
+
+    private final CharSequence text;
+
+    public GzipDataHandler(CharSequence text) {
+        super(text, CONTENT_TYPE);
+        this.text = text;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(os, 8192);
+        Writer writer = new OutputStreamWriter(gzip, UTF_8);
+        writer.append(text);
+        writer.flush();
+        // Finish rather than close, which would close the stream we were given
+        gzip.finish();
+    }
+}
@@ -23,9 +23,12 @@ import java.util.Properties;
 
 import javax.mail.MessagingException;
 import javax.mail.NoSuchProviderException;
+import javax.mail.Provider;
 import javax.mail.Session;
 import javax.mail.Transport;
 
+import org.graylog2.emailoutput.output.smtp.PipeliningSmtpTransport;
+
 public class JavaMailUtil {
     private JavaMailUtil() {}
     
@@ -46,6 +49,8 @@ public class JavaMailUtil {
         }
     
         Session session = Session.getInstance(properties);
+        session.addProvider(new Provider(Provider.Type.TRANSPORT, PipeliningSmtpTransport.PROTOCOL,
+                PipeliningSmtpTransport.class.getName(), "Graylog2", "1.0"));
         session.setProtocolForAddress("rfc822", protocol);
         
         return session;
@@ -53,7 +58,10 @@ public class JavaMailUtil {
 
     static Transport buildTransport(Session session, String host, int port, boolean useAuthentication, String username, String password) throws NoSuchProviderException, MessagingException {
         
-        Transport transport = session.getTransport();
+        // Constructed directly, as JavaMail may not see the plugin's classes to load the provider
+        Transport transport = PipeliningSmtpTransport.PROTOCOL.equals(session.getProperty("mail.transport.protocol"))
+                ? new PipeliningSmtpTransport(session, null)
+                : session.getTransport();
         transport.connect(
                 host,
                 port,
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in power-of-two microsecond buckets. Recording is a few
+ * uncontended atomic adds into the recording thread's own stripe of buckets;
+ * percentiles are read as the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram implements LatencyHistogramMBean {
+
+    // Bucket i holds durations below 2^i microseconds; the last also holds anything longer
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+    private final StripedCounter totalMicros = new StripedCounter();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket);
+        totalMicros.add(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (long bucketCount : snapshot()) {
+            count += bucketCount;
+        }
+        return count;
+    }
+
+    public double getMeanMillis() {
+        long count = getCount();
+        return (0 == count) ? 0 : totalMicros.get() / 1000.0 / count;
+    }
+
+    public double get50thPercentileMillis() {
+        return getPercentileMillis(0.5);
+    }
+
+    public double get99thPercentileMillis() {
+        return getPercentileMillis(0.99);
+    }
+
+    public double getMaxMillis() {
+        return maxMicros.get() / 1000.0;
+    }
+
+    /**
+     * @return an upper bound on the given fraction of recorded durations
+     */
+    public double getPercentileMillis(double fraction) {
+        long[] counts = snapshot();
+        long count = 0;
+        for (long bucketCount : counts) {
+            count += bucketCount;
+        }
+        if (0 == count) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // No duration exceeds the maximum, which may be below the bucket's bound
+                return Math.min(1L << i, Math.max(1, maxMicros.get())) / 1000.0;
+            }
+        }
+        return getMaxMillis();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.2f/%.2f/%.2f ms", getMeanMillis(), get99thPercentileMillis(), getMaxMillis());
+    }
+
+    private long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < buckets.length(); i++) {
+            counts[i % BUCKETS] += buckets.get(i);
+        }
+        return counts;
+    }
+}
@@ -21,8 +21,39 @@ package org.graylog2.emailoutput.output;
 
 public class LogMessageUtil {
 
+    private static final String[] SYSLOG_KEYWORDS = { "emerg", "alert", "crit", "err", "warning", "notice", "info", "debug" };
+
+    private static final EmailPriority[] PRIORITIES = {
+        EmailPriority.CRITICAL, EmailPriority.CRITICAL, EmailPriority.CRITICAL, EmailPriority.HIGH,
+        EmailPriority.NORMAL, EmailPriority.NORMAL, EmailPriority.BULK, EmailPriority.BULK };
+
     private LogMessageUtil() {}
 
+    /**
+     * @return the level given as a number, a full name such as Error, or a syslog keyword such as err;
+     *          or -1 if it is none of these
+     */
+    public static int parseLevel(String level) {
+        for (int i = 0; i < SYSLOG_KEYWORDS.length; i++) {
+            if (SYSLOG_KEYWORDS[i].equalsIgnoreCase(level) || getLevelFullName(i).equalsIgnoreCase(level)) {
+                return i;
+            }
+        }
+        try {
+            int number = Integer.parseInt(level);
+            return (number >= 0 && number < SYSLOG_KEYWORDS.length) ? number : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the priority of an email about a message at the level, or normal for an invalid level
+     */
+    public static EmailPriority getPriority(int level) {
+        return (level >= 0 && level < PRIORITIES.length) ? PRIORITIES[level] : EmailPriority.NORMAL;
+    }
+
     public static String getLevelFullName(int level) {
         switch(level) {
             case 0:  return "Emergency";
@@ -0,0 +1,725 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Persists rendered emails to a local directory before they are sent, so that
+ * emails survive SMTP outages and restarts.
+ * <p>
+ * Emails are appended to segment files, and acknowledged by appending a marker
+ * once sent. Emails never acknowledged are resent in the background, including
+ * any found when the spool is opened. Once the oldest segment holds no unsent
+ * emails it is deleted; if only a few remain, they are first copied to the
+ * newest segment.
+ * <p>
+ * Each record is a header (payload length, type, id and CRC32 of the payload)
+ * followed by the MIME message. A record cut short by a crash fails its length
+ * or checksum, and the segment is truncated there when it is recovered.
+ */
+public class MailSpool {
+
+    private static final Logger LOG = Logger.getLogger(MailSpool.class.getName());
+
+    /** Returned by {@link #append} when the email could not be spooled. */
+    public static final long NOT_SPOOLED = -1;
+
+    public enum FsyncPolicy {
+        /** Sync every email to disk before it is sent. */
+        ALWAYS,
+        /** Sync periodically; a crash may lose the most recent emails. */
+        INTERVAL,
+        /** Leave syncing to the operating system. */
+        NEVER;
+
+        public static FsyncPolicy parse(String value) {
+            if (null == value || value.isEmpty()) {
+                return INTERVAL;
+            }
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    public interface Handler {
+        void send(MimeMessage message) throws Exception;
+    }
+
+    private static final String LOCK_FILE = "spool.lock";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private static final byte TYPE_MESSAGE = 1;
+    private static final byte TYPE_ACK = 2;
+    // length (4), type (1), id (8), crc (4)
+    private static final int HEADER_SIZE = 17;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    // Records are serialized into a buffer reused per thread; one that grew for an unusually large email is dropped
+    private static final int MAX_RETAINED_RECORD_SIZE = 1024 * 1024;
+    private static final ThreadLocal<RecordBuffer> RECORD_BUFFERS = new ThreadLocal<RecordBuffer>() {
+        @Override
+        protected RecordBuffer initialValue() {
+            return new RecordBuffer();
+        }
+    };
+
+    /**
+     * A record being serialized: space for its header, followed by the message.
+     */
+    private static class RecordBuffer extends ByteArrayOutputStream {
+        private RecordBuffer() {
+            super(WRITE_BUFFER_SIZE);
+        }
+
+        private void startRecord() {
+            count = HEADER_SIZE;
+        }
+
+        private int getPayloadLength() {
+            return count - HEADER_SIZE;
+        }
+
+        private int getCapacity() {
+            return buf.length;
+        }
+
+        private ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+    // The oldest segment is rewritten once less than this fraction of it is unsent
+    private static final double COMPACT_LIVE_RATIO = 0.25;
+
+    private static class Segment {
+        private final long sequence;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long size;
+        private int live;
+        private long liveBytes;
+
+        private Segment(long sequence, File file) throws IOException {
+            this.sequence = sequence;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+    }
+
+    private static class Record {
+        private Segment segment;
+        private long offset;
+        private int length;
+
+        private Record(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File directory;
+    private final Session session;
+    private final long segmentSize;
+    private final long maxBytes;
+    private final FsyncPolicy fsyncPolicy;
+    private final long retryIntervalMillis;
+    private final Handler handler;
+    private final ScheduledExecutorService scheduler;
+
+    private final RandomAccessFile lockFile;
+    private final FileLock lock;
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private final Map<Long, Record> pending = new LinkedHashMap<Long, Record>();
+    private final Set<Long> inFlight = new HashSet<Long>();
+    private Segment current;
+    private long nextId;
+    private long totalBytes;
+    private boolean dirty;
+    private boolean full;
+    private boolean closed;
+
+    public MailSpool(File directory, Session session, long segmentSize, long maxBytes, FsyncPolicy fsyncPolicy,
+            long fsyncIntervalMillis, long retryIntervalMillis, Handler handler) throws IOException {
+        this.directory = directory;
+        this.session = session;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.retryIntervalMillis = retryIntervalMillis;
+        this.handler = handler;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create spool directory " + directory);
+        }
+        this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+        FileLock acquired;
+        try {
+            acquired = lockFile.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another output in this process, rather than by another process
+            acquired = null;
+        }
+        if (null == acquired) {
+            lockFile.close();
+            throw new IOException("Spool directory " + directory + " is in use by another output or process");
+        }
+        this.lock = acquired;
+
+        try {
+            recover();
+        } catch (IOException e) {
+            closeFiles();
+            throw e;
+        }
+
+        this.scheduler = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "email-output-spool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                resend();
+            }
+        }, 0, retryIntervalMillis, TimeUnit.MILLISECONDS);
+        if (FsyncPolicy.INTERVAL == fsyncPolicy) {
+            this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync();
+                }
+            }, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the email to the spool. The caller must {@link #acknowledge} it once sent,
+     * or {@link #release} it to have it resent in the background.
+     *
+     * @return the id of the spooled email, or {@link #NOT_SPOOLED} if the spool is full or could not be written
+     */
+    public long append(MimeMessage message) {
+        synchronized (this) {
+            if (closed) {
+                return NOT_SPOOLED;
+            }
+            if (totalBytes >= maxBytes) {
+                if (!full) {
+                    LOG.warning("Spool directory " + directory + " is full; sending emails without spooling");
+                    full = true;
+                }
+                return NOT_SPOOLED;
+            }
+            full = false;
+        }
+
+        // Serialized before taking the lock, so workers sending in parallel only wait for each other's writes
+        RecordBuffer buffer = RECORD_BUFFERS.get();
+        try {
+            ByteBuffer record;
+            try {
+                record = serialize(message, buffer);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Could not write email to spool directory " + directory + "; sending without spooling", e);
+                return NOT_SPOOLED;
+            }
+            return write(record, buffer.getPayloadLength());
+        } finally {
+            if (buffer.getCapacity() > MAX_RETAINED_RECORD_SIZE) {
+                RECORD_BUFFERS.remove();
+            }
+        }
+    }
+
+    private long write(ByteBuffer record, int length) {
+        Segment segment;
+        long offset;
+        long id;
+        synchronized (this) {
+            if (closed) {
+                return NOT_SPOOLED;
+            }
+            offset = -1;
+            try {
+                if (current.size >= segmentSize) {
+                    roll();
+                }
+                segment = current;
+                offset = segment.size;
+                id = nextId++;
+                record.putLong(5, id);
+                writeFully(segment.channel, record, offset);
+                addRecord(segment, id, offset, length);
+                inFlight.add(id);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Could not write email to spool directory " + directory + "; sending without spooling", e);
+                truncate(current, offset);
+                return NOT_SPOOLED;
+            }
+            if (FsyncPolicy.ALWAYS != fsyncPolicy) {
+                dirty = true;
+                return id;
+            }
+        }
+
+        try {
+            segment.channel.force(false);
+            return id;
+        } catch (IOException e) {
+            LOG.log(Level.SEVERE, "Could not sync email to spool directory " + directory + "; sending without spooling", e);
+            discard(segment, id, offset, length);
+            return NOT_SPOOLED;
+        }
+    }
+
+    /**
+     * Takes back an email whose record could not be synced, as it is sent without spooling instead.
+     */
+    private synchronized void discard(Segment segment, long id, long offset, int length) {
+        if (closed) {
+            return;
+        }
+        if (segment == current && segment.size == offset + HEADER_SIZE + length) {
+            // Still the last record; remove it entirely
+            inFlight.remove(id);
+            pending.remove(id);
+            segment.live--;
+            segment.liveBytes -= HEADER_SIZE + length;
+            segment.size = offset;
+            totalBytes -= HEADER_SIZE + length;
+            truncate(segment, offset);
+        } else {
+            // Records were written after it; mark it sent so it is never resent
+            acknowledge(id);
+        }
+    }
+
+    /**
+     * Marks a spooled email as sent, so it is never resent.
+     */
+    public synchronized void acknowledge(long id) {
+        inFlight.remove(id);
+        Record record = pending.remove(id);
+        if (null == record || closed) {
+            return;
+        }
+        record.segment.live--;
+        record.segment.liveBytes -= HEADER_SIZE + record.length;
+
+        long offset = -1;
+        try {
+            if (current.size >= segmentSize) {
+                roll();
+            }
+            offset = current.size;
+            ByteBuffer header = header(0, TYPE_ACK, id, 0);
+            writeFully(current.channel, header, offset);
+            current.size += HEADER_SIZE;
+            totalBytes += HEADER_SIZE;
+            dirty = true;
+        } catch (IOException e) {
+            // The email may be sent again after a restart, but is not lost
+            LOG.log(Level.WARNING, "Could not record sent email in spool directory " + directory, e);
+            truncate(current, offset);
+        }
+    }
+
+    /**
+     * Hands a spooled email that could not be sent back to the spool, to be resent in the background.
+     */
+    public synchronized void release(long id) {
+        inFlight.remove(id);
+    }
+
+    public synchronized int getPending() {
+        return pending.size();
+    }
+
+    public synchronized long getBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Stops resending and closes the spool; unsent emails are resent when it is next opened.
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warning("Timed out waiting for spooled emails to be resent");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (!pending.isEmpty()) {
+                LOG.info(pending.size() + " unsent emails remain in spool directory " + directory);
+            }
+            try {
+                current.channel.force(false);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not sync spool directory " + directory, e);
+            }
+            closeFiles();
+        }
+    }
+
+    private void resend() {
+        List<Long> ids;
+        synchronized (this) {
+            ids = new ArrayList<Long>(pending.keySet());
+        }
+
+        for (Long id : ids) {
+            MimeMessage message;
+            synchronized (this) {
+                Record record = pending.get(id);
+                if (closed) {
+                    return;
+                }
+                if (null == record || !inFlight.add(id)) {
+                    continue;
+                }
+                try {
+                    message = read(record);
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, "Discarding unreadable email " + id + " from spool directory " + directory, e);
+                    acknowledge(id);
+                    continue;
+                }
+            }
+
+            try {
+                handler.send(message);
+            } catch (Exception e) {
+                release(id);
+                LOG.log(Level.WARNING, "Could not resend spooled emails; retrying in "
+                        + TimeUnit.MILLISECONDS.toSeconds(retryIntervalMillis) + " seconds", e);
+                break;
+            }
+            acknowledge(id);
+        }
+
+        compact();
+    }
+
+    private synchronized void sync() {
+        if (dirty && !closed) {
+            try {
+                current.channel.force(false);
+                dirty = false;
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not sync spool directory " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the oldest segments once they hold no unsent emails, first moving the
+     * last few unsent emails out of a segment that is mostly sent.
+     */
+    private synchronized void compact() {
+        try {
+            while (!closed && segments.size() > 1) {
+                Segment oldest = segments.getFirst();
+                if (oldest.live > 0) {
+                    if (oldest.liveBytes > oldest.size * COMPACT_LIVE_RATIO) {
+                        return;
+                    }
+                    relocate(oldest);
+                }
+                segments.removeFirst();
+                oldest.raf.close();
+                if (!oldest.file.delete()) {
+                    LOG.warning("Could not delete spool file " + oldest.file);
+                }
+                totalBytes -= oldest.size;
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not compact spool directory " + directory, e);
+        }
+    }
+
+    private void relocate(Segment from) throws IOException {
+        for (Record record : pending.values()) {
+            if (record.segment != from) {
+                continue;
+            }
+            long recordSize = HEADER_SIZE + record.length;
+            long offset = current.size;
+            long copied = 0;
+            while (copied < recordSize) {
+                copied += from.channel.transferTo(record.offset + copied, recordSize - copied,
+                        current.channel.position(offset + copied));
+            }
+            current.size += recordSize;
+            current.live++;
+            current.liveBytes += recordSize;
+            totalBytes += recordSize;
+            from.live--;
+            from.liveBytes -= recordSize;
+            record.segment = current;
+            record.offset = offset;
+        }
+        // The copies must be on disk before the originals are deleted
+        current.channel.force(false);
+        dirty = false;
+    }
+
+    private void roll() throws IOException {
+        long sequence = (null == current) ? 0 : current.sequence + 1;
+        if (null != current && FsyncPolicy.NEVER != fsyncPolicy) {
+            current.channel.force(false);
+        }
+        current = new Segment(sequence, new File(directory, segmentName(sequence)));
+        segments.addLast(current);
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return null != parseSequence(file.getName());
+            }
+        });
+        if (null == files) {
+            throw new IOException("Could not list spool directory " + directory);
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return parseSequence(a.getName()).compareTo(parseSequence(b.getName()));
+            }
+        });
+
+        for (File file : files) {
+            Segment segment = new Segment(parseSequence(file.getName()), file);
+            segments.addLast(segment);
+            current = segment;
+            scan(segment);
+            totalBytes += segment.size;
+        }
+        if (null == current) {
+            roll();
+        }
+
+        if (!pending.isEmpty()) {
+            LOG.info("Recovered " + pending.size() + " unsent emails from spool directory " + directory);
+        }
+        compact();
+    }
+
+    private void scan(Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long offset = 0;
+        while (offset + HEADER_SIZE <= segment.size) {
+            header.clear();
+            readFully(segment.channel, header, offset);
+            header.flip();
+            int length = header.getInt();
+            byte type = header.get();
+            long id = header.getLong();
+            int crc = header.getInt();
+
+            if (length < 0 || offset + HEADER_SIZE + length > segment.size
+                    || (TYPE_MESSAGE != type && TYPE_ACK != type)
+                    || (TYPE_MESSAGE == type && crc != checksum(segment.channel, offset + HEADER_SIZE, length))) {
+                break;
+            }
+
+            if (TYPE_MESSAGE == type) {
+                // Replaces the original of an email copied during compaction
+                Record original = pending.remove(id);
+                if (null != original) {
+                    original.segment.live--;
+                    original.segment.liveBytes -= HEADER_SIZE + original.length;
+                }
+                addRecord(segment, id, offset, length);
+            } else {
+                Record sent = pending.remove(id);
+                if (null != sent) {
+                    sent.segment.live--;
+                    sent.segment.liveBytes -= HEADER_SIZE + sent.length;
+                }
+            }
+            nextId = Math.max(nextId, id + 1);
+            offset += HEADER_SIZE + length;
+        }
+
+        if (offset < segment.size) {
+            LOG.warning("Discarding " + (segment.size - offset) + " bytes of incomplete data from spool file " + segment.file);
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+    }
+
+    private void addRecord(Segment segment, long id, long offset, int length) {
+        pending.put(id, new Record(segment, offset, length));
+        segment.live++;
+        segment.liveBytes += HEADER_SIZE + length;
+        if (segment.size < offset + HEADER_SIZE + length) {
+            totalBytes += offset + HEADER_SIZE + length - segment.size;
+            segment.size = offset + HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * Writes the message into the buffer after space for its header, then fills in the
+     * header, except for the id, which is only assigned once the record is written.
+     */
+    private static ByteBuffer serialize(MimeMessage message, RecordBuffer buffer) throws IOException, MessagingException {
+        buffer.startRecord();
+        CRC32 crc = new CRC32();
+        message.writeTo(new CheckedOutputStream(buffer, crc));
+
+        ByteBuffer record = buffer.toByteBuffer();
+        record.putInt(0, buffer.getPayloadLength());
+        record.put(4, TYPE_MESSAGE);
+        record.putInt(13, (int) crc.getValue());
+        return record;
+    }
+
+    private MimeMessage read(Record record) throws IOException, MessagingException {
+        ByteBuffer buffer = ByteBuffer.allocate(record.length);
+        readFully(record.segment.channel, buffer, record.offset + HEADER_SIZE);
+        return new MimeMessage(session, new ByteArrayInputStream(buffer.array()));
+    }
+
+    private void truncate(Segment segment, long offset) {
+        if (offset < 0) {
+            return;
+        }
+        try {
+            segment.channel.truncate(offset);
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not truncate spool file " + segment.file, e);
+        }
+    }
+
+    private void closeFiles() {
+        for (Segment segment : segments) {
+            try {
+                segment.raf.close();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "Could not close spool file " + segment.file, e);
+            }
+        }
+        try {
+            lock.release();
+            lockFile.close();
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, "Could not unlock spool directory " + directory, e);
+        }
+    }
+
+    private static ByteBuffer header(int length, byte type, long id, int crc) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(length).put(type).putLong(id).putInt(crc);
+        header.flip();
+        return header;
+    }
+
+    private static int checksum(FileChannel channel, long offset, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, WRITE_BUFFER_SIZE));
+        long position = offset;
+        long end = offset + length;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            readFully(channel, buffer, position);
+            crc.update(buffer.array(), 0, buffer.position());
+            position += buffer.position();
+        }
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spool file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static String segmentName(long sequence) {
+        return String.format("%s%019d%s", SEGMENT_PREFIX, sequence, SEGMENT_SUFFIX);
+    }
+
+    private static Long parseSequence(String name) {
+        if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return null;
+        }
+        try {
+            return Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * Accumulates messages per receiver and subject across many write() calls,
+ * handing each group to a {@link FlushHandler} once it reaches a message
+ * count, approximate body size or age limit. Flushes always run on the
+ * aggregator's own thread, so callers of {@link #add} never block on SMTP.
+ */
+public class MessageAggregator {
+
+    private static final Logger LOG = Logger.getLogger(MessageAggregator.class.getName());
+
+    public static final int DEFAULT_MAX_MESSAGES = 500;
+    public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    // Allowance for the markup wrapped around each message by the layout
+    private static final int MESSAGE_OVERHEAD_BYTES = 512;
+
+    public interface FlushHandler {
+        void flush(PendingEmail digest) throws Exception;
+    }
+
+    private final ConcurrentMap<List<String>, Bucket> buckets = new ConcurrentHashMap<List<String>, Bucket>();
+    private final FlushHandler handler;
+    private final ScheduledExecutorService scheduler;
+
+    public MessageAggregator(FlushHandler handler) {
+        this.handler = handler;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "email-output-aggregator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                flushExpired(System.currentTimeMillis());
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public void add(LogMessage message, int duplicates, CompiledStreamConfig streamConfig) {
+        // Keyed on the digest limits as well, so an edited configuration starts a bucket of its own
+        List<String> key = streamConfig.getAggregationKey();
+        int size = estimateSize(message);
+
+        PendingEmail full;
+        while (true) {
+            Bucket bucket = buckets.get(key);
+            if (null == bucket) {
+                Bucket created = new Bucket(streamConfig);
+                bucket = buckets.putIfAbsent(key, created);
+                if (null == bucket) {
+                    bucket = created;
+                }
+            }
+            synchronized (bucket) {
+                if (bucket.retired) {
+                    // Removed by the scheduler in the meantime; look up its replacement
+                    continue;
+                }
+                full = bucket.add(message, duplicates, size, streamConfig, System.currentTimeMillis());
+            }
+            break;
+        }
+        if (null != full) {
+            scheduleFlush(full);
+        }
+    }
+
+    /**
+     * Adds the recipients of another output to the digest being buffered under its key,
+     * for a message that is already in it.
+     */
+    public void addRecipients(CompiledStreamConfig streamConfig) {
+        Bucket bucket = buckets.get(streamConfig.getAggregationKey());
+        if (null != bucket) {
+            bucket.addRecipients(streamConfig);
+        }
+    }
+
+    /**
+     * Stops the flush scheduler and synchronously flushes everything still buffered.
+     */
+    public void shutdown() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
+                LOG.warning("Timed out waiting for pending email digests to be sent");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Bucket bucket : buckets.values()) {
+            PendingEmail digest = bucket.drain();
+            if (null != digest) {
+                flush(digest);
+            }
+        }
+    }
+
+    private void flushExpired(long now) {
+        for (Map.Entry<List<String>, Bucket> entry : buckets.entrySet()) {
+            Bucket bucket = entry.getValue();
+            PendingEmail digest = bucket.drainIfExpired(now);
+            if (null != digest) {
+                flush(digest);
+            } else if (bucket.retireIfIdle(now)) {
+                buckets.remove(entry.getKey(), bucket);
+            }
+        }
+    }
+
+    private void scheduleFlush(final PendingEmail digest) {
+        try {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    flush(digest);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down; send from the caller's thread rather than losing the messages
+            flush(digest);
+        }
+    }
+
+    private void flush(PendingEmail digest) {
+        try {
+            handler.flush(digest);
+        } catch (Exception e) {
+            LOG.log(Level.SEVERE, "Could not send digest of " + digest.getMessages().size() + " messages to "
+                    + digest.getStreamConfiguration().get("receiver"), e);
+        }
+    }
+
+    private static int estimateSize(LogMessage message) {
+        int size = MESSAGE_OVERHEAD_BYTES;
+        String text = (null != message.getFullMessage()) ? message.getFullMessage() : message.getShortMessage();
+        if (null != text) {
+            size += text.length();
+        }
+        for (Map.Entry<String, Object> entry : message.getAdditionalData().entrySet()) {
+            size += entry.getKey().length();
+            if (entry.getValue() instanceof CharSequence) {
+                size += ((CharSequence) entry.getValue()).length();
+            }
+        }
+        return size;
+    }
+
+    private static class Bucket {
+        private final CompiledStreamConfig config;
+        private final long maxAgeMillis;
+        private final int maxMessages;
+        private final int maxBytes;
+
+        private PendingEmail digest;
+        private int bytes;
+        private long firstAddedAt;
+        private boolean retired;
+
+        private Bucket(CompiledStreamConfig config) {
+            this.config = config;
+            this.maxAgeMillis = config.getDigestWindowMillis();
+            this.maxMessages = config.getDigestMaxMessages();
+            this.maxBytes = config.getDigestMaxBytes();
+        }
+
+        /**
+         * @return the drained digest if this addition filled the bucket, otherwise null
+         */
+        private synchronized PendingEmail add(LogMessage message, int duplicates, int size, CompiledStreamConfig streamConfig, long now) {
+            if (null == digest) {
+                digest = new PendingEmail(new ArrayList<LogMessage>(), config, true);
+                firstAddedAt = now;
+            }
+            if (streamConfig != config) {
+                // The key leaves out cc and bcc; another output may add recipients of its own
+                digest.addRecipients(streamConfig);
+            }
+            digest.addMessage(message, duplicates);
+            bytes += size;
+
+            return (digest.getMessages().size() >= maxMessages || bytes >= maxBytes)
+                    ? drain()
+                    : null;
+        }
+
+        private synchronized void addRecipients(CompiledStreamConfig streamConfig) {
+            if (null != digest) {
+                digest.addRecipients(streamConfig);
+            }
+        }
+
+        private synchronized PendingEmail drainIfExpired(long now) {
+            return (null != digest && now - firstAddedAt >= maxAgeMillis)
+                    ? drain()
+                    : null;
+        }
+
+        /**
+         * Marks the bucket as no longer in use if it has been empty for a whole window,
+         * so buckets of configurations that were edited or removed do not accumulate.
+         *
+         * @return whether the bucket was retired and should be removed
+         */
+        private synchronized boolean retireIfIdle(long now) {
+            if (null == digest && now - firstAddedAt >= maxAgeMillis) {
+                retired = true;
+            }
+            return retired;
+        }
+
+        private synchronized PendingEmail drain() {
+            PendingEmail drained = digest;
+            digest = null;
+            bytes = 0;
+            return drained;
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * Decides whether a message routed to a stream output should be emailed at all, before
+ * any rendering or sending. Built once per stream configuration from these options:
+ * <ul>
+ * <li>min_level: the least severe level to send, as a number (0 to 7) or a name such as Error</li>
+ * <li>hosts, exclude_hosts: comma separated hosts to send only, or never, ignoring case</li>
+ * <li>facilities, exclude_facilities: comma separated facilities to send only, or never</li>
+ * <li>message_pattern, exclude_message_pattern: regexes found in short_message to send only, or never</li>
+ * <li>require_fields: comma separated conditions on additional fields, all of which must hold:
+ *     _name (present), !_name (absent) or _name=value</li>
+ * </ul>
+ * The cheapest checks run first, and the regexes last.
+ */
+public class MessageFilter {
+
+    private final int minLevel;
+    private final Set<String> hosts;
+    private final Set<String> excludedHosts;
+    private final Set<String> facilities;
+    private final Set<String> excludedFacilities;
+    private final String[] requiredFields;
+    private final String[] absentFields;
+    private final String[] fieldValueNames;
+    private final String[] fieldValues;
+    private final Pattern messagePattern;
+    private final Pattern excludedMessagePattern;
+
+    private MessageFilter(Map<String, String> streamConfiguration) throws MessageOutputConfigurationException {
+        this.minLevel = parseLevel(streamConfiguration.get("min_level"));
+        this.hosts = parseSet(toLowerCase(streamConfiguration.get("hosts")));
+        this.excludedHosts = parseSet(toLowerCase(streamConfiguration.get("exclude_hosts")));
+        this.facilities = parseSet(streamConfiguration.get("facilities"));
+        this.excludedFacilities = parseSet(streamConfiguration.get("exclude_facilities"));
+        this.messagePattern = compilePattern("message_pattern", streamConfiguration.get("message_pattern"));
+        this.excludedMessagePattern = compilePattern("exclude_message_pattern", streamConfiguration.get("exclude_message_pattern"));
+
+        List<String> required = new ArrayList<String>();
+        List<String> absent = new ArrayList<String>();
+        List<String> valueNames = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        for (String condition : split(streamConfiguration.get("require_fields"))) {
+            int equals = condition.indexOf('=');
+            if (condition.startsWith("!")) {
+                String name = condition.substring(1).trim();
+                if (name.isEmpty()) {
+                    throw new MessageOutputConfigurationException("Invalid configuration option: require_fields; missing field name in " + condition);
+                }
+                if (equals >= 0) {
+                    throw new MessageOutputConfigurationException("Invalid configuration option: require_fields; cannot require both absence and a value in " + condition);
+                }
+                absent.add(name);
+            } else if (equals > 0) {
+                valueNames.add(condition.substring(0, equals).trim());
+                values.add(condition.substring(equals + 1).trim());
+            } else if (equals < 0) {
+                required.add(condition);
+            } else {
+                throw new MessageOutputConfigurationException("Invalid configuration option: require_fields; missing field name in " + condition);
+            }
+        }
+        this.requiredFields = required.toArray(new String[required.size()]);
+        this.absentFields = absent.toArray(new String[absent.size()]);
+        this.fieldValueNames = valueNames.toArray(new String[valueNames.size()]);
+        this.fieldValues = values.toArray(new String[values.size()]);
+    }
+
+    /**
+     * @return the filter, or null if the configuration sets no conditions and every message is sent
+     */
+    public static MessageFilter compile(Map<String, String> streamConfiguration) throws MessageOutputConfigurationException {
+        MessageFilter filter = new MessageFilter(streamConfiguration);
+        return filter.isEmpty() ? null : filter;
+    }
+
+    private boolean isEmpty() {
+        return minLevel < 0
+                && null == hosts && null == excludedHosts
+                && null == facilities && null == excludedFacilities
+                && requiredFields.length == 0 && absentFields.length == 0 && fieldValueNames.length == 0
+                && null == messagePattern && null == excludedMessagePattern;
+    }
+
+    public boolean accepts(LogMessage message) {
+        // Lower levels are more severe
+        if (minLevel >= 0 && message.getLevel() > minLevel) {
+            return false;
+        }
+        if (!matches(hosts, excludedHosts, toLowerCase(message.getHost()))
+                || !matches(facilities, excludedFacilities, message.getFacility())) {
+            return false;
+        }
+
+        Map<String, Object> fields = message.getAdditionalData();
+        for (String field : requiredFields) {
+            if (null == fields.get(field)) {
+                return false;
+            }
+        }
+        for (String field : absentFields) {
+            if (null != fields.get(field)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < fieldValueNames.length; i++) {
+            Object value = fields.get(fieldValueNames[i]);
+            if (null == value || !fieldValues[i].equals(String.valueOf(value))) {
+                return false;
+            }
+        }
+
+        String shortMessage = message.getShortMessage();
+        if (null != messagePattern && (null == shortMessage || !messagePattern.matcher(shortMessage).find())) {
+            return false;
+        }
+        if (null != excludedMessagePattern && null != shortMessage && excludedMessagePattern.matcher(shortMessage).find()) {
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean matches(Set<String> allowed, Set<String> excluded, String value) {
+        if (null != allowed && (null == value || !allowed.contains(value))) {
+            return false;
+        }
+        return null == excluded || null == value || !excluded.contains(value);
+    }
+
+    private static String toLowerCase(String value) {
+        return null == value ? null : value.toLowerCase(Locale.ENGLISH);
+    }
+
+    private static int parseLevel(String value) throws MessageOutputConfigurationException {
+        if (null == value || value.trim().isEmpty()) {
+            return -1;
+        }
+        int level = LogMessageUtil.parseLevel(value.trim());
+        if (level < 0) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: min_level; unknown level " + value);
+        }
+        return level;
+    }
+
+    private static Set<String> parseSet(String value) {
+        List<String> values = split(value);
+        return values.isEmpty() ? null : Collections.unmodifiableSet(new HashSet<String>(values));
+    }
+
+    private static List<String> split(String value) {
+        if (null == value || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> values = new ArrayList<String>();
+        for (String part : value.split(",")) {
+            if (!part.trim().isEmpty()) {
+                values.add(part.trim());
+            }
+        }
+        return values;
+    }
+
+    private static Pattern compilePattern(String key, String value) throws MessageOutputConfigurationException {
+        if (null == value || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return Pattern.compile(value);
+        } catch (PatternSyntaxException e) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: " + key + "; " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * A 64-bit FNV-1a hash of selected fields of a message, identifying repeats of the
+ * same message: for suppressing duplicates, and for threading their emails together.
+ */
+public class MessageFingerprint {
+
+    public static final String DEFAULT_FIELDS = "short_message,facility,level,host";
+
+    /** The hash of no values, to start hashing from. */
+    public static final long SEED = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final String[] fields;
+
+    /**
+     * @param fields comma separated field names, or null or empty for {@link #DEFAULT_FIELDS}
+     */
+    public MessageFingerprint(String fields) {
+        this.fields = parseFields(fields);
+    }
+
+    public long of(LogMessage message) {
+        return of(message, SEED);
+    }
+
+    /**
+     * @param seed a hash to continue from, so that the same message gives different fingerprints in different contexts
+     */
+    public long of(LogMessage message, long seed) {
+        long hash = seed;
+        for (String field : fields) {
+            hash = hash(hash, getValue(message, field));
+        }
+        return hash;
+    }
+
+    /**
+     * @return the hash continued with the value
+     */
+    public static long hash(long hash, Object value) {
+        if (value instanceof Integer) {
+            hash = (hash ^ ((Integer) value).intValue()) * FNV_PRIME;
+        } else {
+            CharSequence text = (value instanceof CharSequence) ? (CharSequence) value : String.valueOf(value);
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+                hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+            }
+        }
+        // Separator, so that moving text between adjacent values changes the hash
+        return (hash ^ 0xff) * FNV_PRIME;
+    }
+
+    private static Object getValue(LogMessage message, String field) {
+        if ("short_message".equals(field)) {
+            return message.getShortMessage();
+        } else if ("full_message".equals(field)) {
+            return message.getFullMessage();
+        } else if ("facility".equals(field)) {
+            return message.getFacility();
+        } else if ("level".equals(field)) {
+            return message.getLevel();
+        } else if ("host".equals(field)) {
+            return message.getHost();
+        } else if ("file".equals(field)) {
+            return message.getFile();
+        } else if ("line".equals(field)) {
+            return message.getLine();
+        }
+        return message.getAdditionalData().get(field);
+    }
+
+    private static String[] parseFields(String fields) {
+        if (null == fields || fields.trim().isEmpty()) {
+            fields = DEFAULT_FIELDS;
+        }
+        List<String> parsed = new ArrayList<String>();
+        for (String field : fields.split(",")) {
+            if (!field.trim().isEmpty()) {
+                parsed.add(field.trim());
+            }
+        }
+        return parsed.toArray(new String[parsed.size()]);
+    }
+}
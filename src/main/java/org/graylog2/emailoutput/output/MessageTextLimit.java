@@ -0,0 +1,106 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Map;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * Limits how much of each message's text is inlined into an email body. Longer text is cut
+ * off and followed by a marker; the full text can be sent as a gzip attachment instead, so
+ * huge stack traces or payloads don't make huge, slow or rejected emails.
+ */
+public class MessageTextLimit {
+
+    public static final MessageTextLimit UNLIMITED = new MessageTextLimit(0, false);
+
+    private final int maxLength;
+    private final boolean attach;
+
+    /**
+     * @param maxLength the number of characters to inline, or 0 for no limit
+     * @param attach whether to attach the full text of truncated messages
+     */
+    public MessageTextLimit(int maxLength, boolean attach) {
+        this.maxLength = maxLength;
+        this.attach = attach && maxLength > 0;
+    }
+
+    public static MessageTextLimit fromConfiguration(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        String value = pluginConfiguration.get("max_message_length");
+        int maxLength = 0;
+        if (null != value && !value.trim().isEmpty()) {
+            try {
+                maxLength = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: max_message_length; " + e.getMessage());
+            }
+            if (maxLength < 0) {
+                throw new MessageOutputConfigurationException("Invalid configuration option: max_message_length; must not be negative");
+            }
+        }
+        return new MessageTextLimit(maxLength, Boolean.parseBoolean(pluginConfiguration.get("attach_full_message")));
+    }
+
+    /**
+     * @return the text of the message, preferring the full message if available
+     */
+    public static String getText(LogMessage message) {
+        return (null != message.getFullMessage())
+                ? message.getFullMessage()
+                : message.getShortMessage();
+    }
+
+    public boolean isTruncated(CharSequence text) {
+        return maxLength > 0 && null != text && text.length() > maxLength;
+    }
+
+    /**
+     * @return the number of leading characters of the text to inline; a surrogate pair is never split
+     */
+    public int getInlineLength(CharSequence text) {
+        if (!isTruncated(text)) {
+            return (null == text) ? 0 : text.length();
+        }
+        return Character.isHighSurrogate(text.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+    }
+
+    /**
+     * @return the line to follow text that was truncated
+     */
+    public String getMarker(LogMessage message, CharSequence text) {
+        StringBuilder sb = new StringBuilder(96);
+        sb.append("[Truncated: ").append(text.length() - getInlineLength(text)).append(" more characters");
+        if (attach) {
+            sb.append("; the full message is attached as ").append(getAttachmentName(message));
+        }
+        return sb.append(']').toString();
+    }
+
+    public boolean isAttach() {
+        return attach;
+    }
+
+    public static String getAttachmentName(LogMessage message) {
+        return "message-" + message.getId() + ".txt.gz";
+    }
+}
@@ -19,75 +19,314 @@
  */
 package org.graylog2.emailoutput.output;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.charset.Charset;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
-import javax.activation.DataSource;
+import javax.activation.DataHandler;
+import javax.mail.Address;
+import javax.mail.BodyPart;
 import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
-import javax.mail.internet.InternetHeaders;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
-import javax.mail.internet.MimeUtility;
-import javax.mail.util.ByteArrayDataSource;
+import javax.mail.internet.MimePart;
+import javax.mail.internet.ParseException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
 
 public class MimeUtil {
 
+    // RFC 5322 line length limit, excluding CRLF
+    private static final int MAX_LINE_LENGTH = 998;
+
+    // Message-IDs must be unique across emails from every Graylog2 server, not just this one
+    private static final String INSTANCE_ID = Long.toString(new Random().nextLong() >>> 1, 36);
+    private static final AtomicLong MESSAGE_ID_SEQUENCE = new AtomicLong();
+
     private MimeUtil() {}
     
-    static void sendMessage(
+    /**
+     * The transfer encoding chosen for a text body, and its length in UTF-8.
+     */
+    static final class TextEncoding {
+        final String transferEncoding;
+        final long length;
+        
+        private TextEncoding(String transferEncoding, long length) {
+            this.transferEncoding = transferEncoding;
+            this.length = length;
+        }
+    }
+    
+    static void sendMessage(Transport transport, MimeMessage message) throws MessagingException {
+        long start = System.nanoTime();
+        transport.sendMessage(message, message.getAllRecipients());
+        EmailMetrics.INSTANCE.recordSend(System.nanoTime() - start, getBodySize(message));
+    }
+    
+    /**
+     * @return the size of the message body before transfer encoding, or 0 if unknown
+     */
+    static long getBodySize(MimeMessage message) throws MessagingException {
+        if (message.getDataHandler() instanceof TextDataHandler) {
+            return ((TextDataHandler) message.getDataHandler()).getLength();
+        }
+        // Messages read back from the spool know the size of their encoded content
+        int size = message.getSize();
+        if (size >= 0) {
+            return size;
+        }
+        return getPartsSize(message.getDataHandler());
+    }
+    
+    /**
+     * @return the total length of the text parts of a multipart body built here; attachments,
+     *          whose size is only known once compressed, are not counted
+     */
+    private static long getPartsSize(DataHandler dataHandler) throws MessagingException {
+        if (dataHandler instanceof TextDataHandler) {
+            return ((TextDataHandler) dataHandler).getLength();
+        }
+        Object content;
+        try {
+            content = dataHandler.getContent();
+        } catch (IOException e) {
+            return 0;
+        }
+        if (!(content instanceof MimeMultipart)) {
+            return 0;
+        }
+        MimeMultipart multipart = (MimeMultipart) content;
+        long size = 0;
+        for (int i = 0; i < multipart.getCount(); i++) {
+            BodyPart part = multipart.getBodyPart(i);
+            size += getPartsSize(part.getDataHandler());
+        }
+        return size;
+    }
+    
+    /**
+     * @return whether sending again would fail the same way (a 5xx reply or a malformed address),
+     *          or could deliver the email twice (some recipients already accepted it);
+     *          other failures, such as 4xx replies and connection errors, are transient
+     */
+    static boolean isPermanentFailure(MessagingException e) {
+        Exception cause = e;
+        while (null != cause) {
+            if (cause instanceof SMTPAddressFailedException) {
+                return isPermanentReturnCode(((SMTPAddressFailedException) cause).getReturnCode());
+            } else if (cause instanceof SMTPSenderFailedException) {
+                return isPermanentReturnCode(((SMTPSenderFailedException) cause).getReturnCode());
+            } else if (cause instanceof SMTPSendFailedException) {
+                return isPermanentReturnCode(((SMTPSendFailedException) cause).getReturnCode());
+            } else if (cause instanceof AddressException || cause instanceof ParseException) {
+                return true;
+            } else if (cause instanceof SendFailedException && isPartiallySent((SendFailedException) cause)) {
+                return true;
+            }
+            cause = (cause instanceof MessagingException)
+                    ? ((MessagingException) cause).getNextException()
+                    : null;
+        }
+        return false;
+    }
+    
+    private static boolean isPermanentReturnCode(int returnCode) {
+        return returnCode >= 500 && returnCode < 600;
+    }
+    
+    private static boolean isPartiallySent(SendFailedException e) {
+        Address[] sent = e.getValidSentAddresses();
+        return null != sent && sent.length > 0;
+    }
+    
+    /**
+     * @return the To header of the message, for log messages
+     */
+    static String describe(MimeMessage message) {
+        try {
+            return "email to " + message.getHeader("To", ", ");
+        } catch (MessagingException e) {
+            return "email";
+        }
+    }
+    
+    static MimeMessage buildMessage(
             Session session,
-            Transport transport,
             InternetAddress from,
-            InternetAddress receiver,
+            InternetAddress[] to,
+            InternetAddress[] cc,
+            InternetAddress[] bcc,
             String subject,
-            String messageText,
-            String contentType) throws MessagingException, IOException {
-    
-        byte[] messageBytes = messageText.getBytes(Charset.forName("UTF-8"));
-        String encoding = selectMimeEncoding(messageBytes, contentType);
-        InternetHeaders headers = buildInternetHeaders(contentType, encoding);
-        byte[] encodedBytes = encodeBytesToMime(messageBytes, encoding);
-        
-        MimeMultipart mp = new MimeMultipart();
-        MimeBodyPart part = new MimeBodyPart(headers, encodedBytes);
-        mp.addBodyPart(part);
+            EmailBody body) throws MessagingException {
         
+        return buildMessage(session, from, to, cc, bcc, subject, body, Collections.<MimeBodyPart>emptyList());
+    }
+    
+    static MimeMessage buildMessage(
+            Session session,
+            InternetAddress from,
+            InternetAddress[] to,
+            InternetAddress[] cc,
+            InternetAddress[] bcc,
+            String subject,
+            EmailBody body,
+            List<MimeBodyPart> attachments) throws MessagingException {
+    
+        long start = System.nanoTime();
         MimeMessage message = new MimeMessage(session);
         
         message.setFrom(from);
-        message.setRecipient(MimeMessage.RecipientType.TO, receiver);
+        message.setRecipients(MimeMessage.RecipientType.TO, to);
+        if (cc.length > 0) {
+            message.setRecipients(MimeMessage.RecipientType.CC, cc);
+        }
+        if (bcc.length > 0) {
+            // Transport omits the Bcc header when sending, but still delivers to these addresses
+            message.setRecipients(MimeMessage.RecipientType.BCC, bcc);
+        }
         message.setSubject(subject, "UTF-8");
-        message.setContent(mp);
+        
+        // The body is encoded straight into the SMTP DATA stream when the message is sent
+        if (attachments.isEmpty()) {
+            setBody(message, body);
+        } else {
+            MimeMultipart mixed = new MimeMultipart("mixed");
+            MimeBodyPart bodyPart = new MimeBodyPart();
+            setBody(bodyPart, body);
+            mixed.addBodyPart(bodyPart);
+            for (MimeBodyPart attachment : attachments) {
+                mixed.addBodyPart(attachment);
+            }
+            message.setContent(mixed);
+        }
+        
         message.setSentDate(new Date());
         message.saveChanges();
         
-        transport.sendMessage(message, message.getAllRecipients());
+        EmailMetrics.INSTANCE.recordEncode(System.nanoTime() - start);
+        return message;
+    }
+    
+    /**
+     * Sets a Message-ID that starts with the thread identifier, and In-Reply-To and References
+     * headers naming the thread, so mail clients show all emails of the thread together. The
+     * thread's own Message-ID is never sent; clients thread on the reference alone.
+     */
+    static void setThreadHeaders(MimeMessage message, long threadId, InternetAddress from) throws MessagingException {
+        String address = from.getAddress();
+        int at = (null == address) ? -1 : address.lastIndexOf('@');
+        String domain = (at < 0 || at == address.length() - 1) ? "localhost" : address.substring(at + 1);
+        
+        String thread = Long.toHexString(threadId);
+        message.setHeader("Message-ID", "<" + thread
+                + "." + Long.toString(System.currentTimeMillis(), 36)
+                + "." + Long.toString(MESSAGE_ID_SEQUENCE.incrementAndGet(), 36)
+                + "." + INSTANCE_ID + "@" + domain + ">");
+        message.setHeader("In-Reply-To", "<" + thread + "@" + domain + ">");
+        message.setHeader("References", "<" + thread + "@" + domain + ">");
     }
     
-    private static String selectMimeEncoding(byte[] messageBytes, String contentType) {
-        DataSource dataSource = new ByteArrayDataSource(messageBytes, contentType);
-        return MimeUtility.getEncoding(dataSource);
+    /**
+     * @return an attachment of the text compressed with gzip, which happens as the message is written
+     */
+    static MimeBodyPart buildGzipAttachment(String fileName, CharSequence text) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setDataHandler(new GzipDataHandler(text));
+        part.setFileName(fileName);
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        return part;
     }
-
-    private static InternetHeaders buildInternetHeaders(String contentType, String encoding) {
-        InternetHeaders headers = new InternetHeaders();
-        headers.setHeader("Content-Type", contentType + "; charset=UTF-8");
-        headers.setHeader("Content-Transfer-Encoding", encoding);
-        return headers;
-    }
-    
-    private static byte[] encodeBytesToMime(byte[] messageBytes, String encoding) throws MessagingException, IOException {
-        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
-        OutputStream encoder = MimeUtility.encode(encoded, encoding);
-        encoder.write(messageBytes);
-        encoder.close();
-        return encoded.toByteArray();
+    
+    private static void setBody(MimePart part, EmailBody body) throws MessagingException {
+        if (body.isAlternative()) {
+            // Clients show the last alternative they can display, so the plain text goes first
+            MimeMultipart multipart = new MimeMultipart("alternative");
+            multipart.addBodyPart(buildTextPart(body.getText(), "text/plain"));
+            multipart.addBodyPart(buildTextPart(body.getHtml(), "text/html"));
+            part.setContent(multipart);
+        } else if (null != body.getHtml()) {
+            setText(part, body.getHtml(), "text/html");
+        } else {
+            setText(part, body.getText(), body.getTextContentType());
+        }
+    }
+    
+    private static MimeBodyPart buildTextPart(CharSequence text, String contentType) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        setText(part, text, contentType);
+        return part;
+    }
+    
+    private static void setText(MimePart part, CharSequence text, String contentType) throws MessagingException {
+        TextEncoding encoding = analyzeText(text);
+        part.setDataHandler(new TextDataHandler(text, contentType, encoding.length));
+        // Set explicitly, so saveChanges() doesn't encode the text once just to choose an encoding
+        part.setHeader("Content-Transfer-Encoding", encoding.transferEncoding);
+    }
+    
+    /**
+     * Picks a transfer encoding for text that will be sent as UTF-8, using the same rules as
+     * {@link javax.mail.internet.MimeUtility#getEncoding(javax.activation.DataSource)} but in a
+     * single pass over the characters, without encoding them to bytes first.
+     */
+    static String selectMimeEncoding(CharSequence text) {
+        return analyzeText(text).transferEncoding;
+    }
+    
+    /**
+     * Picks a transfer encoding as {@link #selectMimeEncoding} does, also counting the UTF-8 length
+     * of the text in the same pass.
+     */
+    static TextEncoding analyzeText(CharSequence text) {
+        long ascii = 0;
+        long nonAscii = 0;
+        boolean longLine = false;
+        int lineLength = 0;
+        
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            
+            if (c == '\r' || c == '\n') {
+                lineLength = 0;
+                ascii++;
+                continue;
+            }
+            
+            if (++lineLength > MAX_LINE_LENGTH) {
+                longLine = true;
+            }
+            
+            if (c < 0x7F) {
+                if (c < 0x20 && c != '\t') {
+                    nonAscii++;
+                } else {
+                    ascii++;
+                }
+            } else {
+                // Count the bytes this character occupies in UTF-8
+                nonAscii += (c < 0x80) ? 1 : (c < 0x800) ? 2 : ((c >= '\uD800' && c <= '\uDFFF') ? 2 : 3);
+            }
+        }
+        
+        String encoding;
+        if (nonAscii == 0) {
+            encoding = longLine ? "quoted-printable" : "7bit";
+        } else {
+            encoding = (ascii > nonAscii) ? "quoted-printable" : "base64";
+        }
+        return new TextEncoding(encoding, ascii + nonAscii);
     }
 }
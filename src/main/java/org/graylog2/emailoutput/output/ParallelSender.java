@@ -0,0 +1,130 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sends rendered messages over several SMTP connections at once. Each connection
+ * is driven by its own single-threaded lane, and all messages for a receiver are
+ * sent through the same lane, so per-receiver ordering is preserved while
+ * different receivers proceed in parallel.
+ */
+public class ParallelSender {
+
+    public interface Handler {
+        void send(MimeMessage message) throws Exception;
+    }
+
+    private final ExecutorService[] lanes;
+    private final Handler handler;
+
+    public ParallelSender(int connections, Handler handler) {
+        this.handler = handler;
+        this.lanes = new ExecutorService[connections];
+        for (int i = 0; i < connections; i++) {
+            final String name = "email-output-lane-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends all messages and waits for them to complete.
+     *
+     * @throws Exception the first failure, once every message has been attempted
+     */
+    public void sendAll(List<MimeMessage> messages) throws Exception {
+        List<Future<Void>> results = new ArrayList<Future<Void>>(messages.size());
+        Exception failure = null;
+        for (final MimeMessage message : messages) {
+            try {
+                results.add(laneFor(message).submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        handler.send(message);
+                        return null;
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                // Shut down by a re-initialize in the meantime; send from the caller's thread
+                try {
+                    handler.send(message);
+                } catch (Exception sendFailure) {
+                    if (null == failure) {
+                        failure = sendFailure;
+                    }
+                }
+            }
+        }
+
+        for (Future<Void> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                if (null == failure) {
+                    failure = (Exception) e.getCause();
+                }
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    public void shutdown() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            try {
+                lane.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private ExecutorService laneFor(MimeMessage message) throws MessagingException {
+        String receiver = message.getHeader("To", ",");
+        int hash = (null == receiver) ? 0 : receiver.hashCode();
+        return lanes[(hash & Integer.MAX_VALUE) % lanes.length];
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.InternetAddress;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * A single email waiting to be rendered and sent: either one message, or a digest of several.
+ * Rendering uses the first stream configuration; recipients are the union of every
+ * configuration added. Each message may carry a count of duplicates of it that were
+ * suppressed before it.
+ */
+public class PendingEmail {
+
+    private final List<LogMessage> messages;
+    private final CompiledStreamConfig streamConfiguration;
+    private final boolean digest;
+    private Map<LogMessage, Integer> duplicates = Collections.emptyMap();
+    private String subject;
+    private EmailPriority configuredPriority;
+    private boolean levelPriority;
+    private int mostSevereLevel = Integer.MAX_VALUE;
+    private EmailPriority priority;
+    private final Set<InternetAddress> to = new LinkedHashSet<InternetAddress>();
+    private final Set<InternetAddress> cc = new LinkedHashSet<InternetAddress>();
+    private final Set<InternetAddress> bcc = new LinkedHashSet<InternetAddress>();
+
+    public PendingEmail(LogMessage message, CompiledStreamConfig streamConfiguration) {
+        this(Collections.singletonList(message), streamConfiguration, false);
+    }
+
+    public PendingEmail(LogMessage message, int duplicates, CompiledStreamConfig streamConfiguration) {
+        this(Collections.singletonList(message), streamConfiguration, false);
+        setDuplicates(message, duplicates);
+    }
+
+    public PendingEmail(List<LogMessage> messages, CompiledStreamConfig streamConfiguration, boolean digest) {
+        this.messages = messages;
+        this.streamConfiguration = streamConfiguration;
+        this.digest = digest;
+        for (LogMessage message : messages) {
+            mostSevereLevel = Math.min(mostSevereLevel, message.getLevel());
+        }
+        addRecipients(streamConfiguration);
+    }
+
+    public void addRecipients(CompiledStreamConfig streamConfiguration) {
+        to.addAll(Arrays.asList(streamConfiguration.getTo()));
+        cc.addAll(Arrays.asList(streamConfiguration.getCc()));
+        bcc.addAll(Arrays.asList(streamConfiguration.getBcc()));
+
+        EmailPriority priority = streamConfiguration.getPriority();
+        if (null == priority) {
+            levelPriority = true;
+        } else if (null == configuredPriority || priority.compareTo(configuredPriority) < 0) {
+            configuredPriority = priority;
+        }
+        updatePriority();
+    }
+
+    /**
+     * Adds a message to a digest.
+     */
+    public void addMessage(LogMessage message, int duplicates) {
+        messages.add(message);
+        setDuplicates(message, duplicates);
+        subject = null;
+        if (message.getLevel() < mostSevereLevel) {
+            mostSevereLevel = message.getLevel();
+            updatePriority();
+        }
+    }
+
+    // Kept up to date as messages and recipients are added, as it is asked for repeatedly while dispatching
+    private void updatePriority() {
+        if (!levelPriority) {
+            priority = configuredPriority;
+            return;
+        }
+        EmailPriority severity = EmailPriority.of(mostSevereLevel);
+        priority = (null == configuredPriority || severity.compareTo(configuredPriority) < 0)
+                ? severity
+                : configuredPriority;
+    }
+
+    private void setDuplicates(LogMessage message, int count) {
+        if (count > 0) {
+            if (duplicates.isEmpty()) {
+                duplicates = new IdentityHashMap<LogMessage, Integer>();
+            }
+            duplicates.put(message, count);
+        }
+    }
+
+    public List<LogMessage> getMessages() {
+        return messages;
+    }
+
+    public CompiledStreamConfig getStreamConfiguration() {
+        return streamConfiguration;
+    }
+
+    public boolean isDigest() {
+        return digest;
+    }
+
+    /**
+     * @return the number of suppressed duplicates of each message, for messages that had any
+     */
+    public Map<LogMessage, Integer> getDuplicates() {
+        return duplicates;
+    }
+
+    public int getDuplicates(LogMessage message) {
+        Integer count = duplicates.get(message);
+        return (null == count) ? 0 : count.intValue();
+    }
+
+    /**
+     * @return the rendered subject, or null if it has not been rendered since the last message was added
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    public void setSubject(String subject) {
+        this.subject = subject;
+    }
+
+    /**
+     * @return the most urgent priority of the outputs this email is for; outputs without
+     *          a configured priority take that of the most severe message
+     */
+    public EmailPriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return an identifier shared by emails that mail clients should show as one thread
+     */
+    public long getThreadId() {
+        return digest
+                ? streamConfiguration.getThreadId()
+                : streamConfiguration.getThreadId(messages.get(0));
+    }
+
+    public InternetAddress[] getTo() {
+        return to.toArray(new InternetAddress[to.size()]);
+    }
+
+    public InternetAddress[] getCc() {
+        return cc.toArray(new InternetAddress[cc.size()]);
+    }
+
+    public InternetAddress[] getBcc() {
+        return bcc.toArray(new InternetAddress[bcc.size()]);
+    }
+
+    @Override
+    public String toString() {
+        return "email to " + to;
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.util.CRLFOutputStream;
+
+/**
+ * Delivers emails by writing them as files into a directory that a local MTA picks up,
+ * leaving queueing and retries to it. Each email is written to a temporary file and
+ * renamed into place once complete, so the MTA never sees a partial email.
+ * <p>
+ * With {@link MailSpool.FsyncPolicy#INTERVAL}, written emails are synced together and only
+ * then renamed, at each interval or once {@link #MAX_UNSYNCED} are waiting; a crash may
+ * lose the most recent emails.
+ */
+public class PickupDirectory {
+
+    private static final Logger LOG = Logger.getLogger(PickupDirectory.class.getName());
+
+    // Emails waiting for an interval sync at most; each holds an open file
+    static final int MAX_UNSYNCED = 256;
+    // Temporary files untouched for this long are left behind by a crash rather than being written
+    static final long STALE_TEMPORARY_MILLIS = 60 * 60 * 1000L;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    public enum Format {
+        /**
+         * The email as sent, including its Bcc header, in *.eml files with Unix line endings;
+         * for handing to "sendmail -t -i" (Postfix, Exim), which removes the Bcc header.
+         */
+        EML,
+        /**
+         * X-Sender and X-Receiver envelope headers followed by the email without its Bcc
+         * header, in *.eml files; the pickup directory format of IIS and Exchange.
+         */
+        ENVELOPE,
+        /** A Maildir: written to tmp/ and renamed into new/, without the Bcc header. */
+        MAILDIR;
+
+        public static Format parse(String value) {
+            if (null == value || value.isEmpty()) {
+                return EML;
+            }
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    private static class Unsynced {
+        private final File temporary;
+        private final File target;
+        private final FileChannel channel;
+
+        private Unsynced(File temporary, File target, FileChannel channel) {
+            this.temporary = temporary;
+            this.target = target;
+            this.channel = channel;
+        }
+    }
+
+    private final File directory;
+    private final File temporaryDirectory;
+    private final Format format;
+    private final MailSpool.FsyncPolicy fsyncPolicy;
+    private final String[] ignoredHeaders;
+    private final String uniqueSuffix;
+    private final AtomicLong sequence = new AtomicLong();
+    private final List<Unsynced> unsynced = new ArrayList<Unsynced>();
+    private final ScheduledExecutorService scheduler;
+    // Guarded by unsynced
+    private boolean closed;
+
+    public PickupDirectory(File directory, Format format, MailSpool.FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.format = format;
+        this.fsyncPolicy = fsyncPolicy;
+        this.ignoredHeaders = (Format.EML == format)
+                ? new String[] { "Content-Length" }
+                : new String[] { "Bcc", "Content-Length" };
+
+        if (Format.MAILDIR == format) {
+            this.directory = new File(directory, "new");
+            this.temporaryDirectory = new File(directory, "tmp");
+            mkdirs(new File(directory, "cur"));
+        } else {
+            this.directory = directory;
+            // Hidden, so it is not mistaken for a mail by anything scanning the directory
+            this.temporaryDirectory = new File(directory, ".tmp");
+        }
+        mkdirs(this.directory);
+        mkdirs(this.temporaryDirectory);
+        // Another output or node may be writing to the same directory; only remove what it cannot be
+        removeTemporaryFiles(System.currentTimeMillis() - Math.max(STALE_TEMPORARY_MILLIS, 2 * fsyncIntervalMillis));
+
+        // Unique across processes and hosts, following the Maildir convention
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        String process = ManagementFactory.getRuntimeMXBean().getName();
+        int at = process.indexOf('@');
+        this.uniqueSuffix = ".P" + ((at > 0) ? process.substring(0, at) : Integer.toHexString(process.hashCode()))
+                + "R" + Long.toHexString(System.nanoTime() & 0xffffffL)
+                + "." + host.replace("/", "\\057").replace(":", "\\072");
+
+        if (MailSpool.FsyncPolicy.INTERVAL == fsyncPolicy) {
+            this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "email-output-pickup-sync");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            this.scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    sync();
+                }
+            }, fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.scheduler = null;
+        }
+    }
+
+    private static void mkdirs(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create pickup directory " + directory);
+        }
+    }
+
+    /**
+     * Temporary files are left behind only by a crash, and were never picked up.
+     *
+     * @param before removes only files last written before this time
+     */
+    private void removeTemporaryFiles(long before) {
+        File[] files = temporaryDirectory.listFiles();
+        if (null == files) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.lastModified() < before && !file.delete()) {
+                LOG.warning("Could not remove temporary file " + file);
+            }
+        }
+    }
+
+    public void deliver(MimeMessage message) throws MessagingException {
+        long start = System.nanoTime();
+        String name = System.currentTimeMillis() + "." + sequence.getAndIncrement() + uniqueSuffix
+                + ((Format.MAILDIR == format) ? "" : ".eml");
+        File temporary = new File(temporaryDirectory, name);
+        File target = new File(directory, name);
+
+        FileChannel channel = null;
+        long size;
+        try {
+            channel = new FileOutputStream(temporary).getChannel();
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), WRITE_BUFFER_SIZE);
+            write(message, out);
+            out.flush();
+            size = channel.size();
+
+            if (MailSpool.FsyncPolicy.INTERVAL == fsyncPolicy) {
+                List<Unsynced> batch = null;
+                synchronized (unsynced) {
+                    unsynced.add(new Unsynced(temporary, target, channel));
+                    // Once closed there is no interval sync left to move the email into place
+                    if (closed || unsynced.size() >= MAX_UNSYNCED) {
+                        batch = takeUnsynced();
+                    }
+                }
+                channel = null;
+                if (null != batch) {
+                    sync(batch);
+                }
+            } else {
+                if (MailSpool.FsyncPolicy.ALWAYS == fsyncPolicy) {
+                    channel.force(true);
+                }
+                channel.close();
+                channel = null;
+                rename(temporary, target);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            temporary.delete();
+            throw new MessagingException("Could not write " + MimeUtil.describe(message) + " to pickup directory " + directory, e);
+        }
+        EmailMetrics.INSTANCE.recordSend(System.nanoTime() - start, size);
+    }
+
+    private void write(MimeMessage message, OutputStream out) throws IOException, MessagingException {
+        if (Format.ENVELOPE == format) {
+            StringBuilder envelope = new StringBuilder();
+            Address[] from = message.getFrom();
+            if (null != from && from.length > 0) {
+                envelope.append("X-Sender: ").append(((InternetAddress) from[0]).getAddress()).append("\r\n");
+            }
+            for (Address recipient : message.getAllRecipients()) {
+                envelope.append("X-Receiver: ").append(((InternetAddress) recipient).getAddress()).append("\r\n");
+            }
+            out.write(envelope.toString().getBytes("US-ASCII"));
+            message.writeTo(new CRLFOutputStream(out), ignoredHeaders);
+        } else {
+            message.writeTo(new LineFeedOutputStream(out), ignoredHeaders);
+        }
+    }
+
+    private List<Unsynced> takeUnsynced() {
+        List<Unsynced> batch = new ArrayList<Unsynced>(unsynced);
+        unsynced.clear();
+        return batch;
+    }
+
+    private void sync() {
+        List<Unsynced> batch;
+        synchronized (unsynced) {
+            batch = takeUnsynced();
+        }
+        sync(batch);
+    }
+
+    private void sync(List<Unsynced> batch) {
+        for (Unsynced file : batch) {
+            try {
+                file.channel.force(true);
+                file.channel.close();
+                rename(file.temporary, file.target);
+            } catch (IOException e) {
+                closeQuietly(file.channel);
+                file.temporary.delete();
+                LOG.log(Level.SEVERE, "Could not write email to pickup directory " + directory + "; it is lost", e);
+            }
+        }
+    }
+
+    private static void rename(File temporary, File target) throws IOException {
+        if (!temporary.renameTo(target)) {
+            throw new IOException("Could not rename " + temporary + " to " + target);
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (null != channel) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Moves any emails waiting for a sync into place.
+     */
+    public void close() {
+        if (null != scheduler) {
+            scheduler.shutdown();
+            try {
+                scheduler.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<Unsynced> batch;
+        synchronized (unsynced) {
+            closed = true;
+            batch = takeUnsynced();
+        }
+        sync(batch);
+    }
+
+    /**
+     * Converts CRLF line endings to LF, the convention of local Unix mail tools.
+     */
+    private static class LineFeedOutputStream extends FilterOutputStream {
+        private boolean carriageReturn;
+
+        LineFeedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (carriageReturn && '\n' != b) {
+                out.write('\r');
+            }
+            carriageReturn = ('\r' == b);
+            if (!carriageReturn) {
+                out.write(b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int start = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                if ('\r' == b[i] || carriageReturn) {
+                    out.write(b, start, i - start);
+                    write(b[i]);
+                    start = i + 1;
+                }
+            }
+            out.write(b, start, end - start);
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.graylog2.emailoutput.output.cluster.ClusterCoordinator;
+
+/**
+ * Per-receiver and global email rate limits. Emails over a limit are not sent;
+ * instead they are counted by subject, and each affected receiver periodically
+ * gets a single summary of what was suppressed.
+ * <p>
+ * Limits are token buckets implemented as a virtual scheduling time per bucket
+ * (GCRA), updated with compare-and-set, so concurrent output threads never lock.
+ * With a {@link ClusterCoordinator}, emails sent are published to the other nodes,
+ * and the emails they sent are charged to the buckets here, so the limits apply to
+ * the cluster as a whole.
+ */
+public class RateLimiter {
+
+    private static final Logger LOG = Logger.getLogger(RateLimiter.class.getName());
+
+    // Subjects may be rendered per message; count any beyond this many per summary together
+    private static final int MAX_SUMMARY_SUBJECTS = 100;
+    private static final String OTHER_SUBJECTS = "(other subjects)";
+
+    public interface SummaryHandler {
+        void sendSummary(CompiledStreamConfig streamConfiguration, InternetAddress[] to, long suppressed,
+                Map<String, Long> suppressedBySubject, long intervalSeconds) throws Exception;
+    }
+
+    /**
+     * Token bucket as a "theoretical arrival time": each email pushes it forward by one
+     * emission interval, and an email is allowed while it stays within the burst allowance
+     * of the current time.
+     */
+    static class TokenBucket {
+        private final AtomicLong theoreticalArrival;
+        private final long intervalNanos;
+        private final long burstNanos;
+
+        TokenBucket(int perMinute, int burst, long now) {
+            this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / Math.max(1, perMinute);
+            this.burstNanos = intervalNanos * Math.max(0, burst - 1);
+            this.theoreticalArrival = new AtomicLong(now);
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long current = theoreticalArrival.get();
+                long start = Math.max(current, now);
+                if (start - now > burstNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(current, start + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Gives back a token taken by {@link #tryAcquire} for an email that was not sent after all.
+         */
+        void refund() {
+            theoreticalArrival.addAndGet(-intervalNanos);
+        }
+
+        /**
+         * Takes tokens for emails already sent elsewhere, going into debt for at most a minute.
+         */
+        void consume(long count, long now) {
+            long limit = now + burstNanos + TimeUnit.MINUTES.toNanos(1);
+            while (true) {
+                long current = theoreticalArrival.get();
+                long updated = Math.min(limit, Math.max(current, now) + count * intervalNanos);
+                if (updated <= current || theoreticalArrival.compareAndSet(current, updated)) {
+                    return;
+                }
+            }
+        }
+
+        boolean isIdle(long now) {
+            return theoreticalArrival.get() <= now;
+        }
+    }
+
+    private static class ReceiverState {
+        private final TokenBucket bucket;
+        private volatile CompiledStreamConfig streamConfiguration;
+        private volatile InternetAddress[] to;
+        private final AtomicLong suppressed = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> suppressedBySubject = new ConcurrentHashMap<String, AtomicLong>();
+
+        private ReceiverState(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+    }
+
+    private final int perReceiverLimit;
+    private final int burst;
+    private final TokenBucket global;
+    private final long summaryIntervalSeconds;
+    private final SummaryHandler summaryHandler;
+    private final ClusterCoordinator cluster;
+    private final ConcurrentMap<List<InternetAddress>, ReceiverState> receivers = new ConcurrentHashMap<List<InternetAddress>, ReceiverState>();
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param perReceiverLimit emails per minute per receiver, or 0 for no limit
+     * @param globalLimit emails per minute in total, or 0 for no limit
+     * @param burst emails that may be sent at once before a limit applies
+     * @param cluster shares the limits with other nodes, or null to limit this node only
+     */
+    public RateLimiter(int perReceiverLimit, int globalLimit, int burst, int summaryIntervalSeconds,
+            SummaryHandler summaryHandler, ClusterCoordinator cluster) {
+        long now = System.nanoTime();
+        this.perReceiverLimit = perReceiverLimit;
+        this.burst = Math.max(1, burst);
+        this.global = (globalLimit > 0) ? new TokenBucket(globalLimit, this.burst, now) : null;
+        this.summaryIntervalSeconds = Math.max(1, summaryIntervalSeconds);
+        this.summaryHandler = summaryHandler;
+        this.cluster = cluster;
+        if (null != cluster) {
+            cluster.setQuotaListener(new ClusterCoordinator.QuotaListener() {
+                public void consumed(String quota, long count) {
+                    consumeRemote(quota, count);
+                }
+            });
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "email-output-rate-limit-summary");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                sendSummaries();
+            }
+        }, this.summaryIntervalSeconds, this.summaryIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true if the email may be sent; otherwise it has been counted for the next summary
+     */
+    public boolean tryAcquire(PendingEmail email, String subject) {
+        long now = System.nanoTime();
+        InternetAddress[] to = email.getTo();
+        ReceiverState state = receivers.get(Arrays.asList(to));
+
+        if (perReceiverLimit > 0) {
+            if (null == state) {
+                state = getLimitedState(Arrays.asList(to), now);
+            }
+            if (state.bucket.tryAcquire(now)) {
+                if (null == global || global.tryAcquire(now)) {
+                    publish(to);
+                    return true;
+                }
+                // Held back by the global limit; the receiver's quota was not used
+                state.bucket.refund();
+            }
+        } else if (null == global || global.tryAcquire(now)) {
+            publish(to);
+            return true;
+        }
+
+        if (null == state) {
+            ReceiverState created = new ReceiverState(null);
+            state = receivers.putIfAbsent(Arrays.asList(to), created);
+            if (null == state) {
+                state = created;
+            }
+        }
+        suppress(state, email, subject);
+        return false;
+    }
+
+    private ReceiverState getLimitedState(List<InternetAddress> to, long now) {
+        ReceiverState state = receivers.get(to);
+        if (null == state) {
+            ReceiverState created = new ReceiverState(new TokenBucket(perReceiverLimit, burst, now));
+            state = receivers.putIfAbsent(to, created);
+            if (null == state) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    private void publish(InternetAddress[] to) {
+        if (null != cluster) {
+            if (null != global) {
+                cluster.recordSend(ClusterCoordinator.GLOBAL_QUOTA);
+            }
+            if (perReceiverLimit > 0) {
+                StringBuilder quota = new StringBuilder();
+                for (InternetAddress address : to) {
+                    if (quota.length() > 0) {
+                        quota.append(',');
+                    }
+                    quota.append(address.getAddress());
+                }
+                cluster.recordSend(quota.toString());
+            }
+        }
+    }
+
+    /**
+     * Charges emails another node sent to the global bucket or to a receiver's bucket.
+     */
+    private void consumeRemote(String quota, long count) {
+        long now = System.nanoTime();
+        if (ClusterCoordinator.GLOBAL_QUOTA.equals(quota)) {
+            if (null != global) {
+                global.consume(count, now);
+            }
+        } else if (perReceiverLimit > 0) {
+            try {
+                List<InternetAddress> to = Arrays.asList(InternetAddress.parse(quota));
+                getLimitedState(to, now).bucket.consume(count, now);
+            } catch (AddressException e) {
+                LOG.log(Level.FINE, "Ignoring sends to unparseable receiver " + quota, e);
+            }
+        }
+    }
+
+    public void shutdown() {
+        scheduler.shutdown();
+        sendSummaries();
+    }
+
+    private void suppress(ReceiverState state, PendingEmail email, String subject) {
+        state.streamConfiguration = email.getStreamConfiguration();
+        state.to = email.getTo();
+
+        int count = email.getMessages().size();
+        AtomicLong bySubject = state.suppressedBySubject.get(subject);
+        if (null == bySubject && state.suppressedBySubject.size() >= MAX_SUMMARY_SUBJECTS) {
+            subject = OTHER_SUBJECTS;
+            bySubject = state.suppressedBySubject.get(subject);
+        }
+        if (null == bySubject) {
+            AtomicLong created = new AtomicLong();
+            bySubject = state.suppressedBySubject.putIfAbsent(subject, created);
+            if (null == bySubject) {
+                bySubject = created;
+            }
+        }
+        bySubject.addAndGet(count);
+        state.suppressed.addAndGet(count);
+    }
+
+    private void sendSummaries() {
+        long now = System.nanoTime();
+        for (Iterator<ReceiverState> it = receivers.values().iterator(); it.hasNext();) {
+            ReceiverState state = it.next();
+
+            long suppressed = state.suppressed.getAndSet(0);
+            if (suppressed == 0) {
+                // Forget receivers with nothing to report and a full bucket; they'll be recreated on demand
+                if (null == state.bucket || state.bucket.isIdle(now)) {
+                    it.remove();
+                }
+                continue;
+            }
+
+            Map<String, Long> bySubject = new LinkedHashMap<String, Long>();
+            for (Iterator<Map.Entry<String, AtomicLong>> subjects = state.suppressedBySubject.entrySet().iterator(); subjects.hasNext();) {
+                Map.Entry<String, AtomicLong> entry = subjects.next();
+                long count = entry.getValue().getAndSet(0);
+                if (count > 0) {
+                    bySubject.put(entry.getKey(), count);
+                } else {
+                    subjects.remove();
+                }
+            }
+
+            try {
+                summaryHandler.sendSummary(state.streamConfiguration, state.to, suppressed, bySubject, summaryIntervalSeconds);
+            } catch (Exception e) {
+                LOG.log(Level.SEVERE, "Could not send rate limit summary to " + Arrays.toString(state.to), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+/**
+ * Buffers for rendering emails, reused per thread by every layout so that rendering
+ * allocates little beyond its output. A buffer that grew for an unusually large email
+ * is dropped rather than retained.
+ */
+public class RenderBuffers {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 256 * 1024;
+    private static final int INITIAL_SUBJECT_SIZE = 128;
+    private static final int MAX_RETAINED_SUBJECT_SIZE = 1024;
+
+    private static final ThreadLocal<RenderBuffers> BUFFERS = new ThreadLocal<RenderBuffers>() {
+        @Override
+        protected RenderBuffers initialValue() {
+            return new RenderBuffers();
+        }
+    };
+
+    private StringBuilder body = new StringBuilder(INITIAL_BUFFER_SIZE);
+    private StringBuilder text = new StringBuilder(INITIAL_BUFFER_SIZE);
+    private StringBuilder subject = new StringBuilder(INITIAL_SUBJECT_SIZE);
+    private final FieldSelection fields = new FieldSelection();
+
+    private RenderBuffers() {}
+
+    /**
+     * @return the calling thread's buffers
+     */
+    public static RenderBuffers get() {
+        return BUFFERS.get();
+    }
+
+    /**
+     * @return the empty buffer for an email body
+     */
+    public StringBuilder body() {
+        body = reset(body);
+        return body;
+    }
+
+    /**
+     * @return the empty buffer for the plain text alternative of an email body
+     */
+    public StringBuilder text() {
+        text = reset(text);
+        return text;
+    }
+
+    /**
+     * @return the empty buffer for a subject, which may be rendered while a body is
+     */
+    public StringBuilder subject() {
+        subject.setLength(0);
+        return subject;
+    }
+
+    /**
+     * Drops the subject buffer if a subject made it grow; every thread rendering emails keeps one.
+     */
+    public void trimSubject() {
+        if (subject.capacity() > MAX_RETAINED_SUBJECT_SIZE) {
+            subject = new StringBuilder(INITIAL_SUBJECT_SIZE);
+        }
+    }
+
+    /**
+     * @return the field selection for the message being rendered
+     */
+    public FieldSelection fields() {
+        return fields;
+    }
+
+    private static StringBuilder reset(StringBuilder sb) {
+        if (sb.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+            return new StringBuilder(INITIAL_BUFFER_SIZE);
+        }
+        sb.setLength(0);
+        return sb;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Resends emails that failed transiently, with exponential backoff and jitter,
+ * until they are sent, fail permanently or run out of attempts. Emails held back
+ * by an open {@link CircuitBreaker} wait for it without using up attempts.
+ */
+public class RetryScheduler {
+
+    private static final Logger LOG = Logger.getLogger(RetryScheduler.class.getName());
+
+    public interface Handler {
+        void send(MimeMessage message) throws MessagingException, InterruptedException;
+    }
+
+    private final int maxAttempts;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxPending;
+    private final Handler handler;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    public RetryScheduler(int maxAttempts, long initialDelayMillis, long maxDelayMillis, int maxPending, Handler handler) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelayMillis = initialDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxPending = maxPending;
+        this.handler = handler;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "email-output-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Schedules a resend of an email whose first attempt failed.
+     */
+    public void retry(MimeMessage message, MessagingException failure) {
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            LOG.log(Level.SEVERE, "Too many emails waiting to be resent; giving up on " + MimeUtil.describe(message), failure);
+            return;
+        }
+        // While the breaker is open every send fails the same way; it logs the outage once
+        Level level = (failure instanceof CircuitBreaker.OpenException) ? Level.FINE : Level.WARNING;
+        LOG.log(level, "Could not send " + MimeUtil.describe(message) + "; retrying", failure);
+        schedule(new Attempt(message, 1), failure);
+    }
+
+    /**
+     * Stops retrying. Emails still waiting are logged and abandoned.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pending.get() > 0) {
+            LOG.warning("Abandoning " + pending.get() + " emails waiting to be resent");
+        }
+    }
+
+    public int getPending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the delay before the next attempt: the initial delay doubled for each failed attempt,
+     *          up to the maximum, with the upper half randomized so retries from many senders spread out
+     */
+    long getDelayMillis(int failedAttempts) {
+        long delay = initialDelayMillis << Math.min(failedAttempts - 1, 30);
+        if (delay <= 0 || delay > maxDelayMillis) {
+            delay = maxDelayMillis;
+        }
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    private void schedule(Attempt attempt, MessagingException failure) {
+        long delay = (failure instanceof CircuitBreaker.OpenException)
+                ? ((CircuitBreaker.OpenException) failure).getRemainingMillis() + getDelayMillis(1)
+                : getDelayMillis(attempt.failures);
+        try {
+            scheduler.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            LOG.warning("Shutting down; abandoning " + MimeUtil.describe(attempt.message));
+        }
+    }
+
+    private class Attempt implements Runnable {
+        private final MimeMessage message;
+        private int failures;
+
+        private Attempt(MimeMessage message, int failures) {
+            this.message = message;
+            this.failures = failures;
+        }
+
+        public void run() {
+            try {
+                handler.send(message);
+                pending.decrementAndGet();
+            } catch (CircuitBreaker.OpenException e) {
+                // Not an attempt; wait for the breaker to let sends through again
+                schedule(this, e);
+            } catch (MessagingException e) {
+                failures++;
+                if (MimeUtil.isPermanentFailure(e)) {
+                    pending.decrementAndGet();
+                    LOG.log(Level.SEVERE, "Could not send " + MimeUtil.describe(message) + "; not retrying", e);
+                } else if (failures >= maxAttempts) {
+                    pending.decrementAndGet();
+                    LOG.log(Level.SEVERE, "Could not send " + MimeUtil.describe(message) + " after " + failures + " attempts; giving up", e);
+                } else {
+                    schedule(this, e);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                pending.decrementAndGet();
+                LOG.log(Level.SEVERE, "Could not send " + MimeUtil.describe(message) + "; not retrying", e);
+            }
+        }
+    }
+}
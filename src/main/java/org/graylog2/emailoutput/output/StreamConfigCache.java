@@ -0,0 +1,61 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Bounded cache of {@link CompiledStreamConfig}s, keyed by the content of the
+ * raw stream configuration. When full, an arbitrary entry is evicted; stream
+ * configurations change rarely, so this only matters if they churn.
+ */
+public class StreamConfigCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private final ConcurrentMap<Map<String, String>, CompiledStreamConfig> cache
+            = new ConcurrentHashMap<Map<String, String>, CompiledStreamConfig>();
+
+    /**
+     * @return the compiled form of the configuration, or null if it has not been compiled yet
+     */
+    public CompiledStreamConfig get(Map<String, String> streamConfiguration) {
+        return cache.get(streamConfiguration);
+    }
+
+    public void put(CompiledStreamConfig compiled) {
+        if (cache.size() >= MAX_ENTRIES) {
+            Iterator<Map<String, String>> it = cache.keySet().iterator();
+            if (it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+        }
+        // Key on the compiled copy, so later changes to the caller's map can't corrupt the cache
+        cache.put(compiled.getValues(), compiled);
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can update without contending: each thread adds to
+ * one of several cells, chosen by its id, and reads sum the cells. Cells are
+ * spaced a cache line apart so threads on different cells don't share a line.
+ */
+public class StripedCounter {
+
+    static final int STRIPES = stripes();
+
+    // Longs per 64-byte cache line
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        cells.getAndIncrement(stripe() * PADDING);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    /**
+     * @return the cell for the current thread, in [0, {@link #STRIPES})
+     */
+    static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+    }
+
+    private static int stripes() {
+        // The next power of two at or above twice the processor count, up to 64
+        int target = Math.min(64, 2 * Runtime.getRuntime().availableProcessors());
+        int stripes = 1;
+        while (stripes < target) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+}
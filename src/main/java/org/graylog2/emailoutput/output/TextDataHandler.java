@@ -0,0 +1,62 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+
+import javax.activation.DataHandler;
+
+/**
+ * DataHandler for text content that writes the text as UTF-8 straight into the
+ * (transfer-encoding) stream it is given, so the body is never copied into
+ * intermediate byte arrays. It also avoids looking up a content handler through
+ * the activation framework's mailcap files.
+ */
+public class TextDataHandler extends DataHandler {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final CharSequence text;
+    private final long length;
+
+    /**
+     * @param length the length of the text in UTF-8
+     */
+    public TextDataHandler(CharSequence text, String contentType, long length) {
+        super(text, contentType + "; charset=UTF-8");
+        this.text = text;
+        this.length = length;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(OutputStream os) throws IOException {
+        Writer writer = new OutputStreamWriter(os, UTF_8);
+        writer.append(text);
+        writer.flush();
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Formats message timestamps as "yyyy-MM-dd'T'HH:mm:ss.SSS z". Each thread
+ * keeps the formatted text for the last second it saw, so messages arriving
+ * within the same second only need their milliseconds appended.
+ */
+public class TimestampFormat {
+
+    private static final ThreadLocal<TimestampFormat> INSTANCES = new ThreadLocal<TimestampFormat>() {
+        @Override
+        protected TimestampFormat initialValue() {
+            return new TimestampFormat();
+        }
+    };
+
+    private final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS z");
+    private final Date date = new Date();
+    private long cachedSecond = Long.MIN_VALUE;
+    private String cachedPrefix;
+    private String cachedSuffix;
+
+    private TimestampFormat() {}
+
+    /**
+     * @param createdAt seconds since the epoch, as provided by LogMessage.getCreatedAt()
+     */
+    public static StringBuilder appendISO8601(StringBuilder sb, double createdAt) {
+        return INSTANCES.get().append(sb, (long) (createdAt * 1000));
+    }
+
+    private StringBuilder append(StringBuilder sb, long millis) {
+        long second = floorDiv(millis, 1000);
+        int millisOfSecond = (int) (millis - second * 1000);
+
+        if (second != cachedSecond) {
+            // Format the start of the second, then split around the ".000" milliseconds
+            date.setTime(second * 1000);
+            String formatted = format.format(date);
+            int dot = formatted.indexOf('.');
+            cachedPrefix = formatted.substring(0, dot);
+            cachedSuffix = formatted.substring(dot + 4);
+            cachedSecond = second;
+        }
+
+        sb.append(cachedPrefix).append('.');
+        if (millisOfSecond < 100) {
+            sb.append('0');
+        }
+        if (millisOfSecond < 10) {
+            sb.append('0');
+        }
+        return sb.append(millisOfSecond).append(cachedSuffix);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        return ((x % y) != 0 && ((x ^ y) < 0)) ? q - 1 : q;
+    }
+}
@@ -0,0 +1,404 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * Pool of long-lived, connected SMTP Transports. Pools are shared between all
+ * outputs using the same server, port, credentials and pool sizing, and closed
+ * once the last of them has let go of it.
+ * <p>
+ * Connections are handed out most-recently-used first, checked with
+ * {@link Transport#isConnected()} (a NOOP for SMTP) if they have been idle for
+ * a while, recycled after a maximum number of messages, and closed once idle
+ * past a timeout. After a failed connect, further attempts are refused until a
+ * back-off period has passed, so a restarting relay isn't hit by every sender at once.
+ * Some connections may be reserved for critical emails, so they are sent promptly
+ * even while every other connection is busy.
+ */
+public class TransportPool {
+
+    private static final Logger LOG = Logger.getLogger(TransportPool.class.getName());
+
+    private static final long VALIDATE_AFTER_MILLIS = 2000;
+    private static final long BORROW_TIMEOUT_MILLIS = 30000;
+    private static final long MAX_RECONNECT_BACKOFF_MILLIS = 30000;
+
+    private static final ConcurrentMap<List<Object>, TransportPool> POOLS = new ConcurrentHashMap<List<Object>, TransportPool>();
+
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "email-output-transport-evictor");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public static class PooledTransport {
+        private final Transport transport;
+        private int messagesSent;
+        private long lastUsed;
+
+        private PooledTransport(Transport transport, long now) {
+            this.transport = transport;
+            this.lastUsed = now;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        public void recordSend() {
+            messagesSent++;
+        }
+    }
+
+    private final List<Object> key;
+    private final Session session;
+    private final String host;
+    private final int port;
+    private final boolean useAuthentication;
+    private final String username;
+    private final String password;
+
+    private final int minSize;
+    private final int maxSize;
+    private final int reservedSize;
+    private final long idleTimeoutMillis;
+    private final int maxMessagesPerConnection;
+    private final long reconnectIntervalMillis;
+
+    private final Deque<PooledTransport> idle = new ArrayDeque<PooledTransport>();
+    private int total;
+    private int consecutiveFailures;
+    private long nextConnectAllowed;
+    // Guarded by POOLS
+    private int users;
+    private boolean closed;
+    private ScheduledFuture<?> eviction;
+
+    /**
+     * Returns the shared pool for the server, credentials and pool sizing in the given
+     * plugin configuration, creating it on first use. Each call must be matched by a
+     * call to {@link #close()} once the pool is no longer used.
+     */
+    public static TransportPool get(Session session, Map<String, String> configuration)
+            throws MessageOutputConfigurationException {
+        List<Object> key = Arrays.<Object>asList(
+                session.getProperty("mail.transport.protocol"),
+                configuration.get("hostname"),
+                configuration.get("port"),
+                configuration.get("use_tls"),
+                configuration.get("use_auth"),
+                configuration.get("username"),
+                configuration.get("password"),
+                // Sizing, and the settings its defaults depend on
+                configuration.get("pool_min_size"),
+                configuration.get("pool_max_size"),
+                configuration.get("pool_reserved_connections"),
+                configuration.get("pool_idle_timeout"),
+                configuration.get("pool_max_messages"),
+                configuration.get("pool_reconnect_interval"),
+                configuration.get("send_connections"),
+                configuration.get("async"));
+
+        synchronized (POOLS) {
+            TransportPool pool = POOLS.get(key);
+            if (null == pool) {
+                pool = new TransportPool(key, session, configuration);
+                POOLS.put(key, pool);
+                pool.scheduleEviction();
+            }
+            pool.users++;
+            return pool;
+        }
+    }
+
+    /**
+     * @return the connections open across all pools, busy or idle
+     */
+    public static int getOpenConnections() {
+        int open = 0;
+        for (TransportPool pool : POOLS.values()) {
+            synchronized (pool) {
+                open += pool.total;
+            }
+        }
+        return open;
+    }
+
+    /**
+     * @return the connections currently borrowed across all pools
+     */
+    public static int getBusyConnections() {
+        int busy = 0;
+        for (TransportPool pool : POOLS.values()) {
+            synchronized (pool) {
+                busy += pool.total - pool.idle.size();
+            }
+        }
+        return busy;
+    }
+
+    public static int getMaxConnections() {
+        int max = 0;
+        for (TransportPool pool : POOLS.values()) {
+            max += pool.maxSize;
+        }
+        return max;
+    }
+
+    private TransportPool(List<Object> key, Session session, Map<String, String> configuration)
+            throws MessageOutputConfigurationException {
+        this.key = key;
+        this.session = session;
+        this.host = configuration.get("hostname");
+        this.port = ConfigUtil.parseInt(configuration, "port", 25);
+        if (port < 1 || port > 65535) {
+            throw new MessageOutputConfigurationException("Invalid configuration option: port; must be between 1 and 65535");
+        }
+        this.useAuthentication = Boolean.parseBoolean(configuration.get("use_auth"));
+        this.username = configuration.get("username");
+        this.password = configuration.get("password");
+
+        this.minSize = ConfigUtil.parseInt(configuration, "pool_min_size", 0);
+        // Enough connections for every parallel send lane unless explicitly limited
+        int lanes = ConfigUtil.parseInt(configuration, "send_connections", 1);
+        this.maxSize = Math.max(1, ConfigUtil.parseInt(configuration, "pool_max_size", Math.max(4, lanes)));
+        // Background sending has workers for critical emails; keep a connection free for them
+        int reserved = ConfigUtil.parseInt(configuration, "pool_reserved_connections",
+                Boolean.parseBoolean(configuration.get("async")) ? 1 : 0);
+        this.reservedSize = Math.max(0, Math.min(reserved, maxSize - 1));
+        this.idleTimeoutMillis = ConfigUtil.parseInt(configuration, "pool_idle_timeout", 60) * 1000L;
+        this.maxMessagesPerConnection = ConfigUtil.parseInt(configuration, "pool_max_messages", 100);
+        this.reconnectIntervalMillis = ConfigUtil.parseInt(configuration, "pool_reconnect_interval", 1000);
+    }
+
+    public PooledTransport borrow() throws MessagingException, InterruptedException {
+        return borrow(false);
+    }
+
+    /**
+     * @param reserved whether the connections reserved for critical emails may be used
+     */
+    public PooledTransport borrow(boolean reserved) throws MessagingException, InterruptedException {
+        long deadline = System.currentTimeMillis() + BORROW_TIMEOUT_MILLIS;
+        while (true) {
+            PooledTransport candidate = null;
+            synchronized (this) {
+                while ((idle.isEmpty() && total >= maxSize)
+                        || (!reserved && total - idle.size() >= maxSize - reservedSize)) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new MessagingException("Timed out waiting for an SMTP connection to " + host + ":" + port);
+                    }
+                    wait(remaining);
+                }
+                if (!idle.isEmpty()) {
+                    candidate = idle.pollFirst();
+                } else {
+                    total++;
+                }
+            }
+
+            if (null == candidate) {
+                return connect();
+            }
+            if (isUsable(candidate, System.currentTimeMillis())) {
+                return candidate;
+            }
+            discard(candidate);
+        }
+    }
+
+    public void release(PooledTransport transport) {
+        long now = System.currentTimeMillis();
+        if (transport.messagesSent >= maxMessagesPerConnection) {
+            discard(transport);
+            return;
+        }
+        transport.lastUsed = now;
+        synchronized (this) {
+            if (!closed) {
+                idle.offerFirst(transport);
+                notifyAll();
+                return;
+            }
+        }
+        discard(transport);
+    }
+
+    /**
+     * Closes and forgets a transport that failed while borrowed.
+     */
+    public void invalidate(PooledTransport transport) {
+        discard(transport);
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are unaffected.
+     */
+    public void closeIdle() {
+        List<PooledTransport> closing;
+        synchronized (this) {
+            closing = new ArrayList<PooledTransport>(idle);
+            idle.clear();
+        }
+        for (PooledTransport transport : closing) {
+            discard(transport);
+        }
+    }
+
+    /**
+     * Lets go of a pool returned by {@link #get}. Once no output uses it, the pool is
+     * forgotten, its idle connections are closed and connections still borrowed are
+     * closed when released.
+     */
+    public void close() {
+        synchronized (POOLS) {
+            if (--users > 0) {
+                return;
+            }
+            POOLS.remove(key);
+            eviction.cancel(false);
+        }
+        synchronized (this) {
+            closed = true;
+        }
+        closeIdle();
+    }
+
+    private PooledTransport connect() throws MessagingException {
+        boolean connected = false;
+        try {
+            synchronized (this) {
+                long now = System.currentTimeMillis();
+                if (now < nextConnectAllowed) {
+                    throw new MessagingException("Not reconnecting to " + host + ":" + port + " for another "
+                            + (nextConnectAllowed - now) + "ms after " + consecutiveFailures + " failed attempt(s)");
+                }
+            }
+
+            long start = System.nanoTime();
+            Transport transport = JavaMailUtil.buildTransport(session, host, port, useAuthentication, username, password);
+            EmailMetrics.INSTANCE.recordConnect(System.nanoTime() - start);
+            connected = true;
+            synchronized (this) {
+                consecutiveFailures = 0;
+                nextConnectAllowed = 0;
+            }
+            return new PooledTransport(transport, System.currentTimeMillis());
+        } finally {
+            if (!connected) {
+                synchronized (this) {
+                    total--;
+                    consecutiveFailures++;
+                    long backoff = Math.min(MAX_RECONNECT_BACKOFF_MILLIS,
+                            reconnectIntervalMillis << Math.min(consecutiveFailures - 1, 16));
+                    nextConnectAllowed = Math.max(nextConnectAllowed, System.currentTimeMillis() + backoff);
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    private boolean isUsable(PooledTransport transport, long now) {
+        return (now - transport.lastUsed) < VALIDATE_AFTER_MILLIS || transport.transport.isConnected();
+    }
+
+    private void discard(PooledTransport transport) {
+        synchronized (this) {
+            total--;
+            notifyAll();
+        }
+        try {
+            transport.transport.close();
+        } catch (MessagingException e) {
+            LOG.log(Level.FINE, "Could not close SMTP transport", e);
+        }
+    }
+
+    private void scheduleEviction() {
+        long period = Math.max(1000, Math.min(idleTimeoutMillis / 2, 30000));
+        eviction = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evict(System.currentTimeMillis());
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private void evict(long now) {
+        List<PooledTransport> expired = new ArrayList<PooledTransport>();
+        int missing;
+        synchronized (this) {
+            // Oldest connections are at the tail
+            Iterator<PooledTransport> it = idle.descendingIterator();
+            while (it.hasNext() && total - expired.size() > minSize) {
+                PooledTransport transport = it.next();
+                if (now - transport.lastUsed < idleTimeoutMillis) {
+                    break;
+                }
+                it.remove();
+                expired.add(transport);
+            }
+            missing = minSize - (total - expired.size());
+        }
+        for (PooledTransport transport : expired) {
+            discard(transport);
+        }
+
+        for (int i = 0; i < missing; i++) {
+            synchronized (this) {
+                if (total >= minSize) {
+                    break;
+                }
+                total++;
+            }
+            try {
+                release(connect());
+            } catch (MessagingException e) {
+                LOG.log(Level.FINE, "Could not open minimum SMTP connections to " + host + ":" + port, e);
+                break;
+            }
+        }
+    }
+}
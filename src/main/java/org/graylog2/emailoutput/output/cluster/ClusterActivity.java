@@ -0,0 +1,75 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.cluster;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What one or more nodes did since they last synchronized: emails sent per quota, and
+ * the fingerprints of messages let through by duplicate filters, with the time they were sent.
+ */
+public class ClusterActivity {
+
+    private final Map<String, Long> sends = new HashMap<String, Long>();
+    private final Map<Long, Long> fingerprints = new HashMap<Long, Long>();
+
+    public void addSends(String quota, long count) {
+        Long current = sends.get(quota);
+        sends.put(quota, (null == current) ? count : current + count);
+    }
+
+    /**
+     * Records a send of the message, keeping the most recent time for each fingerprint.
+     */
+    public void addFingerprint(long fingerprint, long timeMillis) {
+        Long current = fingerprints.get(fingerprint);
+        if (null == current || current < timeMillis) {
+            fingerprints.put(fingerprint, timeMillis);
+        }
+    }
+
+    public void addAll(ClusterActivity other) {
+        for (Map.Entry<String, Long> entry : other.sends.entrySet()) {
+            addSends(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<Long, Long> entry : other.fingerprints.entrySet()) {
+            addFingerprint(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return emails sent, by quota
+     */
+    public Map<String, Long> getSends() {
+        return sends;
+    }
+
+    /**
+     * @return the time each message was last sent, in milliseconds since the epoch, by fingerprint
+     */
+    public Map<Long, Long> getFingerprints() {
+        return fingerprints;
+    }
+
+    public boolean isEmpty() {
+        return sends.isEmpty() && fingerprints.isEmpty();
+    }
+}
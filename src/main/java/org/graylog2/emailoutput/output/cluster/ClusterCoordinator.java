@@ -0,0 +1,241 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.cluster;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares rate limit quotas and recently sent message fingerprints with the other nodes
+ * of a cluster. Sending threads only record what they did and look up what other nodes
+ * did in local maps; a background thread exchanges both with the {@link ClusterStore}
+ * in batches, so the send path never waits for it. Other nodes' activity is therefore
+ * seen up to one synchronization interval late, and limits may be briefly exceeded
+ * by the sends made in that interval.
+ */
+public class ClusterCoordinator {
+
+    private static final Logger LOG = Logger.getLogger(ClusterCoordinator.class.getName());
+
+    /** Quota shared by every email, for the global rate limit; other quotas are receivers. */
+    public static final String GLOBAL_QUOTA = "*";
+
+    public static final int DEFAULT_MAX_FINGERPRINTS = 100000;
+
+    /**
+     * Charged with emails other nodes sent, so local rate limits account for them.
+     */
+    public interface QuotaListener {
+        void consumed(String quota, long count);
+    }
+
+    private final ClusterStore store;
+    private final long retentionMillis;
+    private final int maxFingerprints;
+    private final ConcurrentMap<String, AtomicLong> pendingSends = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<Long, Long> pendingFingerprints = new ConcurrentHashMap<Long, Long>();
+    private final ConcurrentMap<Long, Long> remoteFingerprints = new ConcurrentHashMap<Long, Long>();
+    private volatile QuotaListener quotaListener;
+    private final ScheduledExecutorService scheduler;
+    private boolean failing;
+
+    /**
+     * @param retentionMillis how long other nodes' fingerprints are remembered; should be at least the longest dedup window
+     * @param maxFingerprints fingerprints remembered, and waiting to be published, at most
+     */
+    public ClusterCoordinator(ClusterStore store, long syncIntervalMillis, long retentionMillis, int maxFingerprints) {
+        this.store = store;
+        this.retentionMillis = retentionMillis;
+        this.maxFingerprints = maxFingerprints;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "email-output-cluster-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long interval = Math.max(1, syncIntervalMillis);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                synchronize();
+            }
+        }, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void setQuotaListener(QuotaListener quotaListener) {
+        this.quotaListener = quotaListener;
+    }
+
+    /**
+     * Records an email sent against the quota, to be published with the next synchronization.
+     */
+    public void recordSend(String quota) {
+        addPendingSends(quota, 1);
+    }
+
+    private void addPendingSends(String quota, long sends) {
+        AtomicLong count = pendingSends.get(quota);
+        if (null == count) {
+            AtomicLong created = new AtomicLong();
+            count = pendingSends.putIfAbsent(quota, created);
+            if (null == count) {
+                count = created;
+            }
+        }
+        count.addAndGet(sends);
+    }
+
+    /**
+     * Records that a message with the fingerprint was sent, so other nodes suppress its repeats.
+     */
+    public void recordFingerprint(long fingerprint, long timeMillis) {
+        if (pendingFingerprints.size() < maxFingerprints) {
+            pendingFingerprints.put(fingerprint, timeMillis);
+        }
+    }
+
+    /**
+     * @return when another node last sent a message with the fingerprint, or null if none did recently
+     */
+    public Long getRemoteSendTime(long fingerprint) {
+        return remoteFingerprints.get(fingerprint);
+    }
+
+    /**
+     * Publishes what is still pending and stops synchronizing.
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (scheduler.awaitTermination(10, TimeUnit.SECONDS)) {
+                synchronize();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.close();
+    }
+
+    private synchronized void synchronize() {
+        ClusterActivity local = drainPending();
+        ClusterActivity remote;
+        try {
+            remote = store.exchange(local);
+        } catch (IOException e) {
+            restorePending(local);
+            if (!failing) {
+                LOG.log(Level.WARNING, "Could not synchronize with other nodes; limits and duplicates apply per node until it recovers", e);
+                failing = true;
+            } else {
+                LOG.log(Level.FINE, "Could not synchronize with other nodes", e);
+            }
+            return;
+        } catch (RuntimeException e) {
+            // Keep synchronizing; a scheduled task that throws is not run again
+            restorePending(local);
+            LOG.log(Level.SEVERE, "Could not synchronize with other nodes", e);
+            return;
+        }
+        if (failing) {
+            LOG.info("Synchronizing with other nodes again");
+            failing = false;
+        }
+
+        QuotaListener listener = quotaListener;
+        if (null != listener) {
+            for (Map.Entry<String, Long> entry : remote.getSends().entrySet()) {
+                listener.consumed(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<Long, Long> entry : remote.getFingerprints().entrySet()) {
+            Long current = remoteFingerprints.get(entry.getKey());
+            if (null == current || current < entry.getValue()) {
+                remoteFingerprints.put(entry.getKey(), entry.getValue());
+            }
+        }
+        pruneRemoteFingerprints(System.currentTimeMillis());
+    }
+
+    private ClusterActivity drainPending() {
+        ClusterActivity local = new ClusterActivity();
+        for (Iterator<Map.Entry<String, AtomicLong>> it = pendingSends.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, AtomicLong> entry = it.next();
+            long count = entry.getValue().getAndSet(0);
+            if (count > 0) {
+                local.addSends(entry.getKey(), count);
+            } else {
+                // Idle quotas are forgotten; a send racing with this may go unpublished
+                it.remove();
+            }
+        }
+        for (Iterator<Map.Entry<Long, Long>> it = pendingFingerprints.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<Long, Long> entry = it.next();
+            local.addFingerprint(entry.getKey(), entry.getValue());
+            it.remove();
+        }
+        return local;
+    }
+
+    private void restorePending(ClusterActivity local) {
+        for (Map.Entry<String, Long> entry : local.getSends().entrySet()) {
+            addPendingSends(entry.getKey(), entry.getValue());
+        }
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        for (Map.Entry<Long, Long> entry : local.getFingerprints().entrySet()) {
+            if (entry.getValue() > cutoff) {
+                recordFingerprint(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void pruneRemoteFingerprints(long now) {
+        long cutoff = now - retentionMillis;
+        if (remoteFingerprints.size() > maxFingerprints) {
+            // Keep the most recently sent
+            long[] times = new long[remoteFingerprints.size()];
+            int i = 0;
+            for (Long time : remoteFingerprints.values()) {
+                if (i == times.length) {
+                    break;
+                }
+                times[i++] = time;
+            }
+            Arrays.sort(times, 0, i);
+            cutoff = Math.max(cutoff, times[Math.max(0, i - maxFingerprints)]);
+        }
+        for (Iterator<Long> it = remoteFingerprints.values().iterator(); it.hasNext();) {
+            if (it.next() < cutoff) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.cluster;
+
+import java.io.IOException;
+
+/**
+ * Storage shared by the nodes of a cluster, through which each node publishes its
+ * {@link ClusterActivity} and learns about the others'. Only the synchronization
+ * thread of a {@link ClusterCoordinator} calls a store, so it may block.
+ */
+public interface ClusterStore {
+
+    /**
+     * Publishes this node's activity, and returns the activity other nodes published since
+     * the previous call. The first call returns only the fingerprints of recently sent
+     * messages, since sends made before this node started have already been accounted for.
+     */
+    ClusterActivity exchange(ClusterActivity local) throws IOException;
+
+    void close();
+}
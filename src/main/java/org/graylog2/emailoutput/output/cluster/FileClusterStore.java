@@ -0,0 +1,216 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.cluster;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Cluster store in a file of a local directory, for nodes running on one host (or sharing
+ * a file system with working locks). Each exchange locks the file, reads the activity
+ * records of the retention period, appends one record of this node's activity and writes
+ * them back. Records are numbered, so each node reads every other node's record once.
+ */
+public class FileClusterStore implements ClusterStore {
+
+    private static final Logger LOG = Logger.getLogger(FileClusterStore.class.getName());
+
+    private static final String FILE_NAME = "email-output-cluster.dat";
+    private static final int MAGIC = 0x45434c53;
+    private static final int VERSION = 1;
+
+    // File locks are held by the JVM, not a thread; stores in one JVM must take turns
+    private static final Object JVM_LOCK = new Object();
+
+    private static class Record {
+        private final long sequence;
+        private final long timeMillis;
+        private final String node;
+        private final ClusterActivity activity;
+
+        private Record(long sequence, long timeMillis, String node, ClusterActivity activity) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.node = node;
+            this.activity = activity;
+        }
+    }
+
+    private final File file;
+    private final String nodeId;
+    private final long retentionMillis;
+    private long lastSequence = -1;
+
+    public FileClusterStore(File directory, String nodeId, long retentionMillis) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory " + directory);
+        }
+        this.file = new File(directory, FILE_NAME);
+        this.nodeId = nodeId;
+        this.retentionMillis = retentionMillis;
+    }
+
+    public ClusterActivity exchange(ClusterActivity local) throws IOException {
+        synchronized (JVM_LOCK) {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                FileLock lock = channel.lock();
+                try {
+                    return exchange(channel, local);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private ClusterActivity exchange(FileChannel channel, ClusterActivity local) throws IOException {
+        long now = System.currentTimeMillis();
+        List<Record> records = new ArrayList<Record>();
+        long nextSequence = read(channel, records);
+        if (lastSequence >= nextSequence) {
+            // The file was removed or reset since the last exchange
+            lastSequence = nextSequence - 1;
+        }
+
+        boolean first = lastSequence < 0;
+        ClusterActivity remote = new ClusterActivity();
+        List<Record> kept = new ArrayList<Record>(records.size() + 1);
+        for (Record record : records) {
+            if (now - record.timeMillis > retentionMillis) {
+                continue;
+            }
+            kept.add(record);
+            if (record.sequence > lastSequence && !nodeId.equals(record.node)) {
+                if (first) {
+                    for (Map.Entry<Long, Long> entry : record.activity.getFingerprints().entrySet()) {
+                        remote.addFingerprint(entry.getKey(), entry.getValue());
+                    }
+                } else {
+                    remote.addAll(record.activity);
+                }
+            }
+        }
+        if (!local.isEmpty()) {
+            kept.add(new Record(nextSequence++, now, nodeId, local));
+        }
+        lastSequence = nextSequence - 1;
+
+        if (kept.size() != records.size() || !local.isEmpty()) {
+            write(channel, nextSequence, kept);
+        }
+        return remote;
+    }
+
+    /**
+     * @return the sequence number of the next record
+     */
+    private long read(FileChannel channel, List<Record> records) throws IOException {
+        long size = channel.size();
+        if (0 == size) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        channel.position(0);
+        while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+            // Read it all
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buffer.array(), 0, buffer.position()));
+        long nextSequence = 0;
+        try {
+            if (MAGIC != in.readInt() || VERSION != in.readInt()) {
+                LOG.warning("Discarding " + file + "; not a cluster state file of this version");
+                return 0;
+            }
+            nextSequence = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long sequence = in.readLong();
+                long timeMillis = in.readLong();
+                String node = in.readUTF();
+                ClusterActivity activity = new ClusterActivity();
+                int sends = in.readInt();
+                for (int j = 0; j < sends; j++) {
+                    activity.addSends(in.readUTF(), in.readLong());
+                }
+                int fingerprints = in.readInt();
+                for (int j = 0; j < fingerprints; j++) {
+                    activity.addFingerprint(in.readLong(), in.readLong());
+                }
+                records.add(new Record(sequence, timeMillis, node, activity));
+            }
+        } catch (IOException e) {
+            LOG.warning("Discarding the rest of " + file + "; " + e);
+        }
+        return nextSequence;
+    }
+
+    private void write(FileChannel channel, long nextSequence, List<Record> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(nextSequence);
+        out.writeInt(records.size());
+        for (Record record : records) {
+            out.writeLong(record.sequence);
+            out.writeLong(record.timeMillis);
+            out.writeUTF(record.node);
+            out.writeInt(record.activity.getSends().size());
+            for (Map.Entry<String, Long> entry : record.activity.getSends().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.writeInt(record.activity.getFingerprints().size());
+            for (Map.Entry<Long, Long> entry : record.activity.getFingerprints().entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        out.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+        channel.position(0);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.truncate(buffer.limit());
+    }
+
+    public void close() {
+        // Nothing is held open between exchanges
+    }
+}
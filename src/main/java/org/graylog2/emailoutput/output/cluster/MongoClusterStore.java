@@ -0,0 +1,173 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.cluster;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.Mongo;
+import com.mongodb.MongoException;
+import com.mongodb.MongoURI;
+import com.mongodb.WriteConcern;
+
+/**
+ * Cluster store in a MongoDB collection, such as Graylog2's own database. Each exchange
+ * inserts one document of this node's activity and reads the documents other nodes
+ * inserted since the previous exchange. Documents are found by their time, looking back
+ * far enough to tolerate clock differences and slow inserts, and documents already read
+ * are remembered so none is counted twice. Documents older than the retention period
+ * are removed every minute.
+ */
+public class MongoClusterStore implements ClusterStore {
+
+    private static final long CLOCK_SLACK_MILLIS = 30000;
+    private static final long CLEANUP_INTERVAL_MILLIS = 60000;
+    private static final String DEFAULT_DATABASE = "graylog2";
+
+    private final Mongo mongo;
+    private final MongoURI uri;
+    private final String collectionName;
+    private final String nodeId;
+    private final long retentionMillis;
+    private DBCollection collection;
+    private long lastQueryMillis = -1;
+    private long lastCleanupMillis;
+    private final Map<Object, Long> read = new HashMap<Object, Long>();
+
+    /**
+     * Connects lazily, so a node can start while MongoDB is unavailable.
+     *
+     * @param uri a mongodb:// URI, with the database and optionally credentials
+     */
+    public MongoClusterStore(String uri, String collectionName, String nodeId, long retentionMillis) throws IOException {
+        try {
+            this.uri = new MongoURI(uri);
+            this.mongo = new Mongo(this.uri);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid MongoDB URI: " + uri + "; " + e.getMessage());
+        } catch (MongoException e) {
+            throw new IOException("Could not connect to MongoDB: " + e.getMessage());
+        }
+        this.collectionName = collectionName;
+        this.nodeId = nodeId;
+        this.retentionMillis = retentionMillis;
+    }
+
+    public ClusterActivity exchange(ClusterActivity local) throws IOException {
+        long now = System.currentTimeMillis();
+        try {
+            DBCollection activities = getCollection();
+            if (!local.isEmpty()) {
+                activities.insert(toDocument(local, now), WriteConcern.SAFE);
+            }
+
+            boolean first = lastQueryMillis < 0;
+            long since = first ? now - retentionMillis : lastQueryMillis - CLOCK_SLACK_MILLIS;
+            DBObject query = new BasicDBObject("t", new BasicDBObject("$gt", new Date(since)))
+                    .append("node", new BasicDBObject("$ne", nodeId));
+            ClusterActivity remote = new ClusterActivity();
+            DBCursor cursor = activities.find(query);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    Object id = document.get("_id");
+                    if (read.containsKey(id)) {
+                        continue;
+                    }
+                    read.put(id, ((Date) document.get("t")).getTime());
+                    addActivity(remote, document, first);
+                }
+            } finally {
+                cursor.close();
+            }
+            lastQueryMillis = now;
+
+            // Older documents are not queried again
+            for (Iterator<Long> it = read.values().iterator(); it.hasNext();) {
+                if (it.next() <= now - CLOCK_SLACK_MILLIS) {
+                    it.remove();
+                }
+            }
+            if (now - lastCleanupMillis > CLEANUP_INTERVAL_MILLIS) {
+                activities.remove(new BasicDBObject("t", new BasicDBObject("$lt", new Date(now - retentionMillis))));
+                lastCleanupMillis = now;
+            }
+            return remote;
+        } catch (MongoException e) {
+            throw new IOException("Could not synchronize through MongoDB: " + e.getMessage());
+        }
+    }
+
+    private DBCollection getCollection() throws IOException {
+        if (null == collection) {
+            DB db = mongo.getDB(null == uri.getDatabase() ? DEFAULT_DATABASE : uri.getDatabase());
+            if (null != uri.getUsername() && !db.isAuthenticated() && !db.authenticate(uri.getUsername(), uri.getPassword())) {
+                throw new IOException("Could not authenticate to MongoDB as " + uri.getUsername());
+            }
+            DBCollection created = db.getCollection(collectionName);
+            created.ensureIndex(new BasicDBObject("t", 1));
+            collection = created;
+        }
+        return collection;
+    }
+
+    private DBObject toDocument(ClusterActivity activity, long now) {
+        BasicDBList sends = new BasicDBList();
+        for (Map.Entry<String, Long> entry : activity.getSends().entrySet()) {
+            // Quotas are email addresses, which may not be field names
+            sends.add(new BasicDBObject("q", entry.getKey()).append("n", entry.getValue()));
+        }
+        BasicDBList fingerprints = new BasicDBList();
+        for (Map.Entry<Long, Long> entry : activity.getFingerprints().entrySet()) {
+            fingerprints.add(new BasicDBObject("f", entry.getKey()).append("t", entry.getValue()));
+        }
+        return new BasicDBObject("node", nodeId)
+                .append("t", new Date(now))
+                .append("sends", sends)
+                .append("fingerprints", fingerprints);
+    }
+
+    private static void addActivity(ClusterActivity activity, DBObject document, boolean fingerprintsOnly) {
+        if (!fingerprintsOnly) {
+            for (Object send : (List<?>) document.get("sends")) {
+                DBObject entry = (DBObject) send;
+                activity.addSends((String) entry.get("q"), ((Number) entry.get("n")).longValue());
+            }
+        }
+        for (Object fingerprint : (List<?>) document.get("fingerprints")) {
+            DBObject entry = (DBObject) fingerprint;
+            activity.addFingerprint(((Number) entry.get("f")).longValue(), ((Number) entry.get("t")).longValue());
+        }
+    }
+
+    public void close() {
+        mongo.close();
+    }
+}
@@ -19,136 +19,255 @@
  */
 package org.graylog2.emailoutput.output.html;
 
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.List;
 import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.regex.Pattern;
 
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.EmailBody;
 import org.graylog2.emailoutput.output.EmailLayout;
+import org.graylog2.emailoutput.output.EmailMetrics;
+import org.graylog2.emailoutput.output.EmailSubjects;
+import org.graylog2.emailoutput.output.FieldSelection;
 import org.graylog2.emailoutput.output.LogMessageUtil;
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.emailoutput.output.RenderBuffers;
+import org.graylog2.emailoutput.output.TimestampFormat;
+import org.graylog2.emailoutput.output.text.TextUtil;
 import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
 
+/**
+ * HTML layout. Optionally renders a plain text alternative in the same pass over each
+ * message, so the values and selected fields are only looked up once for both parts.
+ */
 public class HtmlEmailLayout implements EmailLayout
 {
-    private static final String CONTENT_TYPE = "text/html";
     private static final String LINK_TEXT = "View in Graylog2";
     private static final String SEPARATOR = "<hr style=\"height:1px;border:0px;color:#828181;background-color:#828181;\"/>\n";
+    private static final String DIGEST_SEPARATOR = "<hr style=\"height:3px;border:0px;color:#828181;background-color:#828181;\"/>\n";
     
-    // Work around thread safety issues, while still reusing instances
-    private static ThreadLocal<DateFormat> ISO_8601_DATE_FORMAT = new ThreadLocal<DateFormat>() {
-        @Override
-        protected DateFormat initialValue() {
-            return new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS z");
-        }
-    };
-    
-    private String subjectPrefix;
+    private final boolean alternativeText;
     private String webURL;
+    private MessageTextLimit textLimit = MessageTextLimit.UNLIMITED;
+    
+    public HtmlEmailLayout() {
+        this(false);
+    }
+    
+    /**
+     * @param alternativeText whether to also render a plain text alternative of every email
+     */
+    public HtmlEmailLayout(boolean alternativeText) {
+        this.alternativeText = alternativeText;
+    }
     
-    public void initialize(Map<String, String> pluginConfiguration) {
-        this.subjectPrefix = pluginConfiguration.get("subject_prefix");
+    public void initialize(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
         this.webURL = pluginConfiguration.get("web_interface_url");
+        this.textLimit = MessageTextLimit.fromConfiguration(pluginConfiguration);
     }
     
-    public String getContentType() {
-        return CONTENT_TYPE;
+    public void checkStreamConfiguration(CompiledStreamConfig streamConfiguration) {
     }
     
-    public String getSubject(LogMessage message, Map<String, String> streamConfiguration) {
-        String subject = streamConfiguration.get("subject");
+    public String getSubject(LogMessage message, CompiledStreamConfig streamConfiguration) {
+        return EmailSubjects.getSubject(message, streamConfiguration);
+    }
+    
+    public String getDigestSubject(List<LogMessage> messages, CompiledStreamConfig streamConfiguration) {
+        return EmailSubjects.getDigestSubject(messages, streamConfiguration);
+    }
+    
+    public String getSuppressedSubject(CompiledStreamConfig streamConfiguration, long suppressed) {
+        return EmailSubjects.getSuppressedSubject(streamConfiguration, suppressed);
+    }
+    
+    public EmailBody formatSuppressedBody(Map<String, Long> suppressedBySubject, long intervalSeconds) {
+        RenderBuffers buffers = RenderBuffers.get();
+        StringBuilder sb = buffers.body();
+        StringBuilder text = alternativeText ? buffers.text() : null;
+        sb.append("<html>\n").append("<body>\n");
         
-        if (subjectPrefix != null && !subjectPrefix.isEmpty()) {
-            subject = subjectPrefix + " " + subject;
+        sb.append("<p>The email rate limit was exceeded. These messages were not sent in the last ")
+                .append(intervalSeconds).append(" seconds:</p>\n");
+        sb.append("<table>");
+        for (Map.Entry<String, Long> entry : suppressedBySubject.entrySet()) {
+            sb.append("<tr>\n");
+            sb.append("<th align=\"left\">");
+            HtmlUtil.appendEncoded(sb, entry.getKey());
+            sb.append("</th>\n");
+            sb.append("<td>").append(entry.getValue().longValue()).append("</td>\n");
+            sb.append("</tr>\n");
         }
+        sb.append("</table>");
+        if (null != text) {
+            TextUtil.appendSuppressed(text, suppressedBySubject, intervalSeconds);
+        }
+        
+        sb.append("</body>").append("</html>\n");
         
-        return subject;
+        return toBody(sb, text);
     }
     
-    public String formatMessageBody(LogMessage msg, Map<String, String> streamConfiguration) {
-        StringBuilder sb = new StringBuilder();
+    public EmailBody formatMessageBody(LogMessage msg, CompiledStreamConfig streamConfiguration, int duplicates) {
+        long start = System.nanoTime();
+        RenderBuffers buffers = RenderBuffers.get();
+        StringBuilder sb = buffers.body();
+        StringBuilder text = alternativeText ? buffers.text() : null;
         sb.append("<html>\n").append("<body>\n");
         
+        appendMessage(sb, text, buffers, msg, streamConfiguration, duplicates);
+        
+        sb.append("</body>").append("</html>\n");
+        
+        EmailBody body = toBody(sb, text);
+        EmailMetrics.INSTANCE.recordRender(System.nanoTime() - start);
+        return body;
+    }
+    
+    public EmailBody formatDigestBody(List<LogMessage> messages, CompiledStreamConfig streamConfiguration, Map<LogMessage, Integer> duplicates) {
+        long start = System.nanoTime();
+        RenderBuffers buffers = RenderBuffers.get();
+        StringBuilder sb = buffers.body();
+        StringBuilder text = alternativeText ? buffers.text() : null;
+        sb.append("<html>\n").append("<body>\n");
+        
+        sb.append("<p>").append(messages.size()).append(" messages</p>\n");
+        sb.append(DIGEST_SEPARATOR);
+        if (null != text) {
+            text.append(messages.size()).append(" messages\n");
+            text.append(TextUtil.DIGEST_SEPARATOR);
+        }
+        
+        for (LogMessage msg : messages) {
+            Integer repeats = duplicates.get(msg);
+            appendMessage(sb, text, buffers, msg, streamConfiguration, (null == repeats) ? 0 : repeats.intValue());
+            sb.append(DIGEST_SEPARATOR);
+            if (null != text) {
+                text.append(TextUtil.DIGEST_SEPARATOR);
+            }
+        }
+        
+        sb.append("</body>").append("</html>\n");
+        
+        EmailBody body = toBody(sb, text);
+        EmailMetrics.INSTANCE.recordRender(System.nanoTime() - start);
+        return body;
+    }
+    
+    private static EmailBody toBody(StringBuilder sb, StringBuilder text) {
+        return (null != text)
+                ? EmailBody.alternative(text.toString(), sb.toString())
+                : EmailBody.html(sb.toString());
+    }
+    
+    /**
+     * Appends the message to the HTML body and, if text is not null, to the plain text body.
+     * The text matches what {@link org.graylog2.emailoutput.output.text.TextEmailLayout} renders.
+     */
+    private void appendMessage(StringBuilder sb, StringBuilder text, RenderBuffers buffers, LogMessage msg, CompiledStreamConfig streamConfiguration, int duplicates) {
         sb.append("<table>");
-        appendHTMLKeyValue(sb, "Date", getISO8601FormattedTimestamp(msg));
-        appendHTMLKeyValue(sb, "Level", LogMessageUtil.getLevelFullName(msg.getLevel()));
-        appendHTMLKeyValue(sb, "Host", msg.getHost());
-        appendHTMLKeyValue(sb, "Facility", msg.getFacility());
+        appendHTMLKeyStart(sb, "Date");
+        int dateStart = sb.length();
+        TimestampFormat.appendISO8601(sb, msg.getCreatedAt());
+        if (null != text) {
+            TextUtil.appendKeyStart(text, "Date");
+            text.append(sb, dateStart, sb.length());
+            TextUtil.appendKeyEnd(text);
+        }
+        appendHTMLKeyEnd(sb);
+        appendKeyValue(sb, text, "Level", LogMessageUtil.getLevelFullName(msg.getLevel()));
+        appendKeyValue(sb, text, "Host", msg.getHost());
+        appendKeyValue(sb, text, "Facility", msg.getFacility());
+        if (duplicates > 0) {
+            appendHTMLKeyStart(sb, "Repeated");
+            sb.append(duplicates).append(" times since last sent");
+            appendHTMLKeyEnd(sb);
+            if (null != text) {
+                TextUtil.appendKeyStart(text, "Repeated");
+                text.append(duplicates).append(" times since last sent");
+                TextUtil.appendKeyEnd(text);
+            }
+        }
         sb.append("</table>");
         sb.append(SEPARATOR);
+        if (null != text) {
+            text.append(TextUtil.SEPARATOR);
+        }
         
-        String messageURL = getMessageURL(msg);
-        if (null != messageURL) {
-            sb.append("<a href=\"").append(messageURL).append("\">").append(LINK_TEXT).append("</a>\n");
+        if (null != webURL && !webURL.isEmpty()) {
+            sb.append("<a href=\"").append(webURL).append("/messages/").append(msg.getId()).append("\">").append(LINK_TEXT).append("</a>\n");
             sb.append(SEPARATOR);
+            if (null != text) {
+                text.append(TextUtil.LINK_TEXT).append(webURL).append("/messages/").append(msg.getId()).append('\n');
+                text.append(TextUtil.SEPARATOR);
+            }
         }
         
-        sb.append(HtmlUtil.encode(getMessageText(msg))).append("<br/>\n");
+        String messageText = MessageTextLimit.getText(msg);
+        appendMessageText(sb, msg, messageText);
+        sb.append("<br/>\n");
         sb.append(SEPARATOR);
+        if (null != text) {
+            TextUtil.appendMessageText(text, msg, messageText, textLimit);
+            text.append('\n');
+            text.append(TextUtil.SEPARATOR);
+        }
         
-        Pattern fieldPattern = compilePattern(streamConfiguration.get("fields"));
-        SortedMap<String, Object> fieldValues = buildFieldValuesMap(msg, fieldPattern);
-        if (!fieldValues.isEmpty()) {
+        FieldSelection fields = buffers.fields().select(msg.getAdditionalData(), streamConfiguration);
+        if (fields.size() > 0) {
             sb.append("<table>");
-            for (Map.Entry<String, Object> entry : fieldValues.entrySet()) {
-                appendHTMLKeyValue(sb, entry.getKey(), entry.getValue());
+            for (int i = 0; i < fields.size(); i++) {
+                appendKeyValue(sb, text, fields.getName(i), fields.getValue(i));
             }
             sb.append("</table>");
             sb.append(SEPARATOR);
+            if (null != text) {
+                text.append(TextUtil.SEPARATOR);
+            }
         }
-        
-        sb.append("</body>").append("</html>\n");
-        
-        return sb.toString();
-    }
-    
-    private String getMessageURL(LogMessage msg) {
-        return (null == webURL || webURL.isEmpty())
-        		? null
-        		: webURL + "/messages/" + msg.getId();
+        fields.clear();
     }
     
-    private Pattern compilePattern(String string) {
-        return (null == string || string.isEmpty())
-                ? null
-                : Pattern.compile(string);
-    }
-    
-    private SortedMap<String, Object> buildFieldValuesMap(LogMessage msg, Pattern fieldPattern) {
-        SortedMap<String, Object> fieldValues = new TreeMap<String, Object>();
-        if (fieldPattern != null) {
-            Map<String, Object> additionalData = msg.getAdditionalData();
-            for (String field : additionalData.keySet()) {
-                if (fieldPattern.matcher(field).matches()) {
-                    Object value = additionalData.get(field);
-                    fieldValues.put(field, value);
-                }
-            }
+    private void appendMessageText(StringBuilder sb, LogMessage msg, String messageText) {
+        if (textLimit.isTruncated(messageText)) {
+            HtmlUtil.appendEncoded(sb, messageText, 0, textLimit.getInlineLength(messageText));
+            sb.append("<br/>\n<i>");
+            HtmlUtil.appendEncoded(sb, textLimit.getMarker(msg, messageText));
+            sb.append("</i>");
+        } else {
+            HtmlUtil.appendEncoded(sb, messageText);
         }
-        return fieldValues;
     }
     
-    private String getMessageText(LogMessage msg) {
-        // Prefer full message, if available
-        return (null != msg.getFullMessage())
-                ? msg.getFullMessage()
-                : msg.getShortMessage();
+
+    private void appendKeyValue(StringBuilder sb, StringBuilder text, String key, Object value) {
+        appendHTMLKeyValue(sb, key, value);
+        if (null != text) {
+            TextUtil.appendKeyValue(text, key, value);
+        }
     }
     
-    private String getISO8601FormattedTimestamp(LogMessage msg) {
-        double createdAt = msg.getCreatedAt();
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis((long) (createdAt * 1000));
-        return ISO_8601_DATE_FORMAT.get().format(cal.getTime());
+    private void appendHTMLKeyValue(StringBuilder sb, String key, Object value) {
+        appendHTMLKeyStart(sb, key);
+        if (value instanceof CharSequence) {
+            HtmlUtil.appendEncoded(sb, (CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            // Numbers never need encoding, and can be appended without creating a String
+            sb.append(((Number) value).longValue());
+        } else {
+            HtmlUtil.appendEncoded(sb, String.valueOf(value));
+        }
+        appendHTMLKeyEnd(sb);
     }
     
-
-    private void appendHTMLKeyValue(StringBuilder sb, String key, Object value) {
+    private void appendHTMLKeyStart(StringBuilder sb, String key) {
         sb.append("<tr>\n");
         sb.append("<th align=\"left\">").append(key).append("</th>\n");
-        sb.append("<td>").append(HtmlUtil.encode(String.valueOf(value))).append("</td>\n");
+        sb.append("<td>");
+    }
+    
+    private void appendHTMLKeyEnd(StringBuilder sb) {
+        sb.append("</td>\n");
         sb.append("</tr>\n");
     }
 }
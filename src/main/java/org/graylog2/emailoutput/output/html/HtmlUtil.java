@@ -35,6 +35,39 @@ public class HtmlUtil
                 : string;
     }
     
+    /**
+     * Appends the HTML-encoded form of a string directly to a builder, without any
+     * intermediate copies.
+     */
+    public static StringBuilder appendEncoded(StringBuilder out, CharSequence string) {
+        if (string == null) {
+            return out.append((String) null);
+        }
+        return appendEncoded(out, string, 0, string.length());
+    }
+    
+    /**
+     * Appends the HTML-encoded form of the characters from begin (inclusive) to end (exclusive).
+     */
+    public static StringBuilder appendEncoded(StringBuilder out, CharSequence string, int begin, int end) {
+        int start = begin;
+        for (int i = begin; i < end; i++) {
+            String replacement = getHtmlReplacement(string.charAt(i));
+            if (null != replacement) {
+                // Copy the run of unescaped characters in one go
+                if (i > start) {
+                    out.append(string, start, i);
+                }
+                out.append(replacement);
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            out.append(string, start, end);
+        }
+        return out;
+    }
+    
     private static String getHtmlReplacement(char c) {
         switch(c) {
             case '<':  return "&lt;";
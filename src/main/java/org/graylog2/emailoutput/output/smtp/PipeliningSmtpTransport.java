@@ -0,0 +1,414 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.smtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.URLName;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+import com.sun.mail.util.BASE64EncoderStream;
+
+/**
+ * SMTP transport that avoids waiting for a reply after every command. When the server
+ * offers PIPELINING, the envelope and data of an email are sent together: with CHUNKING
+ * as MAIL, RCPT and one BDAT LAST in a single round trip, otherwise with DATA in two.
+ * Sockets are non-blocking and all connections share one selector thread, so many
+ * pooled connections cost no more threads. Servers without PIPELINING get one command
+ * at a time, as with the standard transport.
+ * <p>
+ * Failures are reported with the same exceptions as JavaMail's SMTP transport. STARTTLS
+ * and SSL are not supported. Session properties are read as mail.smtp-nio.*: port,
+ * connectiontimeout and timeout (milliseconds), localhost, auth and from.
+ */
+public class PipeliningSmtpTransport extends Transport {
+
+    public static final String PROTOCOL = "smtp-nio";
+
+    private static final Logger LOG = Logger.getLogger(PipeliningSmtpTransport.class.getName());
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+    private static final int DEFAULT_PORT = 25;
+    private static final long DEFAULT_CONNECTION_TIMEOUT_MILLIS = 30000;
+    private static final long DEFAULT_TIMEOUT_MILLIS = 60000;
+    private static final long QUIT_TIMEOUT_MILLIS = 5000;
+
+    private final long connectionTimeoutMillis;
+    private final long timeoutMillis;
+
+    private SmtpConnection connection;
+    private String host;
+    private boolean pipelining;
+    private boolean chunking;
+    private boolean size;
+    private final Set<String> authMechanisms = new HashSet<String>();
+
+    public PipeliningSmtpTransport(Session session, URLName urlname) {
+        super(session, urlname);
+        this.connectionTimeoutMillis = getLongProperty("connectiontimeout", DEFAULT_CONNECTION_TIMEOUT_MILLIS);
+        this.timeoutMillis = getLongProperty("timeout", DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password) throws MessagingException {
+        boolean useAuthentication = Boolean.parseBoolean(getProperty("auth"));
+        if (useAuthentication && (null == user || null == password)) {
+            return false;
+        }
+        if (port < 0) {
+            port = (int) getLongProperty("port", DEFAULT_PORT);
+        }
+        this.host = (null == host) ? "localhost" : host;
+
+        try {
+            connection = SmtpConnection.open(new InetSocketAddress(this.host, port));
+            expect(connection.getGreeting().await(connectionTimeoutMillis), 220, "connect");
+            hello();
+            if (useAuthentication) {
+                authenticate(user, password);
+            }
+            return true;
+        } catch (IOException e) {
+            closeConnection();
+            throw new MessagingException("Could not connect to SMTP host: " + this.host + ", port: " + port, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeConnection();
+            throw new MessagingException("Interrupted while connecting to SMTP host: " + this.host + ", port: " + port, e);
+        } catch (MessagingException e) {
+            closeConnection();
+            throw e;
+        }
+    }
+
+    private void hello() throws IOException, InterruptedException, MessagingException {
+        String localHost = getLocalHost();
+        SmtpReply reply = command("EHLO " + localHost);
+        if (250 != reply.getCode()) {
+            expect(command("HELO " + localHost), 250, "HELO");
+            return;
+        }
+
+        String[] lines = reply.getText().split("\n");
+        // The first line is the server's name
+        for (int i = 1; i < lines.length; i++) {
+            String[] words = lines[i].trim().toUpperCase(Locale.ENGLISH).split("[ =]+");
+            String keyword = words[0];
+            if ("PIPELINING".equals(keyword)) {
+                pipelining = true;
+            } else if ("CHUNKING".equals(keyword)) {
+                chunking = true;
+            } else if ("SIZE".equals(keyword)) {
+                size = true;
+            } else if ("AUTH".equals(keyword)) {
+                for (int j = 1; j < words.length; j++) {
+                    authMechanisms.add(words[j]);
+                }
+            }
+        }
+    }
+
+    private void authenticate(String user, String password) throws IOException, InterruptedException, MessagingException {
+        SmtpReply reply;
+        if (authMechanisms.contains("PLAIN")) {
+            reply = command("AUTH PLAIN " + base64("\0" + user + "\0" + password));
+        } else if (authMechanisms.contains("LOGIN")) {
+            reply = command("AUTH LOGIN");
+            if (334 == reply.getCode()) {
+                reply = command(base64(user));
+            }
+            if (334 == reply.getCode()) {
+                reply = command(base64(password));
+            }
+        } else {
+            throw new AuthenticationFailedException("SMTP server offers neither AUTH PLAIN nor AUTH LOGIN");
+        }
+        if (235 != reply.getCode()) {
+            throw new AuthenticationFailedException(reply.toString());
+        }
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        if (null == connection) {
+            throw new IllegalStateException("Not connected");
+        }
+        if (!(message instanceof MimeMessage)) {
+            throw new MessagingException("SMTP can only send RFC822 messages");
+        }
+        if (null == addresses || 0 == addresses.length) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        InternetAddress[] recipients = new InternetAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            if (!(addresses[i] instanceof InternetAddress)) {
+                throw new MessagingException(addresses[i] + " is not an InternetAddress");
+            }
+            recipients[i] = (InternetAddress) addresses[i];
+        }
+        InternetAddress sender = getSender((MimeMessage) message);
+
+        try {
+            SmtpDataBuffer data = new SmtpDataBuffer(!chunking);
+            ((MimeMessage) message).writeTo(data, IGNORED_HEADERS);
+            data.finish();
+            transaction(sender, recipients, data);
+        } catch (IOException e) {
+            closeConnection();
+            throw new MessagingException("Could not send email to SMTP host: " + host, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeConnection();
+            throw new MessagingException("Interrupted while sending email to SMTP host: " + host, e);
+        }
+    }
+
+    private void transaction(InternetAddress sender, InternetAddress[] recipients, SmtpDataBuffer data)
+            throws IOException, InterruptedException, MessagingException {
+        String mail = "MAIL FROM:<" + sender.getAddress() + ">" + (size ? " SIZE=" + data.size() : "");
+        String[] rcpts = new String[recipients.length];
+        for (int i = 0; i < recipients.length; i++) {
+            rcpts[i] = "RCPT TO:<" + recipients[i].getAddress() + ">";
+        }
+
+        SmtpReply mailReply;
+        SmtpReply[] rcptReplies = new SmtpReply[recipients.length];
+        SmtpReply dataReply;
+        String dataCommand = chunking ? "BDAT " + data.size() + " LAST" : "DATA";
+        if (pipelining) {
+            // The whole envelope, and with CHUNKING the content too, in one write
+            StringBuilder commands = new StringBuilder(mail).append("\r\n");
+            for (String rcpt : rcpts) {
+                commands.append(rcpt).append("\r\n");
+            }
+            commands.append(dataCommand).append("\r\n");
+            ByteBuffer[] buffers = chunking
+                    ? new ByteBuffer[] { ascii(commands), data.toByteBuffer() }
+                    : new ByteBuffer[] { ascii(commands) };
+            List<SmtpConnection.PendingReply> replies = connection.send(buffers, recipients.length + 2);
+            mailReply = replies.get(0).await(timeoutMillis);
+            for (int i = 0; i < recipients.length; i++) {
+                rcptReplies[i] = replies.get(i + 1).await(timeoutMillis);
+            }
+            dataReply = replies.get(recipients.length + 1).await(timeoutMillis);
+        } else {
+            mailReply = command(mail);
+            if (250 != mailReply.getCode()) {
+                reset();
+                throw new SMTPSenderFailedException(sender, mail, mailReply.getCode(), mailReply.getText());
+            }
+            boolean accepted = false;
+            for (int i = 0; i < recipients.length; i++) {
+                rcptReplies[i] = command(rcpts[i]);
+                accepted |= rcptReplies[i].isPositive();
+            }
+            dataReply = accepted
+                    ? (chunking ? commandWithData(dataCommand, data) : command(dataCommand))
+                    : null;
+        }
+
+        if (250 != mailReply.getCode()) {
+            reset();
+            throw new SMTPSenderFailedException(sender, mail, mailReply.getCode(), mailReply.getText());
+        }
+
+        List<Address> valid = new ArrayList<Address>();
+        List<Address> invalid = new ArrayList<Address>();
+        MessagingException chain = null;
+        for (int i = 0; i < recipients.length; i++) {
+            if (rcptReplies[i].isPositive()) {
+                valid.add(recipients[i]);
+            } else {
+                invalid.add(recipients[i]);
+                MessagingException failure = new SMTPAddressFailedException(
+                        recipients[i], rcpts[i], rcptReplies[i].getCode(), rcptReplies[i].getText());
+                if (null == chain) {
+                    chain = failure;
+                } else {
+                    chain.setNextException(failure);
+                }
+            }
+        }
+        if (valid.isEmpty()) {
+            if (null != dataReply && 354 == dataReply.getCode()) {
+                // The pipelined DATA was accepted regardless; end it without content
+                command(".");
+            }
+            reset();
+            throw new SendFailedException("Invalid Addresses", chain, new Address[0], new Address[0], toArray(invalid));
+        }
+
+        if (!chunking && 354 == dataReply.getCode()) {
+            List<SmtpConnection.PendingReply> replies = connection.send(
+                    new ByteBuffer[] { data.toByteBuffer(), ascii(".\r\n") }, 1);
+            dataReply = replies.get(0).await(timeoutMillis);
+        }
+        if (250 != dataReply.getCode()) {
+            reset();
+            throw new SMTPSendFailedException(dataCommand, dataReply.getCode(), dataReply.getText(), chain,
+                    new Address[0], toArray(valid), toArray(invalid));
+        }
+        if (!invalid.isEmpty()) {
+            // The envelope was pipelined, so the valid recipients have already been sent the email
+            throw new SendFailedException("Invalid Addresses", chain, toArray(valid), new Address[0], toArray(invalid));
+        }
+    }
+
+    private InternetAddress getSender(MimeMessage message) throws MessagingException {
+        String from = getProperty("from");
+        if (null != from) {
+            return new InternetAddress(from);
+        }
+        Address[] addresses = message.getFrom();
+        if (null != addresses && addresses.length > 0 && addresses[0] instanceof InternetAddress) {
+            return (InternetAddress) addresses[0];
+        }
+        InternetAddress local = InternetAddress.getLocalAddress(session);
+        if (null == local) {
+            throw new MessagingException("Can't determine SMTP MAIL FROM address");
+        }
+        return local;
+    }
+
+    /**
+     * Discards the failed transaction, so the connection can be used for the next email.
+     */
+    private void reset() throws IOException, InterruptedException {
+        command("RSET");
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        if (!super.isConnected() || null == connection) {
+            return false;
+        }
+        try {
+            if (250 == command("NOOP").getCode()) {
+                return true;
+            }
+        } catch (IOException e) {
+            // Not connected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeConnection();
+        setConnected(false);
+        return false;
+    }
+
+    @Override
+    public synchronized void close() throws MessagingException {
+        if (null != connection) {
+            try {
+                connection.send(new ByteBuffer[] { ascii("QUIT\r\n") }, 1).get(0).await(QUIT_TIMEOUT_MILLIS);
+            } catch (IOException e) {
+                // Closing anyway
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeConnection();
+        }
+        super.close();
+    }
+
+    private void closeConnection() {
+        if (null != connection) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    private SmtpReply command(String command) throws IOException, InterruptedException {
+        return connection.send(new ByteBuffer[] { ascii(command + "\r\n") }, 1).get(0).await(timeoutMillis);
+    }
+
+    private SmtpReply commandWithData(String command, SmtpDataBuffer data) throws IOException, InterruptedException {
+        return connection.send(new ByteBuffer[] { ascii(command + "\r\n"), data.toByteBuffer() }, 1).get(0).await(timeoutMillis);
+    }
+
+    private static void expect(SmtpReply reply, int code, String command) throws MessagingException {
+        if (code != reply.getCode()) {
+            throw new MessagingException("SMTP " + command + " failed: " + reply);
+        }
+    }
+
+    private String getLocalHost() {
+        String localHost = getProperty("localhost");
+        if (null != localHost && !localHost.isEmpty()) {
+            return localHost;
+        }
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    private String getProperty(String name) {
+        return session.getProperty("mail." + PROTOCOL + "." + name);
+    }
+
+    private long getLongProperty(String name, long defaultValue) {
+        String value = getProperty(name);
+        if (null == value || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            LOG.warning("Invalid value " + value + " of mail." + PROTOCOL + "." + name + "; using " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static ByteBuffer ascii(CharSequence text) {
+        return ByteBuffer.wrap(text.toString().getBytes(US_ASCII));
+    }
+
+    private static String base64(String text) {
+        return new String(BASE64EncoderStream.encode(text.getBytes(Charset.forName("UTF-8"))), US_ASCII);
+    }
+
+    private static Address[] toArray(List<Address> addresses) {
+        return addresses.toArray(new Address[addresses.size()]);
+    }
+}
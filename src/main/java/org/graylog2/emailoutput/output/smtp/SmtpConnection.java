@@ -0,0 +1,289 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.smtp;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A non-blocking connection to an SMTP server, driven by the shared {@link SmtpSelector}.
+ * Any number of commands can be queued before their replies arrive; the server answers
+ * them in order, so each reply read completes the oldest one still expected.
+ */
+final class SmtpConnection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    /**
+     * A reply that has been asked for, and that the caller can wait for.
+     */
+    static final class PendingReply {
+        private SmtpReply reply;
+        private IOException failure;
+
+        private synchronized void complete(SmtpReply reply) {
+            this.reply = reply;
+            notifyAll();
+        }
+
+        private synchronized void fail(IOException failure) {
+            this.failure = failure;
+            notifyAll();
+        }
+
+        /**
+         * @throws SocketTimeoutException if there is no reply within the timeout
+         * @throws IOException if the connection failed before the reply arrived
+         */
+        synchronized SmtpReply await(long timeoutMillis) throws IOException, InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (null == reply && null == failure) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No SMTP reply within " + timeoutMillis + "ms");
+                }
+                wait(remaining);
+            }
+            if (null != failure) {
+                // Wrap, so the stack trace shows the caller as well as the selector thread
+                IOException wrapped = new IOException(failure.getMessage());
+                wrapped.initCause(failure);
+                throw wrapped;
+            }
+            return reply;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final SmtpSelector selector;
+    private final PendingReply greeting = new PendingReply();
+    private volatile SelectionKey key;
+
+    // Guarded by this
+    private final Deque<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>();
+    private final Deque<PendingReply> pending = new ArrayDeque<PendingReply>();
+    private IOException failure;
+
+    // Only used by the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final StringBuilder line = new StringBuilder(128);
+    private final StringBuilder replyText = new StringBuilder(128);
+
+    private SmtpConnection(SocketChannel channel, SmtpSelector selector) {
+        this.channel = channel;
+        this.selector = selector;
+        pending.add(greeting);
+    }
+
+    /**
+     * Starts connecting to the server; wait for {@link #getGreeting()} to know when it is ready.
+     */
+    static SmtpConnection open(InetSocketAddress address) throws IOException {
+        if (address.isUnresolved()) {
+            // SocketChannel.connect would throw the unchecked UnresolvedAddressException
+            throw new UnknownHostException(address.getHostName());
+        }
+        SmtpSelector selector = SmtpSelector.get();
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            // Such as UnsupportedAddressTypeException; callers expect an IOException
+            channel.close();
+            IOException wrapped = new IOException("Could not connect to " + address + ": " + e);
+            wrapped.initCause(e);
+            throw wrapped;
+        }
+        SmtpConnection connection = new SmtpConnection(channel, selector);
+        selector.register(connection);
+        return connection;
+    }
+
+    /**
+     * Queues data to be written, followed by waiting for a number of replies. Data is written
+     * straight away as far as the socket accepts it, and the rest by the selector thread.
+     */
+    synchronized List<PendingReply> send(ByteBuffer[] data, int replies) throws IOException {
+        if (null != failure) {
+            throw failure;
+        }
+        List<PendingReply> expected = new ArrayList<PendingReply>(replies);
+        for (int i = 0; i < replies; i++) {
+            PendingReply reply = new PendingReply();
+            pending.add(reply);
+            expected.add(reply);
+        }
+        boolean idle = outgoing.isEmpty();
+        for (ByteBuffer buffer : data) {
+            outgoing.add(buffer);
+        }
+        if (idle && channel.isConnected()) {
+            try {
+                writeOutgoing();
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+        if (!outgoing.isEmpty()) {
+            selector.requestWrite(this);
+        }
+        return expected;
+    }
+
+    PendingReply getGreeting() {
+        return greeting;
+    }
+
+    synchronized boolean hasOutgoing() {
+        return !outgoing.isEmpty();
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    void finishConnect() throws IOException {
+        channel.finishConnect();
+    }
+
+    synchronized void onWritable() throws IOException {
+        writeOutgoing();
+    }
+
+    private void writeOutgoing() throws IOException {
+        while (!outgoing.isEmpty()) {
+            ByteBuffer buffer = outgoing.peekFirst();
+            channel.write(buffer);
+            if (buffer.hasRemaining()) {
+                return;
+            }
+            outgoing.pollFirst();
+        }
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read < 0) {
+            throw new EOFException("SMTP server closed the connection");
+        }
+        readBuffer.flip();
+        while (readBuffer.hasRemaining()) {
+            char c = (char) (readBuffer.get() & 0xff);
+            if (c == '\n') {
+                processLine();
+                line.setLength(0);
+            } else if (c != '\r') {
+                line.append(c);
+            }
+        }
+        readBuffer.clear();
+    }
+
+    private void processLine() throws IOException {
+        if (line.length() < 3) {
+            throw new IOException("Invalid SMTP reply: " + line);
+        }
+        int code;
+        try {
+            code = Integer.parseInt(line.substring(0, 3));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid SMTP reply: " + line);
+        }
+        if (replyText.length() > 0) {
+            replyText.append('\n');
+        }
+        if (line.length() > 4) {
+            replyText.append(line, 4, line.length());
+        }
+        if (line.length() > 3 && line.charAt(3) == '-') {
+            // Continued on the next line
+            return;
+        }
+
+        SmtpReply reply = new SmtpReply(code, replyText.toString());
+        replyText.setLength(0);
+        PendingReply expected;
+        synchronized (this) {
+            expected = pending.pollFirst();
+        }
+        if (null == expected) {
+            // Such as a 421 before the server closes the connection
+            throw new IOException("Unexpected SMTP reply: " + reply);
+        }
+        expected.complete(reply);
+    }
+
+    /**
+     * Closes the connection, failing every reply still expected.
+     */
+    void fail(IOException cause) {
+        List<PendingReply> failed;
+        synchronized (this) {
+            if (null != failure) {
+                return;
+            }
+            failure = cause;
+            failed = new ArrayList<PendingReply>(pending);
+            pending.clear();
+            outgoing.clear();
+        }
+        for (PendingReply reply : failed) {
+            reply.fail(cause);
+        }
+        SelectionKey selectionKey = key;
+        if (null != selectionKey) {
+            selectionKey.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Already failed
+        }
+    }
+
+    void close() {
+        fail(new ClosedChannelException());
+    }
+}
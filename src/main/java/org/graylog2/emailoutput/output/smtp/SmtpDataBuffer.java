@@ -0,0 +1,104 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.smtp;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Collects a message as it will be sent: every line ending as CRLF, and for DATA (unlike
+ * BDAT) lines starting with a dot escaped with another one.
+ */
+final class SmtpDataBuffer extends OutputStream {
+
+    private final boolean dotStuffing;
+    private byte[] bytes = new byte[8192];
+    private int count;
+    private boolean lineStart = true;
+    private boolean afterCR;
+
+    SmtpDataBuffer(boolean dotStuffing) {
+        this.dotStuffing = dotStuffing;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 3);
+        append((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        // At worst every byte becomes two
+        ensureCapacity(count + 2 * len + 1);
+        for (int i = off; i < off + len; i++) {
+            append(b[i]);
+        }
+    }
+
+    private void append(byte b) {
+        if (b == '\r') {
+            bytes[count++] = '\r';
+            bytes[count++] = '\n';
+            lineStart = true;
+            afterCR = true;
+            return;
+        }
+        if (b == '\n') {
+            if (!afterCR) {
+                bytes[count++] = '\r';
+                bytes[count++] = '\n';
+                lineStart = true;
+            }
+            afterCR = false;
+            return;
+        }
+        if (lineStart && dotStuffing && b == '.') {
+            bytes[count++] = '.';
+        }
+        bytes[count++] = b;
+        lineStart = false;
+        afterCR = false;
+    }
+
+    /**
+     * Ends the last line, if it isn't already.
+     */
+    void finish() {
+        if (!lineStart) {
+            write('\n');
+        }
+    }
+
+    int size() {
+        return count;
+    }
+
+    ByteBuffer toByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, count);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+}
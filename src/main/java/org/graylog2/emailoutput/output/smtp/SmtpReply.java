@@ -0,0 +1,54 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.smtp;
+
+/**
+ * A complete, possibly multi-line, SMTP server reply.
+ */
+final class SmtpReply {
+
+    private final int code;
+    private final String text;
+
+    SmtpReply(int code, String text) {
+        this.code = code;
+        this.text = text;
+    }
+
+    int getCode() {
+        return code;
+    }
+
+    /**
+     * @return the text of every line without the reply codes, joined by newlines
+     */
+    String getText() {
+        return text;
+    }
+
+    boolean isPositive() {
+        return code >= 200 && code < 400;
+    }
+
+    @Override
+    public String toString() {
+        return code + " " + text;
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.smtp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The single thread doing I/O for every non-blocking SMTP connection. Callers queue
+ * commands on a connection and wait for its replies; this thread writes whatever the
+ * socket accepts, and completes replies as they are read.
+ */
+final class SmtpSelector implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(SmtpSelector.class.getName());
+
+    private static SmtpSelector instance;
+
+    private final Selector selector;
+    private final Queue<SmtpConnection> registrations = new ConcurrentLinkedQueue<SmtpConnection>();
+    private final Queue<SmtpConnection> writeRequests = new ConcurrentLinkedQueue<SmtpConnection>();
+
+    private SmtpSelector() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    static synchronized SmtpSelector get() throws IOException {
+        if (null == instance) {
+            instance = new SmtpSelector();
+            Thread thread = new Thread(instance, "email-output-smtp-selector");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return instance;
+    }
+
+    void register(SmtpConnection connection) {
+        registrations.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks for the connection's queued data to be written once the socket accepts more.
+     */
+    void requestWrite(SmtpConnection connection) {
+        writeRequests.add(connection);
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+                processRegistrations();
+                processWriteRequests();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    process(key);
+                }
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "SMTP selector failed", e);
+            } catch (RuntimeException e) {
+                LOG.log(Level.WARNING, "SMTP selector failed", e);
+            }
+        }
+    }
+
+    private void processRegistrations() {
+        SmtpConnection connection;
+        while (null != (connection = registrations.poll())) {
+            try {
+                int ops = connection.getChannel().isConnected() ? interestOps(connection) : SelectionKey.OP_CONNECT;
+                connection.setKey(connection.getChannel().register(selector, ops, connection));
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+    }
+
+    private void processWriteRequests() {
+        SmtpConnection connection;
+        while (null != (connection = writeRequests.poll())) {
+            SelectionKey key = connection.getKey();
+            // Connections still connecting or registering ask again once that is done
+            if (null != key && key.isValid() && 0 == (key.interestOps() & SelectionKey.OP_CONNECT)) {
+                key.interestOps(interestOps(connection));
+            }
+        }
+    }
+
+    private void process(SelectionKey key) {
+        SmtpConnection connection = (SmtpConnection) key.attachment();
+        try {
+            if (key.isConnectable()) {
+                connection.finishConnect();
+                key.interestOps(interestOps(connection));
+                return;
+            }
+            if (key.isReadable()) {
+                connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+                connection.onWritable();
+                key.interestOps(interestOps(connection));
+            }
+        } catch (IOException e) {
+            connection.fail(e);
+        } catch (CancelledKeyException e) {
+            // Closed by a caller meanwhile
+        }
+    }
+
+    private static int interestOps(SmtpConnection connection) {
+        return connection.hasOutgoing()
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ;
+    }
+}
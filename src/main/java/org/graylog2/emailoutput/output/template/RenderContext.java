@@ -0,0 +1,93 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.FieldSelection;
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * Everything a template can refer to while rendering one email. Instances are
+ * reused per thread, so rendering allocates nothing beyond the output.
+ */
+class RenderContext {
+
+    // A subject is rendered while the context of its email is being prepared, so it has its own
+    private static final ThreadLocal<RenderContext> EMAIL_CONTEXTS = new ThreadLocal<RenderContext>() {
+        @Override
+        protected RenderContext initialValue() {
+            return new RenderContext();
+        }
+    };
+    private static final ThreadLocal<RenderContext> SUBJECT_CONTEXTS = new ThreadLocal<RenderContext>() {
+        @Override
+        protected RenderContext initialValue() {
+            return new RenderContext();
+        }
+    };
+
+    static RenderContext forEmail() {
+        return EMAIL_CONTEXTS.get();
+    }
+
+    static RenderContext forSubject() {
+        return SUBJECT_CONTEXTS.get();
+    }
+
+    final FieldSelection fields = new FieldSelection();
+
+    String webURL;
+    MessageTextLimit textLimit = MessageTextLimit.UNLIMITED;
+    String subject;
+    CompiledStreamConfig streamConfiguration;
+    Template messageTemplate;
+    List<LogMessage> messages = Collections.emptyList();
+    Map<LogMessage, Integer> duplicatesByMessage = Collections.emptyMap();
+
+    // The message being rendered, and the field being rendered within {{#fields}}
+    LogMessage message;
+    int duplicates;
+    int fieldIndex = -1;
+
+    // Values are cut short, and rendering stops, once the output is this long
+    int maxLength = Integer.MAX_VALUE;
+
+    void setMessage(LogMessage message, int duplicates) {
+        this.message = message;
+        this.duplicates = duplicates;
+        this.fieldIndex = -1;
+        fields.select(message.getAdditionalData(), streamConfiguration);
+    }
+
+    void clear() {
+        streamConfiguration = null;
+        messageTemplate = null;
+        messages = Collections.emptyList();
+        duplicatesByMessage = Collections.emptyMap();
+        message = null;
+        fields.clear();
+        maxLength = Integer.MAX_VALUE;
+    }
+}
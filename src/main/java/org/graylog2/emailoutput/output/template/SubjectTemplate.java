@@ -0,0 +1,91 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import java.util.Collections;
+
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.RenderBuffers;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * A subject referring to values of the message, such as "{{level_name}} on {{host}}" or
+ * "{{field._service}} failed". It is compiled once with the stream configuration, and
+ * rendered as plain text on a single line.
+ */
+public class SubjectTemplate {
+
+    // Keep the header bounded when a value, such as short_message, is long
+    private static final int MAX_LENGTH = 255;
+
+    private final String prefix;
+    private final Template template;
+
+    private SubjectTemplate(String prefix, Template template) {
+        this.prefix = prefix;
+        this.template = template;
+    }
+
+    /**
+     * @param prefix text to put before the rendered subject, which is not a template
+     * @return the compiled subject, or null if it has no template tags and is always the same
+     */
+    public static SubjectTemplate compile(String prefix, String subject) throws MessageOutputConfigurationException {
+        if (null == subject || !subject.contains("{{")) {
+            return null;
+        }
+        return new SubjectTemplate(null == prefix ? "" : prefix, Template.compile(subject, false));
+    }
+
+    public String render(LogMessage message, CompiledStreamConfig streamConfiguration) {
+        RenderBuffers buffers = RenderBuffers.get();
+        StringBuilder sb = buffers.subject();
+        sb.append(prefix);
+
+        RenderContext context = RenderContext.forSubject();
+        context.streamConfiguration = streamConfiguration;
+        context.messages = Collections.singletonList(message);
+        context.setMessage(message, 0);
+        // Long values are cut short as they are appended rather than rendered in full
+        context.maxLength = MAX_LENGTH;
+        try {
+            template.render(sb, context);
+        } finally {
+            context.clear();
+        }
+
+        if (sb.length() > MAX_LENGTH) {
+            sb.setLength(MAX_LENGTH);
+        }
+        if (sb.length() > 0 && Character.isHighSurrogate(sb.charAt(sb.length() - 1))) {
+            sb.setLength(sb.length() - 1);
+        }
+        for (int i = 0; i < sb.length(); i++) {
+            char c = sb.charAt(i);
+            if (c == '\r' || c == '\n' || c == '\t') {
+                sb.setCharAt(i, ' ');
+            }
+        }
+        String subject = sb.toString();
+        buffers.trimSubject();
+        return subject;
+    }
+}
@@ -0,0 +1,396 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.emailoutput.output.html.HtmlUtil;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * A template compiled to a list of rendering steps. Templates use a small subset of
+ * Mustache:
+ * <ul>
+ * <li>{{name}} inserts a value, HTML-encoded for HTML templates, and {{{name}}} inserts it as is.
+ *     Names are those of {@link Variable}, or field.NAME for an additional field.</li>
+ * <li>{{#name}}...{{/name}} renders its content if the value is present and not empty or zero,
+ *     and {{^name}}...{{/name}} if it is not.</li>
+ * <li>{{#fields}}...{{/fields}} renders its content for each included field, as {{name}} and {{value}}.</li>
+ * <li>{{#messages}}...{{/messages}} renders its content for each message of the email.</li>
+ * <li>{{>message}} renders the message template for the current message.</li>
+ * <li>{{! comment }} renders nothing.</li>
+ * </ul>
+ * A message template renders a single message, so it may use neither {{#messages}} nor {{>message}}.
+ * Names are resolved when the template is compiled, so rendering does no lookups by name.
+ */
+public class Template {
+
+    private static final String FIELD_PREFIX = "field.";
+
+    private interface Node {
+        void render(StringBuilder out, RenderContext context);
+    }
+
+    private static class TextNode implements Node {
+        private final String text;
+
+        private TextNode(String text) {
+            this.text = text;
+        }
+
+        public void render(StringBuilder out, RenderContext context) {
+            out.append(text);
+        }
+    }
+
+    private static class VariableNode implements Node {
+        private final Variable variable;
+        private final boolean escape;
+
+        private VariableNode(Variable variable, boolean escape) {
+            this.variable = variable;
+            this.escape = escape;
+        }
+
+        public void render(StringBuilder out, RenderContext context) {
+            if (variable.isAvailable(context)) {
+                variable.append(out, context, escape);
+            }
+        }
+    }
+
+    private static class FieldNode implements Node {
+        private final String field;
+        private final boolean escape;
+
+        private FieldNode(String field, boolean escape) {
+            this.field = field;
+            this.escape = escape;
+        }
+
+        public void render(StringBuilder out, RenderContext context) {
+            if (null != context.message) {
+                appendValue(out, context, context.message.getAdditionalData().get(field), escape);
+            }
+        }
+    }
+
+    private static class SectionNode implements Node {
+        private final Variable variable;
+        private final String field;
+        private final boolean inverted;
+        private final Node[] body;
+
+        private SectionNode(Variable variable, String field, boolean inverted, Node[] body) {
+            this.variable = variable;
+            this.field = field;
+            this.inverted = inverted;
+            this.body = body;
+        }
+
+        public void render(StringBuilder out, RenderContext context) {
+            boolean set = (null != variable)
+                    ? variable.isSet(context)
+                    : null != context.message && isSet(context.message.getAdditionalData().get(field));
+            if (set != inverted) {
+                renderAll(body, out, context);
+            }
+        }
+    }
+
+    private static class FieldsNode implements Node {
+        private final Node[] body;
+
+        private FieldsNode(Node[] body) {
+            this.body = body;
+        }
+
+        public void render(StringBuilder out, RenderContext context) {
+            if (null == context.message) {
+                return;
+            }
+            int size = context.fields.size();
+            for (int i = 0; i < size; i++) {
+                context.fieldIndex = i;
+                renderAll(body, out, context);
+            }
+            context.fieldIndex = -1;
+        }
+    }
+
+    private static class MessagesNode implements Node {
+        private final Node[] body;
+
+        private MessagesNode(Node[] body) {
+            this.body = body;
+        }
+
+        public void render(StringBuilder out, RenderContext context) {
+            LogMessage outer = context.message;
+            int outerDuplicates = context.duplicates;
+            for (LogMessage message : context.messages) {
+                Integer duplicates = context.duplicatesByMessage.get(message);
+                context.setMessage(message, (null == duplicates) ? 0 : duplicates.intValue());
+                renderAll(body, out, context);
+            }
+            if (null != outer) {
+                context.setMessage(outer, outerDuplicates);
+            } else {
+                context.message = null;
+                context.fields.clear();
+            }
+        }
+    }
+
+    private static class MessagePartialNode implements Node {
+        public void render(StringBuilder out, RenderContext context) {
+            if (null != context.message && null != context.messageTemplate) {
+                context.messageTemplate.render(out, context);
+            }
+        }
+    }
+
+    private final Node[] nodes;
+
+    private Template(Node[] nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * @param escapeHtml whether {{name}} should HTML-encode values
+     */
+    public static Template compile(String source, boolean escapeHtml) throws MessageOutputConfigurationException {
+        return new Template(new Parser(source, escapeHtml, false).parse());
+    }
+
+    /**
+     * Compiles a template rendered by {{>message}}, rejecting the tags that would render it again.
+     *
+     * @param escapeHtml whether {{name}} should HTML-encode values
+     */
+    public static Template compileMessageTemplate(String source, boolean escapeHtml) throws MessageOutputConfigurationException {
+        return new Template(new Parser(source, escapeHtml, true).parse());
+    }
+
+    void render(StringBuilder out, RenderContext context) {
+        renderAll(nodes, out, context);
+    }
+
+    private static void renderAll(Node[] nodes, StringBuilder out, RenderContext context) {
+        for (Node node : nodes) {
+            if (out.length() >= context.maxLength) {
+                return;
+            }
+            node.render(out, context);
+        }
+    }
+
+    /**
+     * Appends the value, or as much of it as fits within the context's maximum length.
+     */
+    static void appendValue(StringBuilder out, RenderContext context, Object value, boolean escape) {
+        if (null == value) {
+            return;
+        }
+        if (value instanceof Integer || value instanceof Long) {
+            // Numbers never need encoding, and can be appended without creating a String
+            out.append(((Number) value).longValue());
+            return;
+        }
+        CharSequence text = (value instanceof CharSequence) ? (CharSequence) value : String.valueOf(value);
+        int end = (int) Math.max(0, Math.min(text.length(), (long) context.maxLength - out.length()));
+        if (escape) {
+            HtmlUtil.appendEncoded(out, text, 0, end);
+        } else {
+            out.append(text, 0, end);
+        }
+    }
+
+    /**
+     * Appends a message's text, truncated to the context's limit and followed by a marker if it is longer.
+     */
+    static void appendMessageText(StringBuilder out, RenderContext context, String text, boolean escape) {
+        MessageTextLimit limit = context.textLimit;
+        if (!limit.isTruncated(text)) {
+            appendValue(out, context, text, escape);
+            return;
+        }
+        int inlineLength = limit.getInlineLength(text);
+        String marker = limit.getMarker(context.message, text);
+        if (escape) {
+            HtmlUtil.appendEncoded(out, text, 0, inlineLength);
+            out.append("<br/>\n<i>");
+            HtmlUtil.appendEncoded(out, marker);
+            out.append("</i>");
+        } else {
+            out.append(text, 0, inlineLength).append('\n').append(marker);
+        }
+    }
+
+    static boolean isSet(Object value) {
+        if (null == value) {
+            return false;
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length() > 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() != 0;
+        }
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return true;
+    }
+
+    private static class Parser {
+        private final String source;
+        private final boolean escapeHtml;
+        private final boolean messageTemplate;
+        private int position;
+
+        private Parser(String source, boolean escapeHtml, boolean messageTemplate) {
+            this.source = source;
+            this.escapeHtml = escapeHtml;
+            this.messageTemplate = messageTemplate;
+        }
+
+        private Node[] parse() throws MessageOutputConfigurationException {
+            return parseUntil(null);
+        }
+
+        /**
+         * Parses nodes up to the closing tag of the named section, or the end of the template.
+         */
+        private Node[] parseUntil(String section) throws MessageOutputConfigurationException {
+            List<Node> nodes = new ArrayList<Node>();
+            StringBuilder text = new StringBuilder();
+            while (position < source.length()) {
+                int open = source.indexOf("{{", position);
+                if (open < 0) {
+                    text.append(source, position, source.length());
+                    position = source.length();
+                    break;
+                }
+                text.append(source, position, open);
+
+                boolean triple = source.startsWith("{{{", open);
+                String close = triple ? "}}}" : "}}";
+                int start = open + (triple ? 3 : 2);
+                int end = source.indexOf(close, start);
+                if (end < 0) {
+                    throw error("Unclosed tag", open);
+                }
+                position = end + close.length();
+
+                String tag = source.substring(start, end).trim();
+                char type = tag.isEmpty() ? ' ' : tag.charAt(0);
+                if (triple) {
+                    addText(nodes, text);
+                    nodes.add(variable(tag, false, open));
+                } else if ('!' == type) {
+                    continue;
+                } else if ('#' == type || '^' == type) {
+                    addText(nodes, text);
+                    nodes.add(section(tag.substring(1).trim(), '^' == type, open));
+                } else if ('/' == type) {
+                    String name = tag.substring(1).trim();
+                    if (!name.equals(section)) {
+                        throw error("Unexpected closing tag {{/" + name + "}}", open);
+                    }
+                    addText(nodes, text);
+                    return nodes.toArray(new Node[nodes.size()]);
+                } else if ('>' == type) {
+                    String name = tag.substring(1).trim();
+                    if (!"message".equals(name)) {
+                        throw error("Unknown template {{>" + name + "}}", open);
+                    }
+                    if (messageTemplate) {
+                        // It would render itself until the stack overflows
+                        throw error("{{>message}} cannot be used in a message template", open);
+                    }
+                    addText(nodes, text);
+                    nodes.add(new MessagePartialNode());
+                } else {
+                    addText(nodes, text);
+                    nodes.add(variable(tag, escapeHtml, open));
+                }
+            }
+
+            if (null != section) {
+                throw error("Missing closing tag {{/" + section + "}}", source.length());
+            }
+            addText(nodes, text);
+            return nodes.toArray(new Node[nodes.size()]);
+        }
+
+        private Node section(String name, boolean inverted, int offset) throws MessageOutputConfigurationException {
+            Node[] body = parseUntil(name);
+            if (!inverted && "fields".equals(name)) {
+                return new FieldsNode(body);
+            }
+            if (!inverted && "messages".equals(name)) {
+                if (messageTemplate) {
+                    throw error("{{#messages}} cannot be used in a message template", offset);
+                }
+                return new MessagesNode(body);
+            }
+            if (name.startsWith(FIELD_PREFIX)) {
+                return new SectionNode(null, name.substring(FIELD_PREFIX.length()), inverted, body);
+            }
+            return new SectionNode(resolve(name, offset), null, inverted, body);
+        }
+
+        private Node variable(String name, boolean escape, int offset) throws MessageOutputConfigurationException {
+            if (name.startsWith(FIELD_PREFIX)) {
+                return new FieldNode(name.substring(FIELD_PREFIX.length()), escape);
+            }
+            return new VariableNode(resolve(name, offset), escape);
+        }
+
+        private Variable resolve(String name, int offset) throws MessageOutputConfigurationException {
+            Variable variable = Variable.forName(name);
+            if (null == variable) {
+                throw error("Unknown variable {{" + name + "}}", offset);
+            }
+            return variable;
+        }
+
+        private static void addText(List<Node> nodes, StringBuilder text) {
+            if (text.length() > 0) {
+                nodes.add(new TextNode(text.toString()));
+                text.setLength(0);
+            }
+        }
+
+        private MessageOutputConfigurationException error(String problem, int offset) {
+            int line = 1;
+            for (int i = 0; i < offset && i < source.length(); i++) {
+                if ('\n' == source.charAt(i)) {
+                    line++;
+                }
+            }
+            return new MessageOutputConfigurationException("Invalid template: " + problem + " on line " + line);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.ConfigUtil;
+import org.graylog2.emailoutput.output.EmailBody;
+import org.graylog2.emailoutput.output.EmailLayout;
+import org.graylog2.emailoutput.output.EmailMetrics;
+import org.graylog2.emailoutput.output.EmailSubjects;
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.emailoutput.output.RenderBuffers;
+import org.graylog2.emailoutput.output.html.HtmlEmailLayout;
+import org.graylog2.emailoutput.output.text.TextUtil;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * Layout rendering emails from {@link Template}s. Three templates make up an email:
+ * the message template renders one message, and the email and digest templates
+ * wrap it for a single message and for a digest. Each can be given inline or as a
+ * file, and defaults to markup matching {@link HtmlEmailLayout}. A stream can
+ * override the message template with its own "template" option.
+ * <p>
+ * Templates are compiled once, a stream's own template when its configuration is
+ * checked. Template files are checked for changes at most once per reload interval,
+ * and recompiled when they change.
+ */
+public class TemplateEmailLayout implements EmailLayout
+{
+    private static final Logger LOG = Logger.getLogger(TemplateEmailLayout.class.getName());
+    
+    private static final String SEPARATOR = "<hr style=\"height:1px;border:0px;color:#828181;background-color:#828181;\"/>\n";
+    private static final String DIGEST_SEPARATOR = "<hr style=\"height:3px;border:0px;color:#828181;background-color:#828181;\"/>\n";
+    
+    private static final String DEFAULT_MESSAGE_TEMPLATE = "<table>"
+            + "<tr>\n<th align=\"left\">Date</th>\n<td>{{date}}</td>\n</tr>\n"
+            + "<tr>\n<th align=\"left\">Level</th>\n<td>{{level_name}}</td>\n</tr>\n"
+            + "<tr>\n<th align=\"left\">Host</th>\n<td>{{host}}</td>\n</tr>\n"
+            + "<tr>\n<th align=\"left\">Facility</th>\n<td>{{facility}}</td>\n</tr>\n"
+            + "{{#repeated}}<tr>\n<th align=\"left\">Repeated</th>\n<td>{{repeated}} times since last sent</td>\n</tr>\n{{/repeated}}"
+            + "</table>" + SEPARATOR
+            + "{{#link}}<a href=\"{{link}}\">View in Graylog2</a>\n" + SEPARATOR + "{{/link}}"
+            + "{{message}}<br/>\n" + SEPARATOR
+            + "{{#field_count}}<table>"
+            + "{{#fields}}<tr>\n<th align=\"left\">{{name}}</th>\n<td>{{value}}</td>\n</tr>\n{{/fields}}"
+            + "</table>" + SEPARATOR + "{{/field_count}}";
+    private static final String DEFAULT_EMAIL_TEMPLATE = "<html>\n<body>\n{{>message}}</body></html>\n";
+    private static final String DEFAULT_DIGEST_TEMPLATE = "<html>\n<body>\n"
+            + "<p>{{count}} messages</p>\n" + DIGEST_SEPARATOR
+            + "{{#messages}}{{>message}}" + DIGEST_SEPARATOR + "{{/messages}}"
+            + "</body></html>\n";
+    
+    /**
+     * A template given inline or as a file; a file is recompiled when it changes.
+     */
+    private static class TemplateSource {
+        private final File file;
+        private final boolean escapeHtml;
+        private final boolean messageTemplate;
+        private final long reloadIntervalMillis;
+        private volatile Template template;
+        private volatile long nextCheck;
+        private long lastModified;
+        private long length;
+        
+        private TemplateSource(String inline, boolean escapeHtml, boolean messageTemplate) throws MessageOutputConfigurationException {
+            this.file = null;
+            this.escapeHtml = escapeHtml;
+            this.messageTemplate = messageTemplate;
+            this.reloadIntervalMillis = 0;
+            this.template = compile(inline, escapeHtml, messageTemplate);
+        }
+        
+        private TemplateSource(File file, boolean escapeHtml, boolean messageTemplate, long reloadIntervalMillis)
+                throws MessageOutputConfigurationException {
+            this.file = file;
+            this.escapeHtml = escapeHtml;
+            this.messageTemplate = messageTemplate;
+            this.reloadIntervalMillis = reloadIntervalMillis;
+            try {
+                load();
+            } catch (IOException e) {
+                throw new MessageOutputConfigurationException("Could not read template file: " + file + "; " + e.getMessage());
+            }
+            this.nextCheck = System.currentTimeMillis() + reloadIntervalMillis;
+        }
+        
+        private Template get() {
+            if (null != file && reloadIntervalMillis > 0) {
+                long now = System.currentTimeMillis();
+                if (now >= nextCheck) {
+                    reloadIfChanged(now);
+                }
+            }
+            return template;
+        }
+        
+        private synchronized void reloadIfChanged(long now) {
+            if (now < nextCheck) {
+                // Another thread just checked
+                return;
+            }
+            nextCheck = now + reloadIntervalMillis;
+            if (file.lastModified() == lastModified && file.length() == length) {
+                return;
+            }
+            try {
+                load();
+                LOG.info("Reloaded template file " + file);
+            } catch (Exception e) {
+                LOG.warning("Could not reload template file " + file + ", still using the previous version: " + e.getMessage());
+                // Don't retry until the file changes again
+                lastModified = file.lastModified();
+                length = file.length();
+            }
+        }
+        
+        private void load() throws IOException, MessageOutputConfigurationException {
+            long modified = file.lastModified();
+            long size = file.length();
+            Template loaded = compile(read(file), escapeHtml, messageTemplate);
+            lastModified = modified;
+            length = size;
+            template = loaded;
+        }
+    }
+    
+    private String contentType;
+    private boolean escapeHtml;
+    private String webURL;
+    private MessageTextLimit textLimit = MessageTextLimit.UNLIMITED;
+    private TemplateSource messageTemplate;
+    private TemplateSource emailTemplate;
+    private TemplateSource digestTemplate;
+    private final HtmlEmailLayout htmlLayout = new HtmlEmailLayout();
+    
+    public void initialize(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        String configuredType = pluginConfiguration.get("template_content_type");
+        this.contentType = (null == configuredType || configuredType.trim().isEmpty()) ? "text/html" : configuredType.trim();
+        this.escapeHtml = "text/html".equalsIgnoreCase(contentType);
+        this.webURL = pluginConfiguration.get("web_interface_url");
+        this.textLimit = MessageTextLimit.fromConfiguration(pluginConfiguration);
+        
+        long reloadIntervalMillis = ConfigUtil.parseInt(pluginConfiguration, "template_reload_interval", 5) * 1000L;
+        this.messageTemplate = source(pluginConfiguration, "template", DEFAULT_MESSAGE_TEMPLATE, true, reloadIntervalMillis);
+        this.emailTemplate = source(pluginConfiguration, "template_email", DEFAULT_EMAIL_TEMPLATE, false, reloadIntervalMillis);
+        this.digestTemplate = source(pluginConfiguration, "template_digest", DEFAULT_DIGEST_TEMPLATE, false, reloadIntervalMillis);
+        
+        htmlLayout.initialize(pluginConfiguration);
+    }
+    
+    private TemplateSource source(Map<String, String> pluginConfiguration, String key, String defaultTemplate,
+            boolean messageTemplate, long reloadIntervalMillis) throws MessageOutputConfigurationException {
+        String file = pluginConfiguration.get(key + "_file");
+        if (null != file && !file.trim().isEmpty()) {
+            return new TemplateSource(new File(file.trim()), escapeHtml, messageTemplate, reloadIntervalMillis);
+        }
+        String inline = pluginConfiguration.get(key);
+        return new TemplateSource((null != inline && !inline.isEmpty()) ? inline : defaultTemplate, escapeHtml, messageTemplate);
+    }
+    
+    public void checkStreamConfiguration(CompiledStreamConfig streamConfiguration) throws MessageOutputConfigurationException {
+        String template = streamConfiguration.get("template");
+        if (null != template && !template.isEmpty()) {
+            streamConfiguration.setMessageTemplate(compile(template, escapeHtml, true));
+        }
+    }
+    
+    public String getSubject(LogMessage message, CompiledStreamConfig streamConfiguration) {
+        return EmailSubjects.getSubject(message, streamConfiguration);
+    }
+    
+    public String getDigestSubject(List<LogMessage> messages, CompiledStreamConfig streamConfiguration) {
+        return EmailSubjects.getDigestSubject(messages, streamConfiguration);
+    }
+    
+    public String getSuppressedSubject(CompiledStreamConfig streamConfiguration, long suppressed) {
+        return EmailSubjects.getSuppressedSubject(streamConfiguration, suppressed);
+    }
+    
+    public EmailBody formatSuppressedBody(Map<String, Long> suppressedBySubject, long intervalSeconds) {
+        if (escapeHtml) {
+            return htmlLayout.formatSuppressedBody(suppressedBySubject, intervalSeconds);
+        }
+        StringBuilder sb = RenderBuffers.get().body();
+        TextUtil.appendSuppressed(sb, suppressedBySubject, intervalSeconds);
+        return toBody(sb.toString());
+    }
+    
+    public EmailBody formatMessageBody(LogMessage msg, CompiledStreamConfig streamConfiguration, int duplicates) {
+        long start = System.nanoTime();
+        StringBuilder sb = RenderBuffers.get().body();
+        RenderContext context = prepare(RenderContext.forEmail(), streamConfiguration, getSubject(msg, streamConfiguration));
+        context.messages = Collections.singletonList(msg);
+        context.setMessage(msg, duplicates);
+        
+        try {
+            emailTemplate.get().render(sb, context);
+        } finally {
+            context.clear();
+        }
+        
+        EmailBody body = toBody(sb.toString());
+        EmailMetrics.INSTANCE.recordRender(System.nanoTime() - start);
+        return body;
+    }
+    
+    public EmailBody formatDigestBody(List<LogMessage> messages, CompiledStreamConfig streamConfiguration, Map<LogMessage, Integer> duplicates) {
+        long start = System.nanoTime();
+        StringBuilder sb = RenderBuffers.get().body();
+        RenderContext context = prepare(RenderContext.forEmail(), streamConfiguration, getDigestSubject(messages, streamConfiguration));
+        context.messages = messages;
+        context.duplicatesByMessage = duplicates;
+        
+        try {
+            digestTemplate.get().render(sb, context);
+        } finally {
+            context.clear();
+        }
+        
+        EmailBody body = toBody(sb.toString());
+        EmailMetrics.INSTANCE.recordRender(System.nanoTime() - start);
+        return body;
+    }
+    
+    private EmailBody toBody(String body) {
+        return escapeHtml ? EmailBody.html(body) : EmailBody.text(body, contentType);
+    }
+    
+    private RenderContext prepare(RenderContext context, CompiledStreamConfig streamConfiguration, String subject) {
+        context.webURL = webURL;
+        context.textLimit = textLimit;
+        context.subject = subject;
+        context.streamConfiguration = streamConfiguration;
+        context.messageTemplate = getMessageTemplate(streamConfiguration);
+        return context;
+    }
+    
+    private Template getMessageTemplate(CompiledStreamConfig streamConfiguration) {
+        // Compiled by checkStreamConfiguration if the stream has a template of its own
+        Template template = streamConfiguration.getMessageTemplate();
+        return (null != template) ? template : messageTemplate.get();
+    }
+    
+    private static Template compile(String source, boolean escapeHtml, boolean messageTemplate) throws MessageOutputConfigurationException {
+        return messageTemplate
+                ? Template.compileMessageTemplate(source, escapeHtml)
+                : Template.compile(source, escapeHtml);
+    }
+    
+    private static String read(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        try {
+            StringBuilder sb = new StringBuilder((int) Math.min(file.length(), Integer.MAX_VALUE));
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) >= 0) {
+                sb.append(buffer, 0, read);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import org.graylog2.emailoutput.output.LogMessageUtil;
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.emailoutput.output.TimestampFormat;
+
+/**
+ * The values a template can refer to by name, resolved when the template is compiled.
+ */
+enum Variable {
+    ID("id", true) {
+        Object get(RenderContext context) {
+            return context.message.getId();
+        }
+    },
+    DATE("date", true) {
+        Object get(RenderContext context) {
+            return context.message.getCreatedAt();
+        }
+
+        @Override
+        void append(StringBuilder out, RenderContext context, boolean escape) {
+            TimestampFormat.appendISO8601(out, context.message.getCreatedAt());
+        }
+    },
+    LEVEL("level", true) {
+        Object get(RenderContext context) {
+            return context.message.getLevel();
+        }
+    },
+    LEVEL_NAME("level_name", true) {
+        Object get(RenderContext context) {
+            return LogMessageUtil.getLevelFullName(context.message.getLevel());
+        }
+    },
+    HOST("host", true) {
+        Object get(RenderContext context) {
+            return context.message.getHost();
+        }
+    },
+    FACILITY("facility", true) {
+        Object get(RenderContext context) {
+            return context.message.getFacility();
+        }
+    },
+    FILE("file", true) {
+        Object get(RenderContext context) {
+            return context.message.getFile();
+        }
+    },
+    LINE("line", true) {
+        Object get(RenderContext context) {
+            return context.message.getLine();
+        }
+    },
+    SHORT_MESSAGE("short_message", true) {
+        Object get(RenderContext context) {
+            return context.message.getShortMessage();
+        }
+    },
+    FULL_MESSAGE("full_message", true) {
+        Object get(RenderContext context) {
+            return context.message.getFullMessage();
+        }
+
+        @Override
+        void append(StringBuilder out, RenderContext context, boolean escape) {
+            Template.appendMessageText(out, context, context.message.getFullMessage(), escape);
+        }
+    },
+    MESSAGE("message", true) {
+        Object get(RenderContext context) {
+            return MessageTextLimit.getText(context.message);
+        }
+
+        @Override
+        void append(StringBuilder out, RenderContext context, boolean escape) {
+            Template.appendMessageText(out, context, MessageTextLimit.getText(context.message), escape);
+        }
+    },
+    LINK("link", true) {
+        Object get(RenderContext context) {
+            return (null == context.webURL || context.webURL.isEmpty()) ? null : context.webURL;
+        }
+
+        @Override
+        void append(StringBuilder out, RenderContext context, boolean escape) {
+            if (null != get(context)) {
+                Template.appendValue(out, context, context.webURL, escape);
+                out.append("/messages/");
+                Template.appendValue(out, context, context.message.getId(), escape);
+            }
+        }
+    },
+    REPEATED("repeated", true) {
+        Object get(RenderContext context) {
+            return context.duplicates;
+        }
+    },
+    FIELD_COUNT("field_count", true) {
+        Object get(RenderContext context) {
+            return context.fields.size();
+        }
+    },
+    SUBJECT("subject", false) {
+        Object get(RenderContext context) {
+            return context.subject;
+        }
+    },
+    COUNT("count", false) {
+        Object get(RenderContext context) {
+            return context.messages.size();
+        }
+    },
+    NAME("name", false) {
+        Object get(RenderContext context) {
+            return (context.fieldIndex < 0) ? null : context.fields.getName(context.fieldIndex);
+        }
+    },
+    VALUE("value", false) {
+        Object get(RenderContext context) {
+            return (context.fieldIndex < 0) ? null : context.fields.getValue(context.fieldIndex);
+        }
+    };
+
+    private final String name;
+    private final boolean perMessage;
+
+    private Variable(String name, boolean perMessage) {
+        this.name = name;
+        this.perMessage = perMessage;
+    }
+
+    /**
+     * @return the value; only called for per-message variables when there is a current message
+     */
+    abstract Object get(RenderContext context);
+
+    void append(StringBuilder out, RenderContext context, boolean escape) {
+        Template.appendValue(out, context, get(context), escape);
+    }
+
+    /**
+     * @return whether the variable has a value here; per-message variables have none
+     *          outside {{#messages}} in a digest
+     */
+    boolean isAvailable(RenderContext context) {
+        return !perMessage || null != context.message;
+    }
+
+    /**
+     * @return whether a section on this variable renders: the value is present, and not empty or zero
+     */
+    boolean isSet(RenderContext context) {
+        return isAvailable(context) && Template.isSet(get(context));
+    }
+
+    static Variable forName(String name) {
+        for (Variable variable : values()) {
+            if (variable.name.equals(name)) {
+                return variable;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.text;
+
+import java.util.List;
+import java.util.Map;
+
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.EmailBody;
+import org.graylog2.emailoutput.output.EmailLayout;
+import org.graylog2.emailoutput.output.EmailMetrics;
+import org.graylog2.emailoutput.output.EmailSubjects;
+import org.graylog2.emailoutput.output.FieldSelection;
+import org.graylog2.emailoutput.output.LogMessageUtil;
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.emailoutput.output.RenderBuffers;
+import org.graylog2.emailoutput.output.TimestampFormat;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * Plain text layout. Nothing needs escaping, so this is the cheapest layout to render.
+ */
+public class TextEmailLayout implements EmailLayout
+{
+    private String webURL;
+    private MessageTextLimit textLimit = MessageTextLimit.UNLIMITED;
+    
+    public void initialize(Map<String, String> pluginConfiguration) throws MessageOutputConfigurationException {
+        this.webURL = pluginConfiguration.get("web_interface_url");
+        this.textLimit = MessageTextLimit.fromConfiguration(pluginConfiguration);
+    }
+    
+    public void checkStreamConfiguration(CompiledStreamConfig streamConfiguration) {
+    }
+    
+    public String getSubject(LogMessage message, CompiledStreamConfig streamConfiguration) {
+        return EmailSubjects.getSubject(message, streamConfiguration);
+    }
+    
+    public String getDigestSubject(List<LogMessage> messages, CompiledStreamConfig streamConfiguration) {
+        return EmailSubjects.getDigestSubject(messages, streamConfiguration);
+    }
+    
+    public String getSuppressedSubject(CompiledStreamConfig streamConfiguration, long suppressed) {
+        return EmailSubjects.getSuppressedSubject(streamConfiguration, suppressed);
+    }
+    
+    public EmailBody formatSuppressedBody(Map<String, Long> suppressedBySubject, long intervalSeconds) {
+        StringBuilder sb = RenderBuffers.get().body();
+        TextUtil.appendSuppressed(sb, suppressedBySubject, intervalSeconds);
+        return EmailBody.text(sb.toString());
+    }
+    
+    public EmailBody formatMessageBody(LogMessage msg, CompiledStreamConfig streamConfiguration, int duplicates) {
+        long start = System.nanoTime();
+        RenderBuffers buffers = RenderBuffers.get();
+        StringBuilder sb = buffers.body();
+        
+        appendMessage(sb, buffers, msg, streamConfiguration, duplicates);
+        
+        String body = sb.toString();
+        EmailMetrics.INSTANCE.recordRender(System.nanoTime() - start);
+        return EmailBody.text(body);
+    }
+    
+    public EmailBody formatDigestBody(List<LogMessage> messages, CompiledStreamConfig streamConfiguration, Map<LogMessage, Integer> duplicates) {
+        long start = System.nanoTime();
+        RenderBuffers buffers = RenderBuffers.get();
+        StringBuilder sb = buffers.body();
+        
+        sb.append(messages.size()).append(" messages\n");
+        sb.append(TextUtil.DIGEST_SEPARATOR);
+        
+        for (LogMessage msg : messages) {
+            Integer repeats = duplicates.get(msg);
+            appendMessage(sb, buffers, msg, streamConfiguration, (null == repeats) ? 0 : repeats.intValue());
+            sb.append(TextUtil.DIGEST_SEPARATOR);
+        }
+        
+        String body = sb.toString();
+        EmailMetrics.INSTANCE.recordRender(System.nanoTime() - start);
+        return EmailBody.text(body);
+    }
+    
+    private void appendMessage(StringBuilder sb, RenderBuffers buffers, LogMessage msg, CompiledStreamConfig streamConfiguration, int duplicates) {
+        TextUtil.appendKeyStart(sb, "Date");
+        TimestampFormat.appendISO8601(sb, msg.getCreatedAt());
+        TextUtil.appendKeyEnd(sb);
+        TextUtil.appendKeyValue(sb, "Level", LogMessageUtil.getLevelFullName(msg.getLevel()));
+        TextUtil.appendKeyValue(sb, "Host", msg.getHost());
+        TextUtil.appendKeyValue(sb, "Facility", msg.getFacility());
+        if (duplicates > 0) {
+            TextUtil.appendKeyStart(sb, "Repeated");
+            sb.append(duplicates).append(" times since last sent");
+            TextUtil.appendKeyEnd(sb);
+        }
+        sb.append(TextUtil.SEPARATOR);
+        
+        if (null != webURL && !webURL.isEmpty()) {
+            sb.append(TextUtil.LINK_TEXT).append(webURL).append("/messages/").append(msg.getId()).append('\n');
+            sb.append(TextUtil.SEPARATOR);
+        }
+        
+        TextUtil.appendMessageText(sb, msg, MessageTextLimit.getText(msg), textLimit);
+        sb.append('\n');
+        sb.append(TextUtil.SEPARATOR);
+        
+        FieldSelection fields = buffers.fields().select(msg.getAdditionalData(), streamConfiguration);
+        if (fields.size() > 0) {
+            for (int i = 0; i < fields.size(); i++) {
+                TextUtil.appendKeyValue(sb, fields.getName(i), fields.getValue(i));
+            }
+            sb.append(TextUtil.SEPARATOR);
+        }
+        fields.clear();
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.text;
+
+import java.util.Map;
+
+import org.graylog2.emailoutput.output.MessageTextLimit;
+import org.graylog2.plugin.logmessage.LogMessage;
+
+/**
+ * Formatting shared by the plain text layout and the plain text alternative of the HTML layout.
+ */
+public class TextUtil {
+
+    public static final String LINK_TEXT = "View in Graylog2: ";
+    public static final String SEPARATOR = "\n";
+    public static final String DIGEST_SEPARATOR = "\n========================================\n\n";
+
+    private TextUtil() {}
+
+    /**
+     * Appends the summary of emails suppressed by the rate limit.
+     */
+    public static void appendSuppressed(StringBuilder sb, Map<String, Long> suppressedBySubject, long intervalSeconds) {
+        sb.append("The email rate limit was exceeded. These messages were not sent in the last ")
+                .append(intervalSeconds).append(" seconds:\n\n");
+        for (Map.Entry<String, Long> entry : suppressedBySubject.entrySet()) {
+            appendKeyValue(sb, entry.getKey(), entry.getValue());
+        }
+    }
+
+    public static void appendKeyValue(StringBuilder sb, String key, Object value) {
+        appendKeyStart(sb, key);
+        appendValue(sb, value);
+        appendKeyEnd(sb);
+    }
+
+    public static void appendKeyStart(StringBuilder sb, String key) {
+        sb.append(key).append(": ");
+    }
+
+    public static void appendKeyEnd(StringBuilder sb) {
+        sb.append('\n');
+    }
+
+    /**
+     * Appends the message's text, truncated to the limit and followed by a marker if it is longer.
+     */
+    public static void appendMessageText(StringBuilder sb, LogMessage msg, String messageText, MessageTextLimit limit) {
+        if (limit.isTruncated(messageText)) {
+            sb.append(messageText, 0, limit.getInlineLength(messageText));
+            sb.append('\n').append(limit.getMarker(msg, messageText));
+        } else {
+            sb.append(messageText);
+        }
+    }
+
+    public static void appendValue(StringBuilder sb, Object value) {
+        if (value instanceof CharSequence) {
+            sb.append((CharSequence) value);
+        } else if (value instanceof Integer || value instanceof Long) {
+            sb.append(((Number) value).longValue());
+        } else {
+            sb.append(value);
+        }
+    }
+}
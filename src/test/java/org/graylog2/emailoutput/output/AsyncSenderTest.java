@@ -0,0 +1,218 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class AsyncSenderTest extends TestCase {
+
+    // Levels whose emails take each priority, as the output has none configured
+    private static final int CRITICAL = 2;
+    private static final int HIGH = 3;
+    private static final int NORMAL = 4;
+    private static final int BULK = 6;
+
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private CompiledStreamConfig streamConfig;
+
+    @Override
+    protected void setUp() throws Exception {
+        streamConfig = TestData.streamConfig("ops@example.com", "Alert");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        released.countDown();
+    }
+
+    public void testSendsCriticalFirstThenTakesTurnsByWeight() throws Exception {
+        AsyncSender sender = blockedSender(10, AsyncSender.Backpressure.BLOCK);
+        try {
+            // The blocking email already used one of the two turns of the normal queue
+            enqueue(sender, BULK, "b1", "b2", "b3");
+            enqueue(sender, NORMAL, "n1", "n2", "n3");
+            enqueue(sender, HIGH, "h1", "h2", "h3", "h4", "h5", "h6");
+            enqueue(sender, CRITICAL, "c1");
+            assertEquals(6, sender.getQueueSize(EmailPriority.HIGH));
+
+            released.countDown();
+            awaitSent(sender, 14);
+        } finally {
+            sender.shutdown();
+        }
+        assertEquals(Arrays.asList("blocking",
+                "c1", "h1", "h2", "h3", "h4", "n1", "b1",
+                "h5", "h6", "n2", "n3", "b2",
+                "b3"), sent);
+    }
+
+    public void testBoundsEachPriorityOnItsOwn() throws Exception {
+        AsyncSender sender = blockedSender(2, AsyncSender.Backpressure.DROP_NEWEST);
+        try {
+            enqueue(sender, BULK, "b1", "b2", "b3");
+            enqueue(sender, CRITICAL, "c1", "c2");
+            assertEquals(2, sender.getQueueSize(EmailPriority.BULK));
+            assertEquals(2, sender.getQueueSize(EmailPriority.CRITICAL));
+            assertEquals(1, sender.getDropped());
+        } finally {
+            released.countDown();
+            sender.shutdown();
+        }
+        assertEquals(Arrays.asList("blocking", "c1", "c2", "b1", "b2"), sent);
+    }
+
+    public void testDropsNewestWhenFull() throws Exception {
+        AsyncSender sender = blockedSender(2, AsyncSender.Backpressure.DROP_NEWEST);
+        try {
+            enqueue(sender, NORMAL, "n1", "n2", "n3");
+        } finally {
+            released.countDown();
+            sender.shutdown();
+        }
+        assertEquals(Arrays.asList("blocking", "n1", "n2"), sent);
+        assertEquals(1, sender.getDropped());
+        assertEquals(3, sender.getEnqueued());
+    }
+
+    public void testDropsOldestWhenFull() throws Exception {
+        AsyncSender sender = blockedSender(2, AsyncSender.Backpressure.DROP_OLDEST);
+        try {
+            enqueue(sender, NORMAL, "n1", "n2", "n3");
+        } finally {
+            released.countDown();
+            sender.shutdown();
+        }
+        assertEquals(Arrays.asList("blocking", "n2", "n3"), sent);
+        assertEquals(1, sender.getDropped());
+    }
+
+    public void testBlocksWhileFull() throws Exception {
+        final AsyncSender sender = blockedSender(1, AsyncSender.Backpressure.BLOCK);
+        try {
+            enqueue(sender, NORMAL, "n1");
+            final CountDownLatch enqueued = new CountDownLatch(1);
+            Thread caller = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        sender.enqueue(email(NORMAL, "n2"));
+                        enqueued.countDown();
+                    } catch (InterruptedException e) {
+                        // Fails the test below
+                    }
+                }
+            });
+            caller.start();
+            assertFalse(enqueued.await(100, TimeUnit.MILLISECONDS));
+
+            // Other priorities are not held up by the full queue
+            enqueue(sender, BULK, "b1");
+
+            released.countDown();
+            assertTrue(enqueued.await(10, TimeUnit.SECONDS));
+            awaitSent(sender, 4);
+        } finally {
+            sender.shutdown();
+        }
+        assertEquals(0, sender.getDropped());
+        // Whether n2 or b1 goes first depends on when the blocked caller gets its turn
+        assertEquals(new HashSet<String>(Arrays.asList("blocking", "n1", "n2", "b1")), new HashSet<String>(sent));
+    }
+
+    public void testTurnsAwayEmailsOnceShutDown() throws Exception {
+        final AsyncSender sender = blockedSender(1, AsyncSender.Backpressure.BLOCK);
+        enqueue(sender, NORMAL, "n1");
+
+        final AtomicBoolean accepted = new AtomicBoolean(true);
+        final CountDownLatch returned = new CountDownLatch(1);
+        Thread caller = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    accepted.set(sender.enqueue(email(NORMAL, "n2")));
+                } catch (InterruptedException e) {
+                    // Fails the test below
+                }
+                returned.countDown();
+            }
+        });
+        caller.start();
+        assertFalse(returned.await(100, TimeUnit.MILLISECONDS));
+
+        Thread stopper = new Thread(new Runnable() {
+            public void run() {
+                sender.shutdown();
+            }
+        });
+        stopper.start();
+        // Turned away while the queue is still full
+        assertTrue(returned.await(10, TimeUnit.SECONDS));
+        assertFalse(accepted.get());
+
+        released.countDown();
+        stopper.join(10000);
+        assertFalse(sender.enqueue(email(NORMAL, "n3")));
+        // What was queued before is still sent
+        assertEquals(Arrays.asList("blocking", "n1"), sent);
+    }
+
+    /**
+     * @return a sender whose one worker is busy sending a normal email until {@link #released}
+     */
+    private AsyncSender blockedSender(int capacity, AsyncSender.Backpressure backpressure) throws Exception {
+        AsyncSender sender = new AsyncSender(capacity, backpressure, 1, new AsyncSender.Handler() {
+            public void send(PendingEmail email) throws Exception {
+                sent.add(email.getMessages().get(0).getShortMessage());
+                started.countDown();
+                released.await();
+            }
+        });
+        sender.enqueue(email(NORMAL, "blocking"));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        return sender;
+    }
+
+    private void enqueue(AsyncSender sender, int level, String... names) throws InterruptedException {
+        for (String name : names) {
+            assertTrue(sender.enqueue(email(level, name)));
+        }
+    }
+
+    private PendingEmail email(int level, String name) {
+        return new PendingEmail(TestData.message("web-1", level, name), streamConfig);
+    }
+
+    private static void awaitSent(AsyncSender sender, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sender.getSent() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, sender.getSent());
+    }
+}
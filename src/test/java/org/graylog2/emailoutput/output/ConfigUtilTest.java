@@ -0,0 +1,51 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+public class ConfigUtilTest extends TestCase {
+
+    public void testParsesInt() throws Exception {
+        Map<String, String> configuration = new HashMap<String, String>();
+        configuration.put("digest_window", " 60 ");
+        configuration.put("dedup_window", "");
+
+        assertEquals(60, ConfigUtil.parseInt(configuration, "digest_window", 0));
+        assertEquals(5, ConfigUtil.parseInt(configuration, "dedup_window", 5));
+        assertEquals(5, ConfigUtil.parseInt(configuration, "rate_limit_burst", 5));
+    }
+
+    public void testRejectsInvalidInt() {
+        Map<String, String> configuration = new HashMap<String, String>();
+        configuration.put("digest_window", "1m");
+        try {
+            ConfigUtil.parseInt(configuration, "digest_window", 0);
+            fail("Parsed 1m");
+        } catch (MessageOutputConfigurationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid configuration option: digest_window; "));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import junit.framework.TestCase;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+
+public class DuplicateFilterTest extends TestCase {
+
+    private static final long WINDOW_MILLIS = 60000;
+
+    public void testSuppressesRepeatsWithinWindow() {
+        DuplicateFilter filter = new DuplicateFilter(WINDOW_MILLIS, 100, new MessageFingerprint(null));
+        LogMessage message = TestData.message("web-1", 3, "disk full");
+
+        assertEquals(0, filter.check(message, 0));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(TestData.message("web-1", 3, "disk full"), 1000));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(message, WINDOW_MILLIS - 1));
+        // The next one after the window is let through, with the count of those suppressed
+        assertEquals(2, filter.check(message, WINDOW_MILLIS));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(message, WINDOW_MILLIS + 1));
+        assertEquals(1, filter.check(message, 3 * WINDOW_MILLIS));
+    }
+
+    public void testDistinguishesMessagesByFingerprintFields() {
+        DuplicateFilter filter = new DuplicateFilter(WINDOW_MILLIS, 100, new MessageFingerprint(null));
+        assertEquals(0, filter.check(TestData.message("web-1", 3, "disk full"), 0));
+        assertEquals(0, filter.check(TestData.message("web-2", 3, "disk full"), 0));
+        assertEquals(0, filter.check(TestData.message("web-1", 2, "disk full"), 0));
+
+        DuplicateFilter byHost = new DuplicateFilter(WINDOW_MILLIS, 100, new MessageFingerprint("host"));
+        assertEquals(0, byHost.check(TestData.message("web-1", 3, "disk full"), 0));
+        assertEquals(DuplicateFilter.DUPLICATE, byHost.check(TestData.message("web-1", 6, "load high"), 0));
+    }
+
+    public void testForgetsLeastRecentlySeenBeyondMaxEntries() {
+        DuplicateFilter filter = new DuplicateFilter(WINDOW_MILLIS, 2, new MessageFingerprint(null));
+        LogMessage first = TestData.message("web-1", 3, "first");
+        LogMessage second = TestData.message("web-1", 3, "second");
+        LogMessage third = TestData.message("web-1", 3, "third");
+
+        assertEquals(0, filter.check(first, 0));
+        assertEquals(0, filter.check(second, 0));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(first, 1));
+        assertEquals(0, filter.check(third, 2));
+        // The second was seen least recently, so it was forgotten to make room for the third
+        assertEquals(0, filter.check(second, 3));
+        assertEquals(DuplicateFilter.DUPLICATE, filter.check(third, 4));
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+public class MailSpoolTest extends TestCase {
+
+    private static final long RETRY_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+    private final Session session = Session.getInstance(new Properties());
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("spool", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testResendsUnacknowledgedEmailsWhenReopened() throws Exception {
+        MailSpool spool = open(false);
+        long first = spool.append(email("first"));
+        long second = spool.append(email("second"));
+        long third = spool.append(email("third"));
+        assertTrue(first != MailSpool.NOT_SPOOLED && second != MailSpool.NOT_SPOOLED && third != MailSpool.NOT_SPOOLED);
+        spool.acknowledge(second);
+        spool.release(first);
+        spool.release(third);
+        spool.close();
+
+        spool = open(true);
+        try {
+            awaitSent(2);
+        } finally {
+            spool.close();
+        }
+        assertEquals(Arrays.asList("first", "third"), sent);
+
+        // Acknowledged once resent, so never sent again
+        spool = open(false);
+        try {
+            assertEquals(0, spool.getPending());
+        } finally {
+            spool.close();
+        }
+    }
+
+    public void testDiscardsIncompleteRecordWhenReopened() throws Exception {
+        MailSpool spool = open(false);
+        spool.append(email("complete"));
+        spool.append(email("cut short"));
+        spool.close();
+
+        RandomAccessFile segment = new RandomAccessFile(segmentFile(), "rw");
+        try {
+            segment.setLength(segment.length() - 10);
+        } finally {
+            segment.close();
+        }
+
+        spool = open(false);
+        try {
+            assertEquals(1, spool.getPending());
+            // Appended after the truncated tail, so it is recovered too
+            spool.append(email("after"));
+        } finally {
+            spool.close();
+        }
+        spool = open(false);
+        try {
+            assertEquals(2, spool.getPending());
+        } finally {
+            spool.close();
+        }
+    }
+
+    public void testDiscardsRecordFailingChecksumWhenReopened() throws Exception {
+        MailSpool spool = open(false);
+        spool.append(email("intact"));
+        spool.append(email("corrupt"));
+        spool.close();
+
+        RandomAccessFile segment = new RandomAccessFile(segmentFile(), "rw");
+        try {
+            long last = segment.length() - 5;
+            segment.seek(last);
+            int b = segment.read();
+            segment.seek(last);
+            segment.write(b ^ 0xff);
+        } finally {
+            segment.close();
+        }
+
+        spool = open(true);
+        try {
+            awaitSent(1);
+            assertEquals(Arrays.asList("intact"), sent);
+        } finally {
+            spool.close();
+        }
+    }
+
+    public void testRefusesDirectoryInUse() throws Exception {
+        MailSpool spool = open(false);
+        try {
+            open(false);
+            fail("Opened a spool directory twice");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            spool.close();
+        }
+    }
+
+    /**
+     * @param deliver whether emails are sent, or fail and are kept for later
+     */
+    private MailSpool open(final boolean deliver) throws IOException {
+        return new MailSpool(directory, session, 1024 * 1024, 16 * 1024 * 1024, MailSpool.FsyncPolicy.NEVER,
+                1000, RETRY_INTERVAL_MILLIS, new MailSpool.Handler() {
+                    public void send(MimeMessage message) throws Exception {
+                        if (!deliver) {
+                            throw new IOException("Relay unavailable");
+                        }
+                        sent.add(message.getSubject());
+                    }
+                });
+    }
+
+    private void awaitSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, sent.size());
+    }
+
+    private File segmentFile() {
+        File[] segments = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(".spool");
+            }
+        });
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private MimeMessage email(String subject) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("graylog@example.com"));
+        message.setRecipients(MimeMessage.RecipientType.TO, "ops@example.com");
+        message.setSubject(subject);
+        message.setText("Body of " + subject);
+        message.saveChanges();
+        return message;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.internet.InternetAddress;
+
+import junit.framework.TestCase;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+
+public class MessageAggregatorTest extends TestCase {
+
+    private final List<PendingEmail> flushed = Collections.synchronizedList(new ArrayList<PendingEmail>());
+    private MessageAggregator aggregator;
+
+    @Override
+    protected void setUp() throws Exception {
+        aggregator = new MessageAggregator(new MessageAggregator.FlushHandler() {
+            public void flush(PendingEmail digest) {
+                flushed.add(digest);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        aggregator.shutdown();
+    }
+
+    public void testFlushesAtMessageLimit() throws Exception {
+        CompiledStreamConfig streamConfig = digestConfig("digest_max_messages", "2");
+        aggregator.add(TestData.message("web-1", 3, "a"), 0, streamConfig);
+        aggregator.add(TestData.message("web-1", 3, "b"), 0, streamConfig);
+        aggregator.add(TestData.message("web-1", 3, "c"), 0, streamConfig);
+
+        awaitFlushed(1);
+        assertEquals(Arrays.asList("a", "b"), shortMessages(flushed.get(0)));
+    }
+
+    public void testFlushesAtSizeLimit() throws Exception {
+        char[] text = new char[600];
+        Arrays.fill(text, 'x');
+        CompiledStreamConfig streamConfig = digestConfig("digest_max_bytes", "2500");
+        aggregator.add(TestData.message("web-1", 3, new String(text)), 0, streamConfig);
+        aggregator.add(TestData.message("web-1", 3, new String(text)), 0, streamConfig);
+        assertTrue(flushed.isEmpty());
+
+        aggregator.add(TestData.message("web-1", 3, "last"), 0, streamConfig);
+        awaitFlushed(1);
+        assertEquals(3, flushed.get(0).getMessages().size());
+    }
+
+    public void testFlushesWhenWindowEnds() throws Exception {
+        CompiledStreamConfig streamConfig = TestData.streamConfig("ops@example.com", "Alert", "digest_window", "1");
+        aggregator.add(TestData.message("web-1", 3, "a"), 0, streamConfig);
+
+        awaitFlushed(1);
+        assertEquals(Arrays.asList("a"), shortMessages(flushed.get(0)));
+    }
+
+    public void testFlushesEverythingOnShutdown() throws Exception {
+        aggregator.add(TestData.message("web-1", 3, "a"), 0, digestConfig());
+        aggregator.add(TestData.message("web-1", 3, "b"), 0, TestData.streamConfig("dev@example.com", "Alert",
+                "digest_window", "3600"));
+        assertTrue(flushed.isEmpty());
+
+        aggregator.shutdown();
+        assertEquals(2, flushed.size());
+    }
+
+    public void testMergesRecipientsOfOutputsSharingADigest() throws Exception {
+        CompiledStreamConfig first = digestConfig("cc", "lead@example.com");
+        CompiledStreamConfig second = digestConfig("cc", "oncall@example.com", "bcc", "audit@example.com");
+        aggregator.add(TestData.message("web-1", 4, "a"), 0, first);
+        aggregator.add(TestData.message("web-1", 3, "b"), 2, second);
+        // A message already in the digest through another stream
+        aggregator.addRecipients(TestData.streamConfig("ops@example.com", "Alert", "digest_window", "3600",
+                "bcc", "security@example.com"));
+
+        aggregator.shutdown();
+        assertEquals(1, flushed.size());
+        PendingEmail digest = flushed.get(0);
+        assertEquals(Arrays.asList("a", "b"), shortMessages(digest));
+        assertEquals(2, digest.getDuplicates(digest.getMessages().get(1)));
+        assertEquals(EmailPriority.HIGH, digest.getPriority());
+        assertEquals(Arrays.asList(new InternetAddress("ops@example.com")), Arrays.asList(digest.getTo()));
+        assertEquals(Arrays.asList(new InternetAddress("lead@example.com"), new InternetAddress("oncall@example.com")),
+                Arrays.asList(digest.getCc()));
+        assertEquals(Arrays.asList(new InternetAddress("audit@example.com"), new InternetAddress("security@example.com")),
+                Arrays.asList(digest.getBcc()));
+    }
+
+    public void testKeepsDigestsOfDifferentSubjectsApart() throws Exception {
+        aggregator.add(TestData.message("web-1", 3, "a"), 0, digestConfig());
+        aggregator.add(TestData.message("web-1", 3, "b"), 0, TestData.streamConfig("ops@example.com", "Disk",
+                "digest_window", "3600"));
+
+        aggregator.shutdown();
+        assertEquals(2, flushed.size());
+    }
+
+    /**
+     * @return an output to ops@example.com collecting messages for an hour, unless a limit is reached first
+     */
+    private static CompiledStreamConfig digestConfig(String... options) throws Exception {
+        String[] values = Arrays.copyOf(options, options.length + 2);
+        values[options.length] = "digest_window";
+        values[options.length + 1] = "3600";
+        return TestData.streamConfig("ops@example.com", "Alert", values);
+    }
+
+    private static List<String> shortMessages(PendingEmail digest) {
+        List<String> messages = new ArrayList<String>();
+        for (LogMessage message : digest.getMessages()) {
+            messages.add(message.getShortMessage());
+        }
+        return messages;
+    }
+
+    private void awaitFlushed(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (flushed.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, flushed.size());
+    }
+}
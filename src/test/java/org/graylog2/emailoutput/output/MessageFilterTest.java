@@ -0,0 +1,122 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+public class MessageFilterTest extends TestCase {
+
+    public void testIsNotCompiledWithoutConditions() throws Exception {
+        assertNull(MessageFilter.compile(options("receiver", "ops@example.com", "hosts", " , ")));
+    }
+
+    public void testFiltersOnLevel() throws Exception {
+        MessageFilter filter = compile("min_level", "Error");
+        assertTrue(filter.accepts(TestData.message("web-1", 2, "disk full")));
+        assertTrue(filter.accepts(TestData.message("web-1", 3, "disk full")));
+        assertFalse(filter.accepts(TestData.message("web-1", 4, "disk full")));
+
+        assertFalse(compile("min_level", "3").accepts(TestData.message("web-1", 4, "disk full")));
+    }
+
+    public void testFiltersOnHostsIgnoringCase() throws Exception {
+        MessageFilter filter = compile("hosts", "Web-1, web-2");
+        assertTrue(filter.accepts(TestData.message("WEB-1", 3, "disk full")));
+        assertTrue(filter.accepts(TestData.message("web-2", 3, "disk full")));
+        assertFalse(filter.accepts(TestData.message("db-1", 3, "disk full")));
+
+        filter = compile("exclude_hosts", "DB-1");
+        assertFalse(filter.accepts(TestData.message("db-1", 3, "disk full")));
+        assertTrue(filter.accepts(TestData.message("web-1", 3, "disk full")));
+    }
+
+    public void testFiltersOnFacilities() throws Exception {
+        LogMessage message = TestData.message("web-1", 3, "disk full");
+        assertTrue(compile("facilities", "test, kernel").accepts(message));
+        assertFalse(compile("facilities", "kernel").accepts(message));
+        assertFalse(compile("exclude_facilities", "test").accepts(message));
+    }
+
+    public void testFiltersOnFields() throws Exception {
+        MessageFilter filter = compile("require_fields", "_service, !_test, _region=eu");
+        assertTrue(filter.accepts(message("_service", "api", "_region", "eu")));
+        assertFalse(filter.accepts(message("_region", "eu")));
+        assertFalse(filter.accepts(message("_service", "api", "_region", "us")));
+        assertFalse(filter.accepts(message("_service", "api", "_region", "eu", "_test", "true")));
+    }
+
+    public void testFiltersOnShortMessage() throws Exception {
+        MessageFilter filter = compile("message_pattern", "disk (full|failed)", "exclude_message_pattern", "/tmp");
+        assertTrue(filter.accepts(TestData.message("web-1", 3, "disk full on /var")));
+        assertFalse(filter.accepts(TestData.message("web-1", 3, "disk full on /tmp")));
+        assertFalse(filter.accepts(TestData.message("web-1", 3, "cpu hot")));
+    }
+
+    public void testRejectsInvalidConditions() {
+        assertInvalid("Invalid configuration option: min_level; unknown level Severe", "min_level", "Severe");
+        assertInvalid("Invalid configuration option: require_fields; missing field name in =eu", "require_fields", "=eu");
+        assertInvalid("Invalid configuration option: require_fields; missing field name in !", "require_fields", "_service, !");
+        assertInvalid("Invalid configuration option: require_fields; cannot require both absence and a value in !_region=eu",
+                "require_fields", "!_region=eu");
+        try {
+            compile("message_pattern", "disk (full");
+            fail("Compiled an invalid pattern");
+        } catch (MessageOutputConfigurationException e) {
+            assertTrue(e.getMessage().startsWith("Invalid configuration option: message_pattern; "));
+        }
+    }
+
+    private static LogMessage message(String... fields) {
+        LogMessage message = TestData.message("web-1", 3, "disk full");
+        for (int i = 0; i + 1 < fields.length; i += 2) {
+            message.addAdditionalData(fields[i], fields[i + 1]);
+        }
+        return message;
+    }
+
+    private static MessageFilter compile(String... options) throws MessageOutputConfigurationException {
+        MessageFilter filter = MessageFilter.compile(options(options));
+        assertNotNull(filter);
+        return filter;
+    }
+
+    private static Map<String, String> options(String... options) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (int i = 0; i + 1 < options.length; i += 2) {
+            values.put(options[i], options[i + 1]);
+        }
+        return values;
+    }
+
+    private static void assertInvalid(String expected, String key, String value) {
+        try {
+            compile(key, value);
+            fail("Compiled " + key + "=" + value);
+        } catch (MessageOutputConfigurationException e) {
+            assertEquals(expected, e.getMessage());
+        }
+    }
+}
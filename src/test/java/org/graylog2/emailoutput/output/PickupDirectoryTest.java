@@ -0,0 +1,175 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+public class PickupDirectoryTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("pickup", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(directory);
+    }
+
+    public void testWritesEmlWithBccAndUnixLineEndings() throws Exception {
+        PickupDirectory pickup = new PickupDirectory(directory, PickupDirectory.Format.EML, MailSpool.FsyncPolicy.NEVER, 1000);
+        try {
+            pickup.deliver(email());
+        } finally {
+            pickup.close();
+        }
+        String written = read(onlyEmail(directory, ".eml"));
+        assertTrue(written.contains("Bcc: audit@example.com\n"));
+        assertTrue(written.contains("Subject: Disk full on web-1\n"));
+        assertFalse(written.contains("\r"));
+    }
+
+    public void testWritesEnvelopeWithoutBcc() throws Exception {
+        PickupDirectory pickup = new PickupDirectory(directory, PickupDirectory.Format.ENVELOPE, MailSpool.FsyncPolicy.ALWAYS, 1000);
+        try {
+            pickup.deliver(email());
+        } finally {
+            pickup.close();
+        }
+        String written = read(onlyEmail(directory, ".eml"));
+        assertTrue(written.startsWith("X-Sender: graylog@example.com\r\n"
+                + "X-Receiver: ops@example.com\r\n"
+                + "X-Receiver: audit@example.com\r\n"));
+        assertTrue(written.contains("Subject: Disk full on web-1\r\n"));
+        assertFalse(written.contains("Bcc:"));
+    }
+
+    public void testWritesMaildir() throws Exception {
+        PickupDirectory pickup = new PickupDirectory(directory, PickupDirectory.Format.MAILDIR, MailSpool.FsyncPolicy.NEVER, 1000);
+        try {
+            pickup.deliver(email());
+        } finally {
+            pickup.close();
+        }
+        assertTrue(new File(directory, "cur").isDirectory());
+        assertEquals(0, new File(directory, "tmp").list().length);
+        String written = read(onlyEmail(new File(directory, "new"), ""));
+        assertFalse(written.contains("Bcc:"));
+    }
+
+    public void testMovesEmailsIntoPlaceOnceSynced() throws Exception {
+        PickupDirectory pickup = new PickupDirectory(directory, PickupDirectory.Format.EML, MailSpool.FsyncPolicy.INTERVAL, 60000);
+        try {
+            pickup.deliver(email());
+            pickup.deliver(email());
+            // Waiting for the interval, and not yet visible to the MTA
+            assertEquals(0, emails(directory).length);
+            assertEquals(2, new File(directory, ".tmp").list().length);
+        } finally {
+            pickup.close();
+        }
+        assertEquals(2, emails(directory).length);
+        assertEquals(0, new File(directory, ".tmp").list().length);
+    }
+
+    public void testSyncsOnceEnoughEmailsAreWaiting() throws Exception {
+        PickupDirectory pickup = new PickupDirectory(directory, PickupDirectory.Format.EML, MailSpool.FsyncPolicy.INTERVAL, 60000);
+        try {
+            MimeMessage email = email();
+            for (int i = 0; i < PickupDirectory.MAX_UNSYNCED; i++) {
+                pickup.deliver(email);
+            }
+            assertEquals(PickupDirectory.MAX_UNSYNCED, emails(directory).length);
+        } finally {
+            pickup.close();
+        }
+    }
+
+    private static File onlyEmail(File directory, String suffix) {
+        File[] emails = emails(directory);
+        assertEquals(1, emails.length);
+        assertTrue(emails[0].getName().endsWith(suffix));
+        return emails[0];
+    }
+
+    private static File[] emails(File directory) {
+        File[] files = directory.listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.isFile()) {
+                files[count++] = file;
+            }
+        }
+        File[] emails = new File[count];
+        System.arraycopy(files, 0, emails, 0, count);
+        return emails;
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "US-ASCII");
+    }
+
+    private static void delete(File file) {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static MimeMessage email() throws Exception {
+        MimeMessage message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setFrom(new InternetAddress("graylog@example.com"));
+        message.setRecipients(MimeMessage.RecipientType.TO, "ops@example.com");
+        message.setRecipients(MimeMessage.RecipientType.BCC, "audit@example.com");
+        message.setSubject("Disk full on web-1");
+        message.setText("Disk full\r\nOn web-1\r\n");
+        message.saveChanges();
+        return message;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import junit.framework.TestCase;
+
+public class RateLimiterTest extends TestCase {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final List<String> summaries = new ArrayList<String>();
+
+    private final RateLimiter.SummaryHandler summaryHandler = new RateLimiter.SummaryHandler() {
+        public void sendSummary(CompiledStreamConfig streamConfiguration, InternetAddress[] to, long suppressed,
+                Map<String, Long> suppressedBySubject, long intervalSeconds) {
+            summaries.add(to[0].getAddress() + ": " + suppressed + " " + new TreeMap<String, Long>(suppressedBySubject));
+        }
+    };
+
+    public void testTokenBucketAllowsBurstThenOnePerInterval() {
+        // One per second, three at once
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60, 3, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(SECOND - 1));
+        assertTrue(bucket.tryAcquire(SECOND));
+        assertFalse(bucket.tryAcquire(SECOND));
+        assertTrue(bucket.isIdle(10 * SECOND));
+    }
+
+    public void testTokenBucketRefund() {
+        RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(60, 1, 0);
+        assertTrue(bucket.tryAcquire(0));
+        assertFalse(bucket.tryAcquire(0));
+        bucket.refund();
+        assertTrue(bucket.tryAcquire(0));
+    }
+
+    public void testLimitsEachReceiverAndSummarizesSuppressed() throws Exception {
+        RateLimiter limiter = new RateLimiter(2, 0, 2, 3600, summaryHandler, null);
+        CompiledStreamConfig ops = TestData.streamConfig("ops@example.com", "Alert");
+        CompiledStreamConfig dev = TestData.streamConfig("dev@example.com", "Alert");
+
+        assertTrue(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "a"), ops), "Disk full"));
+        assertTrue(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "b"), ops), "Disk full"));
+        assertFalse(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "c"), ops), "Disk full"));
+        assertFalse(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "d"), ops), "Load high"));
+        // Another receiver has a quota of its own
+        assertTrue(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "e"), dev), "Disk full"));
+
+        limiter.shutdown();
+        assertEquals(1, summaries.size());
+        assertEquals("ops@example.com: 2 {Disk full=1, Load high=1}", summaries.get(0));
+    }
+
+    public void testGlobalLimitAppliesAcrossReceivers() throws Exception {
+        RateLimiter limiter = new RateLimiter(10, 1, 1, 3600, summaryHandler, null);
+        CompiledStreamConfig ops = TestData.streamConfig("ops@example.com", "Alert");
+        CompiledStreamConfig dev = TestData.streamConfig("dev@example.com", "Alert");
+
+        assertTrue(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "a"), ops), "Disk full"));
+        assertFalse(limiter.tryAcquire(new PendingEmail(TestData.message("web-1", 3, "b"), dev), "Disk full"));
+
+        limiter.shutdown();
+        assertEquals(1, summaries.size());
+        assertEquals("dev@example.com: 1 {Disk full=1}", summaries.get(0));
+    }
+}
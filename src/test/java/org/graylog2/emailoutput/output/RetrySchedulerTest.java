@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+public class RetrySchedulerTest extends TestCase {
+
+    private static final MessagingException TRANSIENT = new MessagingException("Could not connect to SMTP host");
+
+    private InternetAddress ops;
+    private MimeMessage message;
+
+    @Override
+    protected void setUp() throws Exception {
+        ops = new InternetAddress("ops@example.com");
+        message = new MimeMessage(Session.getInstance(new Properties()));
+        message.setRecipient(MimeMessage.RecipientType.TO, ops);
+    }
+
+    public void testClassifiesReplyCodes() {
+        assertTrue(MimeUtil.isPermanentFailure(new SMTPSenderFailedException(ops, "MAIL", 550, "Rejected")));
+        assertFalse(MimeUtil.isPermanentFailure(new SMTPSenderFailedException(ops, "MAIL", 451, "Try again later")));
+        assertTrue(MimeUtil.isPermanentFailure(new SMTPAddressFailedException(ops, "RCPT", 553, "No such user")));
+        assertFalse(MimeUtil.isPermanentFailure(new SMTPAddressFailedException(ops, "RCPT", 452, "Mailbox full")));
+        assertTrue(MimeUtil.isPermanentFailure(new SMTPSendFailedException("DATA", 554, "Spam", null, null, null, null)));
+        assertFalse(MimeUtil.isPermanentFailure(new SMTPSendFailedException("DATA", 421, "Closing", null, null, null, null)));
+    }
+
+    public void testClassifiesNestedAndOtherFailures() {
+        MessagingException wrapped = new MessagingException("Send failed");
+        wrapped.setNextException(new SMTPAddressFailedException(ops, "RCPT", 550, "No such user"));
+        assertTrue(MimeUtil.isPermanentFailure(wrapped));
+
+        assertTrue(MimeUtil.isPermanentFailure(new AddressException("Illegal address")));
+        // Sent to some recipients, so resending would send it to them again
+        assertTrue(MimeUtil.isPermanentFailure(
+                new SendFailedException("Invalid Addresses", null, new Address[] { ops }, null, null)));
+        assertFalse(MimeUtil.isPermanentFailure(new SendFailedException("No recipients")));
+        assertFalse(MimeUtil.isPermanentFailure(TRANSIENT));
+    }
+
+    public void testResendsUntilSent() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        RetryScheduler retrier = new RetryScheduler(5, 1, 10, 100, new RetryScheduler.Handler() {
+            public void send(MimeMessage message) throws MessagingException {
+                if (attempts.incrementAndGet() < 3) {
+                    throw TRANSIENT;
+                }
+            }
+        });
+        try {
+            retrier.retry(message, TRANSIENT);
+            awaitNothingPending(retrier);
+            assertEquals(3, attempts.get());
+        } finally {
+            retrier.shutdown();
+        }
+    }
+
+    public void testStopsOnPermanentFailure() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        RetryScheduler retrier = new RetryScheduler(5, 1, 10, 100, new RetryScheduler.Handler() {
+            public void send(MimeMessage message) throws MessagingException {
+                attempts.incrementAndGet();
+                throw new SMTPSenderFailedException(ops, "MAIL", 550, "Rejected");
+            }
+        });
+        try {
+            retrier.retry(message, TRANSIENT);
+            awaitNothingPending(retrier);
+            assertEquals(1, attempts.get());
+        } finally {
+            retrier.shutdown();
+        }
+    }
+
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        RetryScheduler retrier = new RetryScheduler(4, 1, 10, 100, new RetryScheduler.Handler() {
+            public void send(MimeMessage message) throws MessagingException {
+                attempts.incrementAndGet();
+                throw TRANSIENT;
+            }
+        });
+        try {
+            retrier.retry(message, TRANSIENT);
+            awaitNothingPending(retrier);
+            // The first attempt was the caller's
+            assertEquals(3, attempts.get());
+        } finally {
+            retrier.shutdown();
+        }
+    }
+
+    public void testBacksOffExponentiallyUpToMaximum() {
+        RetryScheduler retrier = new RetryScheduler(10, 1000, 30000, 100, null);
+        try {
+            for (int i = 0; i < 100; i++) {
+                assertBetween(500, 1000, retrier.getDelayMillis(1));
+                assertBetween(2000, 4000, retrier.getDelayMillis(3));
+                assertBetween(15000, 30000, retrier.getDelayMillis(6));
+                assertBetween(15000, 30000, retrier.getDelayMillis(100));
+            }
+        } finally {
+            retrier.shutdown();
+        }
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+
+    private static void awaitNothingPending(RetryScheduler retrier) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (retrier.getPending() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, retrier.getPending());
+    }
+}
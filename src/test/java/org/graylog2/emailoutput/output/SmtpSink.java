@@ -0,0 +1,393 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SMTP server on the loopback interface that accepts and discards email, for testing
+ * the send path without a relay. Faults can be injected while it runs: latency before
+ * replying to a command, a temporary or permanent rejection of a share of transactions,
+ * and a share of connections dropped mid-transaction.
+ * <p>
+ * It speaks enough ESMTP for JavaMail's SMTP transport and the smtp-nio transport:
+ * EHLO (PIPELINING, CHUNKING, SIZE, AUTH), HELO, AUTH PLAIN/LOGIN (any credentials),
+ * MAIL, RCPT, DATA, BDAT, RSET, NOOP and QUIT.
+ */
+public class SmtpSink {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    private final Set<Socket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+    private final Map<String, Long> latencyMillis = new ConcurrentHashMap<String, Long>();
+    private volatile double rejectRate;
+    private volatile String rejectReply = "451 4.3.0 Temporary failure, try again later";
+    private volatile double dropRate;
+    private volatile boolean chunking = true;
+
+    private final AtomicLong connections = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    public SmtpSink() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+
+        final AtomicInteger threads = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "smtp-sink-" + threads.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.execute(new Runnable() {
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Waits before replying to the command. The end of DATA content is the command ".".
+     */
+    public void setLatency(String command, long millis) {
+        if (millis > 0) {
+            latencyMillis.put(command.toUpperCase(Locale.ENGLISH), millis);
+        } else {
+            latencyMillis.remove(command.toUpperCase(Locale.ENGLISH));
+        }
+    }
+
+    public void setLatency(long millis) {
+        for (String command : new String[] { "EHLO", "HELO", "MAIL", "RCPT", "DATA", ".", "BDAT", "RSET", "NOOP" }) {
+            setLatency(command, millis);
+        }
+    }
+
+    /**
+     * Rejects this share of transactions, at MAIL FROM, with the reply.
+     */
+    public void setRejectRate(double rate, String reply) {
+        this.rejectReply = reply;
+        this.rejectRate = rate;
+    }
+
+    /**
+     * Closes this share of connections after the content of an email has been received,
+     * but before replying to it.
+     */
+    public void setDropRate(double rate) {
+        this.dropRate = rate;
+    }
+
+    public void setChunking(boolean chunking) {
+        this.chunking = chunking;
+    }
+
+    public void reset() {
+        latencyMillis.clear();
+        rejectRate = 0;
+        dropRate = 0;
+        chunking = true;
+    }
+
+    public long getConnections() {
+        return connections.get();
+    }
+
+    public long getMessages() {
+        return messages.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            connections.incrementAndGet();
+            sockets.add(socket);
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        new Connection(socket).run();
+                    } catch (IOException e) {
+                        // Client went away
+                    } finally {
+                        sockets.remove(socket);
+                        closeQuietly(socket);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Ignored
+        }
+    }
+
+    private class Connection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Random random = new Random();
+        private boolean mail;
+        private boolean recipient;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        void run() throws IOException {
+            reply("220 localhost SMTP sink");
+            String line;
+            while (null != (line = readLine())) {
+                String upper = line.toUpperCase(Locale.ENGLISH);
+                String command = upper.split(" ", 2)[0];
+                delay(command);
+
+                if ("EHLO".equals(command)) {
+                    reset();
+                    reply("250-localhost\r\n250-PIPELINING\r\n" + (chunking ? "250-CHUNKING\r\n" : "")
+                            + "250-SIZE 104857600\r\n250-AUTH PLAIN LOGIN\r\n250 8BITMIME");
+                } else if ("HELO".equals(command)) {
+                    reset();
+                    reply("250 localhost");
+                } else if ("AUTH".equals(command)) {
+                    authenticate(upper);
+                } else if ("MAIL".equals(command)) {
+                    if (mail) {
+                        reply("503 5.5.1 Nested MAIL command");
+                    } else if (rejectRate > 0 && random.nextDouble() < rejectRate) {
+                        rejected.incrementAndGet();
+                        reply(rejectReply);
+                    } else {
+                        mail = true;
+                        reply("250 2.1.0 Ok");
+                    }
+                } else if ("RCPT".equals(command)) {
+                    recipient |= mail;
+                    reply(mail ? "250 2.1.5 Ok" : "503 5.5.1 Need MAIL command");
+                } else if ("DATA".equals(command)) {
+                    if (!recipient) {
+                        reply("554 5.5.1 No valid recipients");
+                        continue;
+                    }
+                    reply("354 End data with <CR><LF>.<CR><LF>");
+                    long size = readData();
+                    delay(".");
+                    deliver(size);
+                } else if ("BDAT".equals(command)) {
+                    String[] words = upper.split(" +");
+                    long size = Long.parseLong(words[1]);
+                    skip(size);
+                    if (!recipient) {
+                        reply("554 5.5.1 No valid recipients");
+                    } else if (words.length > 2 && "LAST".equals(words[2])) {
+                        deliver(size);
+                    } else {
+                        reply("250 2.0.0 " + size + " octets received");
+                    }
+                } else if ("RSET".equals(command)) {
+                    reset();
+                    reply("250 2.0.0 Ok");
+                } else if ("NOOP".equals(command)) {
+                    reply("250 2.0.0 Ok");
+                } else if ("QUIT".equals(command)) {
+                    reply("221 2.0.0 Bye");
+                    return;
+                } else {
+                    reply("502 5.5.2 Command not recognized");
+                }
+            }
+        }
+
+        private void authenticate(String command) throws IOException {
+            if (command.startsWith("AUTH LOGIN")) {
+                reply("334 VXNlcm5hbWU6");
+                readLine();
+                reply("334 UGFzc3dvcmQ6");
+                readLine();
+            } else if ("AUTH PLAIN".equals(command)) {
+                reply("334 ");
+                readLine();
+            }
+            reply("235 2.7.0 Authentication successful");
+        }
+
+        private void deliver(long size) throws IOException {
+            if (dropRate > 0 && random.nextDouble() < dropRate) {
+                dropped.incrementAndGet();
+                socket.close();
+                throw new SocketException("Dropped connection");
+            }
+            messages.incrementAndGet();
+            bytes.addAndGet(size);
+            reset();
+            reply("250 2.0.0 Ok: queued");
+        }
+
+        private void reset() {
+            mail = false;
+            recipient = false;
+        }
+
+        private void delay(String command) throws IOException {
+            Long millis = latencyMillis.get(command);
+            if (null != millis) {
+                out.flush();
+                try {
+                    Thread.sleep(millis);
+                } catch (InterruptedException e) {
+                    throw new SocketException("Interrupted");
+                }
+            }
+        }
+
+        private void reply(String reply) throws IOException {
+            out.write(reply.getBytes(US_ASCII));
+            out.write('\r');
+            out.write('\n');
+            // Pipelined commands are answered together, as a real server would
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while (-1 != (c = in.read())) {
+                if ('\n' == c) {
+                    int length = line.length();
+                    if (length > 0 && '\r' == line.charAt(length - 1)) {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                if (line.length() < MAX_LINE_LENGTH) {
+                    line.append((char) c);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the size of the content, up to the line holding a single dot
+         */
+        private long readData() throws IOException {
+            long size = 0;
+            // State 0: start of line, 1: in a line, 2: dot at start of line, 3: CR after that dot
+            int state = 0;
+            int c;
+            while (-1 != (c = in.read())) {
+                size++;
+                if (2 == state && '\r' == c) {
+                    state = 3;
+                } else if (3 == state && '\n' == c) {
+                    return size - 3;
+                } else if (0 == state && '.' == c) {
+                    state = 2;
+                } else {
+                    state = ('\n' == c) ? 0 : 1;
+                }
+            }
+            throw new SocketException("Connection closed during DATA");
+        }
+
+        private void skip(long size) throws IOException {
+            while (size > 0) {
+                long skipped = in.skip(size);
+                if (skipped <= 0) {
+                    if (-1 == in.read()) {
+                        throw new SocketException("Connection closed during BDAT");
+                    }
+                    skipped = 1;
+                }
+                size -= skipped;
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+/**
+ * Messages and stream configurations for tests.
+ */
+public class TestData {
+
+    private TestData() {}
+
+    public static LogMessage message(String host, int level, String shortMessage) {
+        LogMessage message = new LogMessage();
+        message.setHost(host);
+        message.setLevel(level);
+        message.setFacility("test");
+        message.setShortMessage(shortMessage);
+        message.setCreatedAt(1357000000.0);
+        return message;
+    }
+
+    /**
+     * @param options further stream configuration options, as alternating keys and values;
+     *          cc and bcc are comma separated addresses
+     */
+    public static CompiledStreamConfig streamConfig(String receiver, String subject, String... options)
+            throws MessageOutputConfigurationException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("receiver", receiver);
+        values.put("subject", subject);
+        for (int i = 0; i + 1 < options.length; i += 2) {
+            values.put(options[i], options[i + 1]);
+        }
+        return new CompiledStreamConfig(values, addresses(receiver), addresses(values.get("cc")),
+                addresses(values.get("bcc")), null);
+    }
+
+    private static InternetAddress[] addresses(String emails) throws MessageOutputConfigurationException {
+        if (null == emails) {
+            return new InternetAddress[0];
+        }
+        try {
+            return InternetAddress.parse(emails);
+        } catch (AddressException e) {
+            throw new MessageOutputConfigurationException("Invalid email addresses: " + emails);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.cluster;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class FileClusterStoreTest extends TestCase {
+
+    private static final long RETENTION_MILLIS = 60 * 60 * 1000L;
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("cluster", "");
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    public void testExchangesActivityWithOtherNodes() throws Exception {
+        FileClusterStore first = new FileClusterStore(directory, "first", RETENTION_MILLIS);
+        FileClusterStore second = new FileClusterStore(directory, "second", RETENTION_MILLIS);
+        long now = System.currentTimeMillis();
+
+        assertTrue(first.exchange(activity("*", 1, 42, now - 1000)).isEmpty());
+        // The first exchange only learns what was sent recently
+        ClusterActivity remote = second.exchange(new ClusterActivity());
+        assertTrue(remote.getSends().isEmpty());
+        assertEquals(Collections.singletonMap(42L, now - 1000), remote.getFingerprints());
+
+        assertTrue(first.exchange(activity("*", 3, 42, now)).isEmpty());
+        remote = second.exchange(activity("ops@example.com", 2, 7, now));
+        assertEquals(Collections.singletonMap("*", 3L), remote.getSends());
+        assertEquals(Collections.singletonMap(42L, now), remote.getFingerprints());
+
+        // Each record is read once, and never by the node that wrote it
+        assertTrue(second.exchange(new ClusterActivity()).isEmpty());
+        remote = first.exchange(new ClusterActivity());
+        assertEquals(Collections.singletonMap("ops@example.com", 2L), remote.getSends());
+        assertEquals(Collections.singletonMap(7L, now), remote.getFingerprints());
+        assertTrue(first.exchange(new ClusterActivity()).isEmpty());
+    }
+
+    public void testForgetsActivityOlderThanRetention() throws Exception {
+        FileClusterStore first = new FileClusterStore(directory, "first", 10);
+        FileClusterStore second = new FileClusterStore(directory, "second", 10);
+        first.exchange(activity("*", 1, 42, System.currentTimeMillis()));
+        Thread.sleep(50);
+
+        assertTrue(second.exchange(new ClusterActivity()).isEmpty());
+    }
+
+    public void testCoordinatorsShareQuotasAndFingerprints() throws Exception {
+        ClusterCoordinator first = new ClusterCoordinator(
+                new FileClusterStore(directory, "first", RETENTION_MILLIS), 10, RETENTION_MILLIS, 1000);
+        ClusterCoordinator second = null;
+        try {
+            long now = System.currentTimeMillis();
+            first.recordFingerprint(1, now);
+            // Published before the second node starts, so it is seen by its first exchange
+            awaitPublished(1);
+
+            final AtomicLong consumed = new AtomicLong();
+            second = new ClusterCoordinator(
+                    new FileClusterStore(directory, "second", RETENTION_MILLIS), 10, RETENTION_MILLIS, 1000);
+            second.setQuotaListener(new ClusterCoordinator.QuotaListener() {
+                public void consumed(String quota, long count) {
+                    if (ClusterCoordinator.GLOBAL_QUOTA.equals(quota)) {
+                        consumed.addAndGet(count);
+                    }
+                }
+            });
+            awaitRemoteSendTime(second, 1, now);
+
+            first.recordSend(ClusterCoordinator.GLOBAL_QUOTA);
+            first.recordSend(ClusterCoordinator.GLOBAL_QUOTA);
+            first.recordFingerprint(2, now);
+            awaitRemoteSendTime(second, 2, now);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (consumed.get() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals(2, consumed.get());
+            assertNull(first.getRemoteSendTime(2));
+        } finally {
+            first.close();
+            if (null != second) {
+                second.close();
+            }
+        }
+    }
+
+    private static ClusterActivity activity(String quota, long sends, long fingerprint, long timeMillis) {
+        ClusterActivity activity = new ClusterActivity();
+        activity.addSends(quota, sends);
+        activity.addFingerprint(fingerprint, timeMillis);
+        return activity;
+    }
+
+    private void awaitPublished(long fingerprint) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            // A new node each time, so the fingerprints published so far are all returned
+            ClusterActivity published = new FileClusterStore(directory, "probe", RETENTION_MILLIS).exchange(new ClusterActivity());
+            if (published.getFingerprints().containsKey(fingerprint)) {
+                return;
+            }
+            Thread.sleep(5);
+        }
+        fail("Fingerprint " + fingerprint + " was not published");
+    }
+
+    private static void awaitRemoteSendTime(ClusterCoordinator coordinator, long fingerprint, long timeMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (null == coordinator.getRemoteSendTime(fingerprint) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(Long.valueOf(timeMillis), coordinator.getRemoteSendTime(fingerprint));
+    }
+}
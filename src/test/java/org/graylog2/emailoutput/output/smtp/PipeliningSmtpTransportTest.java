@@ -0,0 +1,173 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.smtp;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import junit.framework.TestCase;
+
+import org.graylog2.emailoutput.output.SmtpSink;
+
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+public class PipeliningSmtpTransportTest extends TestCase {
+
+    private SmtpSink sink;
+    private Session session;
+
+    @Override
+    protected void setUp() throws Exception {
+        sink = new SmtpSink();
+        Properties properties = new Properties();
+        properties.put("mail.smtp-nio.connectiontimeout", "5000");
+        properties.put("mail.smtp-nio.timeout", "5000");
+        properties.put("mail.smtp-nio.localhost", "graylog.example.com");
+        session = Session.getInstance(properties);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        sink.close();
+    }
+
+    public void testSendsWithChunking() throws Exception {
+        PipeliningSmtpTransport transport = connect();
+        try {
+            send(transport, "ops@example.com", "dev@example.com");
+        } finally {
+            transport.close();
+        }
+        assertEquals(1, sink.getMessages());
+        assertTrue(sink.getBytes() > 0);
+    }
+
+    public void testSendsWithData() throws Exception {
+        sink.setChunking(false);
+        PipeliningSmtpTransport transport = connect();
+        try {
+            send(transport, "ops@example.com");
+        } finally {
+            transport.close();
+        }
+        assertEquals(1, sink.getMessages());
+        assertTrue(sink.getBytes() > 0);
+    }
+
+    public void testSendsManyEmailsOverOneConnection() throws Exception {
+        PipeliningSmtpTransport transport = connect();
+        try {
+            for (int i = 0; i < 10; i++) {
+                send(transport, "ops@example.com");
+            }
+            assertTrue(transport.isConnected());
+        } finally {
+            transport.close();
+        }
+        assertEquals(10, sink.getMessages());
+        assertEquals(1, sink.getConnections());
+    }
+
+    public void testReportsRejectionWithReplyCode() throws Exception {
+        PipeliningSmtpTransport transport = connect();
+        try {
+            assertRejected(transport, "550 5.7.1 Sender rejected", 550);
+            assertRejected(transport, "451 4.3.0 Try again later", 451);
+
+            // The rejected transactions were reset, so the connection can still be used
+            sink.reset();
+            send(transport, "ops@example.com");
+        } finally {
+            transport.close();
+        }
+        assertEquals(2, sink.getRejected());
+        assertEquals(1, sink.getMessages());
+    }
+
+    public void testFailsWhenConnectionIsDropped() throws Exception {
+        sink.setDropRate(1.0);
+        PipeliningSmtpTransport transport = connect();
+        try {
+            send(transport, "ops@example.com");
+            fail("Sent over a dropped connection");
+        } catch (MessagingException e) {
+            assertTrue(e.getNextException() instanceof IOException);
+        }
+        assertFalse(transport.isConnected());
+        assertEquals(0, sink.getMessages());
+    }
+
+    public void testFailsToConnectToUnresolvableHost() throws Exception {
+        PipeliningSmtpTransport transport = new PipeliningSmtpTransport(session, null);
+        try {
+            transport.connect("smtp.invalid", sink.getPort(), null, null);
+            fail("Connected to an unresolvable host");
+        } catch (MessagingException e) {
+            assertTrue(e.getNextException() instanceof UnknownHostException);
+        }
+        assertFalse(transport.isConnected());
+    }
+
+    public void testAuthenticates() throws Exception {
+        session.getProperties().put("mail.smtp-nio.auth", "true");
+        PipeliningSmtpTransport transport = new PipeliningSmtpTransport(session, null);
+        transport.connect("127.0.0.1", sink.getPort(), "graylog", "secret");
+        try {
+            send(transport, "ops@example.com");
+        } finally {
+            transport.close();
+        }
+        assertEquals(1, sink.getMessages());
+    }
+
+    private void assertRejected(PipeliningSmtpTransport transport, String reply, int code) throws Exception {
+        sink.setRejectRate(1.0, reply);
+        try {
+            send(transport, "ops@example.com");
+            fail("Sent despite " + reply);
+        } catch (SMTPSenderFailedException e) {
+            assertEquals(code, e.getReturnCode());
+        }
+    }
+
+    private PipeliningSmtpTransport connect() throws MessagingException {
+        PipeliningSmtpTransport transport = new PipeliningSmtpTransport(session, null);
+        transport.connect("127.0.0.1", sink.getPort(), null, null);
+        return transport;
+    }
+
+    private void send(PipeliningSmtpTransport transport, String... recipients) throws MessagingException {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("graylog@example.com"));
+        for (String recipient : recipients) {
+            message.addRecipient(MimeMessage.RecipientType.TO, new InternetAddress(recipient));
+        }
+        message.setSubject("Disk full on web-1");
+        message.setText("Disk full\r\n.\r\nA line holding only a dot, which must be escaped\r\n");
+        message.saveChanges();
+        transport.sendMessage(message, message.getAllRecipients());
+    }
+}
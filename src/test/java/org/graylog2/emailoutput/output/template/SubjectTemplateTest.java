@@ -0,0 +1,67 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.TestData;
+import org.graylog2.plugin.logmessage.LogMessage;
+
+public class SubjectTemplateTest extends TestCase {
+
+    public void testIsNotCompiledWithoutTags() throws Exception {
+        assertNull(SubjectTemplate.compile("[graylog]", "Disk full"));
+        assertNull(SubjectTemplate.compile("[graylog]", null));
+    }
+
+    public void testRendersPlainTextOnOneLine() throws Exception {
+        CompiledStreamConfig streamConfig = TestData.streamConfig("ops@example.com", "{{level_name}} on {{host}}: {{short_message}}");
+        LogMessage message = TestData.message("web-1", 3, "<disk>\r\nfull");
+
+        assertEquals("[graylog] Error on web-1: <disk>  full",
+                SubjectTemplate.compile("[graylog] ", "{{level_name}} on {{host}}: {{short_message}}").render(message, streamConfig));
+    }
+
+    public void testIsCutAt255Characters() throws Exception {
+        CompiledStreamConfig streamConfig = TestData.streamConfig("ops@example.com", "{{host}} {{short_message}}");
+        char[] value = new char[10000];
+        Arrays.fill(value, 'x');
+        LogMessage message = TestData.message("web-1", 3, new String(value));
+
+        String subject = SubjectTemplate.compile("", "{{host}} {{short_message}}").render(message, streamConfig);
+        assertEquals(255, subject.length());
+        assertTrue(subject.startsWith("web-1 xxx"));
+    }
+
+    public void testDoesNotEndWithHalfASurrogatePair() throws Exception {
+        CompiledStreamConfig streamConfig = TestData.streamConfig("ops@example.com", "{{short_message}}");
+        char[] value = new char[254];
+        Arrays.fill(value, 'x');
+        // U+1F525, two chars, straddling the limit
+        LogMessage message = TestData.message("web-1", 3, new String(value) + "\uD83D\uDD25");
+
+        String subject = SubjectTemplate.compile("", "{{short_message}}").render(message, streamConfig);
+        assertEquals(254, subject.length());
+        assertFalse(Character.isHighSurrogate(subject.charAt(subject.length() - 1)));
+    }
+}
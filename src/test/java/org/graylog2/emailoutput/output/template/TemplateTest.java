@@ -0,0 +1,153 @@
+/**
+ * Copyright 2012 Lennart Koopmann <lennart@socketfeed.com>
+ *
+ * This file is part of Graylog2.
+ *
+ * Graylog2 is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Graylog2 is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Graylog2.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.graylog2.emailoutput.output.template;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.graylog2.emailoutput.output.CompiledStreamConfig;
+import org.graylog2.emailoutput.output.TestData;
+import org.graylog2.plugin.logmessage.LogMessage;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+
+public class TemplateTest extends TestCase {
+
+    private CompiledStreamConfig streamConfig;
+
+    @Override
+    protected void setUp() throws Exception {
+        streamConfig = TestData.streamConfig("ops@example.com", "Alert", "fields", "_.*");
+    }
+
+    public void testRendersVariablesHtmlEncoded() throws Exception {
+        LogMessage message = TestData.message("web-1", 3, "<b>disk</b> full");
+
+        assertEquals("web-1: &lt;b&gt;disk&lt;/b&gt; full (Error)",
+                render(Template.compile("{{host}}: {{short_message}} ({{level_name}})", true), message));
+        assertEquals("<b>disk</b> full", render(Template.compile("{{{short_message}}}", true), message));
+        assertEquals("<b>disk</b> full", render(Template.compile("{{short_message}}", false), message));
+    }
+
+    public void testRendersSections() throws Exception {
+        LogMessage message = TestData.message("web-1", 3, "disk full");
+        message.addAdditionalData("_service", "api");
+        message.addAdditionalData("_region", "");
+
+        Template template = Template.compile(
+                "{{#field._service}}service {{field._service}}{{/field._service}}"
+                + "{{^field._region}}, no region{{/field._region}}"
+                + "{{#full_message}}, full{{/full_message}}"
+                + "{{! not rendered }}", false);
+        assertEquals("service api, no region", render(template, message));
+    }
+
+    public void testRendersEachField() throws Exception {
+        LogMessage message = TestData.message("web-1", 3, "disk full");
+        message.addAdditionalData("_service", "api");
+
+        assertEquals("[_service=api]", render(Template.compile("{{#fields}}[{{name}}={{value}}]{{/fields}}", false), message));
+    }
+
+    public void testRendersMessagesWithMessageTemplate() throws Exception {
+        Template digest = Template.compile("{{count}}:{{#messages}} {{>message}}{{/messages}}", false);
+        Template messageTemplate = Template.compileMessageTemplate("{{host}}/{{repeated}}", false);
+        List<LogMessage> messages = Arrays.asList(
+                TestData.message("web-1", 3, "a"),
+                TestData.message("web-2", 3, "b"));
+
+        RenderContext context = RenderContext.forEmail();
+        context.streamConfiguration = streamConfig;
+        context.messages = messages;
+        context.messageTemplate = messageTemplate;
+        StringBuilder out = new StringBuilder();
+        try {
+            digest.render(out, context);
+        } finally {
+            context.clear();
+        }
+        assertEquals("2: web-1/0 web-2/0", out.toString());
+    }
+
+    public void testRejectsInvalidTemplates() {
+        assertInvalid("Invalid template: Unclosed tag on line 2", "line 1\n{{host", false);
+        assertInvalid("Invalid template: Unknown variable {{hots}} on line 1", "{{hots}}", false);
+        assertInvalid("Invalid template: Missing closing tag {{/host}} on line 1", "{{#host}}", false);
+        assertInvalid("Invalid template: Unexpected closing tag {{/level}} on line 1", "{{#host}}{{/level}}", false);
+        assertInvalid("Invalid template: Unknown template {{>digest}} on line 1", "{{>digest}}", false);
+    }
+
+    public void testRejectsRecursiveMessageTemplates() throws Exception {
+        assertInvalid("Invalid template: {{>message}} cannot be used in a message template on line 1",
+                "{{host}} {{>message}}", true);
+        assertInvalid("Invalid template: {{#messages}} cannot be used in a message template on line 1",
+                "{{#messages}}{{host}}{{/messages}}", true);
+
+        // Both are fine in the email template around it
+        Template.compile("{{#messages}}{{>message}}{{/messages}}", true);
+    }
+
+    public void testStopsRenderingAtMaximumLength() throws Exception {
+        char[] value = new char[1000];
+        Arrays.fill(value, 'x');
+        LogMessage message = TestData.message("web-1", 3, new String(value));
+
+        RenderContext context = RenderContext.forSubject();
+        context.streamConfiguration = streamConfig;
+        context.messages = Arrays.asList(message);
+        context.setMessage(message, 0);
+        context.maxLength = 10;
+        StringBuilder out = new StringBuilder();
+        try {
+            Template.compile("ab{{short_message}}{{host}}", false).render(out, context);
+        } finally {
+            context.clear();
+        }
+        assertEquals("abxxxxxxxx", out.toString());
+    }
+
+    private String render(Template template, LogMessage message) {
+        RenderContext context = RenderContext.forEmail();
+        context.streamConfiguration = streamConfig;
+        context.messages = Arrays.asList(message);
+        context.setMessage(message, 0);
+        StringBuilder out = new StringBuilder();
+        try {
+            template.render(out, context);
+        } finally {
+            context.clear();
+        }
+        return out.toString();
+    }
+
+    private static void assertInvalid(String expected, String source, boolean messageTemplate) {
+        try {
+            if (messageTemplate) {
+                Template.compileMessageTemplate(source, false);
+            } else {
+                Template.compile(source, false);
+            }
+            fail("Compiled " + source);
+        } catch (MessageOutputConfigurationException e) {
+            assertEquals(expected, e.getMessage());
+        }
+    }
+}